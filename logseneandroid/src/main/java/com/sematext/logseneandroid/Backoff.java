@@ -0,0 +1,75 @@
+package com.sematext.logseneandroid;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Delays between attempts to send a bulk request.
+ *
+ * Uses exponential backoff with full jitter, so that many devices failing at the same time do not
+ * retry in lockstep, unless the receiver asked for a specific delay with a Retry-After header.
+ */
+class Backoff {
+  /**
+   * Upper bound of the delay before the first retry.
+   */
+  static final long BASE_DELAY_MILLIS = 1000;
+
+  /**
+   * Upper bound of any computed delay.
+   */
+  static final long MAX_DELAY_MILLIS = 30 * 1000;
+
+  private static final Random random = new Random();
+
+  private Backoff() {
+  }
+
+  /**
+   * Returns the delay before the next attempt.
+   * @param attempt number of failed attempts so far, starting with 1
+   * @param retryAfterMillis delay requested by the receiver, -1 if none
+   * @return delay in milliseconds
+   */
+  static long delayMillis(int attempt, long retryAfterMillis) {
+    if (retryAfterMillis >= 0) {
+      // still spread devices a little, they all got the same header
+      return retryAfterMillis + nextLong(BASE_DELAY_MILLIS);
+    }
+    long cap = BASE_DELAY_MILLIS << Math.min(attempt - 1, 16);
+    return nextLong(Math.min(MAX_DELAY_MILLIS, cap) + 1);
+  }
+
+  /**
+   * Parses a Retry-After header, given either in seconds or as an http date.
+   * @param value the header value, may be null
+   * @param now current time in milliseconds since epoch
+   * @return requested delay in milliseconds, or -1 if not present or invalid
+   */
+  static long parseRetryAfter(String value, long now) {
+    if (value == null) {
+      return -1;
+    }
+    value = value.trim();
+    try {
+      long seconds = Long.parseLong(value);
+      return seconds < 0 ? -1 : seconds * 1000;
+    } catch (NumberFormatException e) {
+      // not in seconds, might be a date
+    }
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    try {
+      return Math.max(0, format.parse(value).getTime() - now);
+    } catch (ParseException e) {
+      return -1;
+    }
+  }
+
+  private static long nextLong(long bound) {
+    return (long) (random.nextDouble() * bound);
+  }
+}
@@ -0,0 +1,83 @@
+package com.sematext.logseneandroid;
+
+/**
+ * Chooses the size of bulk requests from the outcome of recent ones.
+ *
+ * Bulks are limited both by number of messages and by bytes. Limits grow additively while requests
+ * are fast, and are halved after a timeout or a 413 response (AIMD), so bulks get large on good
+ * networks and small on weak ones.
+ */
+class BulkSizer {
+  static final int MIN_DOCS = 1;
+  static final int MAX_DOCS = 1000;
+  static final int INITIAL_DOCS = 50;
+  static final long MIN_BYTES = 8 * 1024;
+  static final long MAX_BYTES = 1024 * 1024;
+  static final long INITIAL_BYTES = 128 * 1024;
+
+  private static final int DOCS_STEP = 10;
+  private static final long BYTES_STEP = 32 * 1024;
+
+  /**
+   * Requests answered faster than this grow the limits.
+   */
+  static final long FAST_LATENCY_MILLIS = 2000;
+
+  private int targetDocs = INITIAL_DOCS;
+  private long targetBytes = INITIAL_BYTES;
+  private int lastDocs;
+  private long lastBytes;
+  private long lastLatencyMillis = -1;
+  private long increases;
+  private long decreases;
+
+  synchronized int targetDocs() {
+    return targetDocs;
+  }
+
+  synchronized long targetBytes() {
+    return targetBytes;
+  }
+
+  /**
+   * Records a successful request.
+   * @param range the records sent
+   * @param latencyMillis time until the response was received
+   */
+  synchronized void onSuccess(QueueRange range, long latencyMillis) {
+    lastDocs = range.count;
+    lastBytes = range.bytes;
+    lastLatencyMillis = latencyMillis;
+    // only grow if the bulk was actually limited, small backlogs say nothing about the network
+    boolean full = range.count >= targetDocs || range.bytes + range.bytes / range.count > targetBytes;
+    if (full && latencyMillis < FAST_LATENCY_MILLIS
+        && (targetDocs < MAX_DOCS || targetBytes < MAX_BYTES)) {
+      targetDocs = Math.min(MAX_DOCS, targetDocs + DOCS_STEP);
+      targetBytes = Math.min(MAX_BYTES, targetBytes + BYTES_STEP);
+      increases++;
+    }
+  }
+
+  /**
+   * Records a request which timed out or was rejected as too large.
+   * @param range the records sent
+   */
+  synchronized void onTooSlowOrLarge(QueueRange range) {
+    lastDocs = range.count;
+    lastBytes = range.bytes;
+    lastLatencyMillis = -1;
+    // shrink below what was sent, the limits might have grown meanwhile
+    int docs = Math.max(MIN_DOCS, Math.min(targetDocs, range.count) / 2);
+    long bytes = Math.max(MIN_BYTES, Math.min(targetBytes, range.bytes) / 2);
+    if (docs < targetDocs || bytes < targetBytes) {
+      targetDocs = docs;
+      targetBytes = bytes;
+      decreases++;
+    }
+  }
+
+  synchronized BulkStats getStats(long rejectedDocs, long retriedDocs) {
+    return new BulkStats(targetDocs, targetBytes, lastDocs, lastBytes, lastLatencyMillis, increases, decreases,
+        rejectedDocs, retriedDocs);
+  }
+}
@@ -0,0 +1,99 @@
+package com.sematext.logseneandroid;
+
+/**
+ * Snapshot of the adaptive bulk request sizing.
+ */
+public final class BulkStats {
+  private final int targetDocs;
+  private final long targetBytes;
+  private final int lastDocs;
+  private final long lastBytes;
+  private final long lastLatencyMillis;
+  private final long increases;
+  private final long decreases;
+  private final long rejectedDocs;
+  private final long retriedDocs;
+
+  BulkStats(int targetDocs, long targetBytes, int lastDocs, long lastBytes, long lastLatencyMillis,
+            long increases, long decreases, long rejectedDocs, long retriedDocs) {
+    this.targetDocs = targetDocs;
+    this.targetBytes = targetBytes;
+    this.lastDocs = lastDocs;
+    this.lastBytes = lastBytes;
+    this.lastLatencyMillis = lastLatencyMillis;
+    this.increases = increases;
+    this.decreases = decreases;
+    this.rejectedDocs = rejectedDocs;
+    this.retriedDocs = retriedDocs;
+  }
+
+  /**
+   * Current max number of messages in a bulk request.
+   */
+  public int getTargetDocs() {
+    return targetDocs;
+  }
+
+  /**
+   * Current max size of the messages in a bulk request, in bytes.
+   */
+  public long getTargetBytes() {
+    return targetBytes;
+  }
+
+  /**
+   * Number of messages in the last sent bulk request.
+   */
+  public int getLastDocs() {
+    return lastDocs;
+  }
+
+  /**
+   * Size of the messages in the last sent bulk request, in bytes.
+   */
+  public long getLastBytes() {
+    return lastBytes;
+  }
+
+  /**
+   * Time it took to send the last bulk request and receive the response, -1 if it failed.
+   */
+  public long getLastLatencyMillis() {
+    return lastLatencyMillis;
+  }
+
+  /**
+   * Number of times the bulk size grew after a fast request.
+   */
+  public long getIncreases() {
+    return increases;
+  }
+
+  /**
+   * Number of times the bulk size was halved after a timeout or a too large request.
+   */
+  public long getDecreases() {
+    return decreases;
+  }
+
+  /**
+   * Number of messages dropped because the receiver rejected them for good, e.g. mapping errors.
+   */
+  public long getRejectedDocs() {
+    return rejectedDocs;
+  }
+
+  /**
+   * Number of messages queued again because the receiver could not index them at the time.
+   */
+  public long getRetriedDocs() {
+    return retriedDocs;
+  }
+
+  @Override
+  public String toString() {
+    return "BulkStats{targetDocs=" + targetDocs + ", targetBytes=" + targetBytes + ", lastDocs=" + lastDocs
+        + ", lastBytes=" + lastBytes + ", lastLatencyMillis=" + lastLatencyMillis + ", increases=" + increases
+        + ", decreases=" + decreases + ", rejectedDocs=" + rejectedDocs + ", retriedDocs=" + retriedDocs + "}";
+  }
+}
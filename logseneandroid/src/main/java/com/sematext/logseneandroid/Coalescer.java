@@ -0,0 +1,211 @@
+package com.sematext.logseneandroid;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collapses repeated messages before they are persisted.
+ *
+ * Messages are grouped by level, message template and exception fingerprint. The first message of
+ * a group is persisted right away and opens a window; repeats within the window are only counted.
+ * Once the window ends, the last repeat is persisted with a <code>coalesced</code> object holding
+ * the number of repeats it stands for and when the first and last of them were logged. The number
+ * of groups is bounded, the least recently used group is closed early when a new one is needed.
+ *
+ * Only used from the ingest thread, so not thread-safe.
+ */
+class Coalescer {
+  /**
+   * Name of the field holding the repeat counts.
+   */
+  static final String COALESCED_FIELD = "coalesced";
+
+  /**
+   * Default max number of groups kept in memory.
+   */
+  static final int DEFAULT_MAX_GROUPS = 256;
+
+  private final long windowMillis;
+  private final Map<Key, Group> groups;
+  private final Key probe = new Key();
+  private List<QueueEntry> evictionOut;
+  private long nextSummary = Long.MAX_VALUE;
+  // only written by the ingest thread, read by metrics snapshots
+  private volatile long coalesced;
+
+  /**
+   * Constructor.
+   *
+   * @param windowMillis how long repeats of a message are collapsed after it was persisted
+   * @param maxGroups max number of groups kept in memory
+   */
+  Coalescer(long windowMillis, final int maxGroups) {
+    if (windowMillis <= 0 || maxGroups <= 0) {
+      throw new IllegalArgumentException("windowMillis and maxGroups must be greater than 0");
+    }
+    this.windowMillis = windowMillis;
+    this.groups = new LinkedHashMap<Key, Group>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Group> eldest) {
+        if (size() <= maxGroups) {
+          return false;
+        }
+        eldest.getValue().summarize(evictionOut);
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Collapses repeats in a batch of messages.
+   *
+   * @param batch messages in the order they were logged
+   * @param now current time in milliseconds since epoch
+   * @param out receives the messages to persist, including summaries of windows that ended
+   */
+  void process(List<QueueEntry> batch, long now, List<QueueEntry> out) {
+    expire(now, out);
+    evictionOut = out;
+    for (int i = 0, n = batch.size(); i < n; i++) {
+      QueueEntry entry = batch.get(i);
+      if (entry.template == null) {
+        out.add(entry);
+        continue;
+      }
+      Group group = groups.get(probe.set(entry));
+      if (group != null) {
+        if (entry.timestamp < group.windowEnd) {
+          if (group.count == 0) {
+            nextSummary = Math.min(nextSummary, group.windowEnd);
+          }
+          group.add(entry);
+          coalesced++;
+          continue;
+        }
+        group.summarize(out);
+        groups.remove(probe);
+      }
+      // might evict and summarize another group, which then comes first
+      groups.put(new Key().set(entry), new Group(entry.timestamp + windowMillis));
+      out.add(entry);
+    }
+    evictionOut = null;
+  }
+
+  /**
+   * Adds summaries of the windows that ended.
+   *
+   * @param now current time in milliseconds since epoch
+   * @param out receives the summaries
+   */
+  void expire(long now, List<QueueEntry> out) {
+    if (now < nextSummary) {
+      // groups without repeats are left to the LRU bound, or replaced when their message comes again
+      return;
+    }
+    nextSummary = Long.MAX_VALUE;
+    Iterator<Group> it = groups.values().iterator();
+    while (it.hasNext()) {
+      Group group = it.next();
+      if (group.windowEnd <= now) {
+        group.summarize(out);
+        it.remove();
+      } else if (group.count > 0) {
+        nextSummary = Math.min(nextSummary, group.windowEnd);
+      }
+    }
+  }
+
+  /**
+   * Adds summaries of all open windows, e.g. before the application goes away.
+   * @param out receives the summaries
+   */
+  void flush(List<QueueEntry> out) {
+    for (Group group : groups.values()) {
+      group.summarize(out);
+    }
+    groups.clear();
+    nextSummary = Long.MAX_VALUE;
+  }
+
+  /**
+   * Returns the time until the next summary is due.
+   * @param now current time in milliseconds since epoch
+   * @return milliseconds until the next window with repeats ends, -1 if there is none
+   */
+  long millisUntilNextSummary(long now) {
+    return nextSummary == Long.MAX_VALUE ? -1 : Math.max(0, nextSummary - now);
+  }
+
+  /**
+   * Returns the number of messages that were collapsed into summaries.
+   */
+  long getCoalesced() {
+    return coalesced;
+  }
+
+  private static class Key {
+    Severity severity;
+    String template;
+    long fingerprint;
+    int hash;
+
+    Key set(QueueEntry entry) {
+      severity = entry.severity;
+      template = entry.template;
+      fingerprint = entry.fingerprint;
+      hash = (31 * severity.ordinal() + template.hashCode()) * 31 + (int) (fingerprint ^ (fingerprint >>> 32));
+      return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return severity == other.severity && fingerprint == other.fingerprint && template.equals(other.template);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private static class Group {
+    final long windowEnd;
+    int count;
+    long firstSeen;
+    QueueEntry last;
+
+    Group(long windowEnd) {
+      this.windowEnd = windowEnd;
+    }
+
+    void add(QueueEntry entry) {
+      if (count == 0) {
+        firstSeen = entry.timestamp;
+      }
+      count++;
+      last = entry;
+    }
+
+    void summarize(List<QueueEntry> out) {
+      if (count == 0) {
+        return;
+      }
+      StringBuilder value = new StringBuilder(80);
+      value.append("{\"count\":").append(count).append(",\"firstSeen\":\"");
+      Utils.appendIso8601(value, firstSeen);
+      value.append("\",\"lastSeen\":\"");
+      Utils.appendIso8601(value, last.timestamp);
+      value.append("\"}");
+      out.add(new QueueEntry(EventEncoder.withField(last.data, COALESCED_FIELD, value), last.severity,
+          last.timestamp, last.meta, null, 0, last.inMemory));
+      count = 0;
+    }
+  }
+}
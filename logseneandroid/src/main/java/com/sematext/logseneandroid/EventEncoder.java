@@ -0,0 +1,250 @@
+package com.sematext.logseneandroid;
+
+import java.util.Locale;
+
+/**
+ * Writes log messages straight into the json form stored in the queue, without building a
+ * <code>JSONObject</code> first.
+ *
+ * The output is the same document the <code>JSONObject</code> path produced: same field order,
+ * same escaping (including <code>\/</code>) and the same handling of null values. Each thread
+ * reuses its own buffer, so the only allocation for a simple message is the resulting string.
+ */
+final class EventEncoder {
+  private static final int INITIAL_CAPACITY = 512;
+
+  /**
+   * Larger buffers are not kept, so that a single huge message does not pin memory for good.
+   */
+  private static final int MAX_POOLED_CAPACITY = 16 * 1024;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder(INITIAL_CAPACITY);
+    }
+  };
+
+  private EventEncoder() {
+  }
+
+  /**
+   * Encodes a simple message.
+   *
+   * @param level value of the `level` field, omitted if null
+   * @param message message text, omitted if null
+   * @param location value of the `location` field, omitted if null
+   * @param lat latitude, geo location is only added if both lat and lon are present
+   * @param lon longitude
+   * @param timestamp time of the message in milliseconds since epoch
+   * @return the json document
+   * @throws IllegalArgumentException if lat or lon is not a finite number
+   */
+  static String encodeMessage(String level, String message, String location, Double lat, Double lon,
+                              long timestamp) {
+    String geo = geoLocation(lat, lon);
+    StringBuilder out = acquire();
+    out.append('{');
+    appendField(out, "level", level);
+    appendField(out, "message", message);
+    appendField(out, "location", location);
+    appendTimestamp(out, timestamp);
+    appendGeo(out, geo);
+    return release(out.append('}'));
+  }
+
+  /**
+   * Encodes an exception.
+   *
+   * @param level value of the `level` field, omitted if null
+   * @param exception value of the `exception` field
+   * @param message message of the exception, omitted if null
+   * @param stacktrace the stack trace, omitted if null
+   * @param topFrames short summary of the stack trace, omitted if null
+   * @param fingerprint fingerprint of the stack trace, omitted if null
+   * @param location value of the `location` field, omitted if null
+   * @param lat latitude, geo location is only added if both lat and lon are present
+   * @param lon longitude
+   * @param timestamp time of the message in milliseconds since epoch
+   * @return the json document
+   * @throws IllegalArgumentException if lat or lon is not a finite number
+   */
+  static String encodeError(String level, String exception, String message, String stacktrace,
+                            String topFrames, String fingerprint, String location, Double lat,
+                            Double lon, long timestamp) {
+    String geo = geoLocation(lat, lon);
+    StringBuilder out = acquire();
+    out.append('{');
+    appendField(out, "level", level);
+    appendField(out, "exception", exception);
+    appendField(out, "message", message);
+    appendField(out, "stacktrace", stacktrace);
+    appendField(out, "topFrames", topFrames);
+    appendField(out, "fingerprint", fingerprint);
+    appendField(out, "location", location);
+    appendTimestamp(out, timestamp);
+    appendGeo(out, geo);
+    return release(out.append('}'));
+  }
+
+  /**
+   * Encodes a structured event.
+   *
+   * @param event the event with its fields
+   * @param message message text, omitted if null
+   * @param location value of the `location` field, omitted if null
+   * @param timestamp time of the message in milliseconds since epoch
+   * @return the json document
+   * @throws IllegalArgumentException if the event location is not a finite number
+   */
+  static String encodeEvent(LogEvent event, String message, String location, long timestamp) {
+    String geo = event.hasLocation ? geoLocation(event.lat, event.lon) : null;
+    StringBuilder out = acquire();
+    out.append('{');
+    appendField(out, "level", event.level);
+    appendField(out, "message", message);
+    StringBuilder fields = event.fields;
+    if (fields.length() > 0) {
+      // each field starts with a comma
+      out.append(fields, out.length() == 1 ? 1 : 0, fields.length());
+    }
+    appendField(out, "location", location);
+    appendTimestamp(out, timestamp);
+    appendGeo(out, geo);
+    return release(out.append('}'));
+  }
+
+  /**
+   * Adds a field with an already encoded value at the end of a serialized json object.
+   *
+   * @param json the serialized object
+   * @param name name of the field, must not need escaping
+   * @param value encoded json value
+   * @return the new document, or the same one if it is not an object
+   */
+  static String withField(String json, String name, CharSequence value) {
+    int end = json.lastIndexOf('}');
+    if (end < 0) {
+      return json;
+    }
+    StringBuilder out = new StringBuilder(json.length() + name.length() + value.length() + 4);
+    out.append(json, 0, end);
+    appendName(out, name);
+    out.append(value);
+    return out.append(json, end, json.length()).toString();
+  }
+
+  /**
+   * Appends the text as a quoted json string, escaped the way <code>JSONObject</code> does.
+   */
+  static void appendString(StringBuilder out, String value) {
+    out.append('"');
+    int start = 0;
+    for (int i = 0, n = value.length(); i < n; i++) {
+      char c = value.charAt(i);
+      if (c >= 0x20 && c != '"' && c != '\\' && c != '/') {
+        continue;
+      }
+      // copy the plain run in one go
+      out.append(value, start, i);
+      start = i + 1;
+      switch (c) {
+        case '"':
+        case '\\':
+        case '/':
+          out.append('\\').append(c);
+          break;
+        case '\t':
+          out.append("\\t");
+          break;
+        case '\b':
+          out.append("\\b");
+          break;
+        case '\n':
+          out.append("\\n");
+          break;
+        case '\r':
+          out.append("\\r");
+          break;
+        case '\f':
+          out.append("\\f");
+          break;
+        default:
+          out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+          break;
+      }
+    }
+    out.append(value, start, value.length());
+    out.append('"');
+  }
+
+  private static String geoLocation(Double lat, Double lon) {
+    if (lat == null || lon == null) {
+      return null;
+    }
+    return geoLocation(lat.doubleValue(), lon.doubleValue());
+  }
+
+  private static String geoLocation(double lat, double lon) {
+    if (!isFinite(lat) || !isFinite(lon)) {
+      // JSONObject refused these as well
+      throw new IllegalArgumentException("Forbidden numeric value: " + lat + "," + lon);
+    }
+    // rare enough to not be worth a hand written formatter
+    return String.format(Locale.ENGLISH, "%.2f,%.2f", lat, lon);
+  }
+
+  private static boolean isFinite(double value) {
+    return !Double.isNaN(value) && !Double.isInfinite(value);
+  }
+
+  private static StringBuilder acquire() {
+    StringBuilder out = BUFFER.get();
+    out.setLength(0);
+    return out;
+  }
+
+  private static String release(StringBuilder out) {
+    String result = out.toString();
+    if (out.capacity() > MAX_POOLED_CAPACITY) {
+      BUFFER.set(new StringBuilder(INITIAL_CAPACITY));
+    }
+    return result;
+  }
+
+  private static void appendField(StringBuilder out, String name, String value) {
+    if (value == null) {
+      return;
+    }
+    appendName(out, name);
+    appendString(out, value);
+  }
+
+  private static void appendTimestamp(StringBuilder out, long timestamp) {
+    appendName(out, "@timestamp");
+    out.append('"');
+    Utils.appendIso8601(out, timestamp);
+    out.append('"');
+  }
+
+  private static void appendGeo(StringBuilder out, String geo) {
+    if (geo == null) {
+      return;
+    }
+    appendName(out, "geo");
+    out.append('{');
+    appendName(out, "location");
+    appendString(out, geo);
+    out.append('}');
+  }
+
+  private static void appendName(StringBuilder out, String name) {
+    if (out.charAt(out.length() - 1) != '{') {
+      out.append(',');
+    }
+    // field names are constants without characters to escape
+    out.append('"').append(name).append("\":");
+  }
+}
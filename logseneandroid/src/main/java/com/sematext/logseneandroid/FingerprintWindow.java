@@ -0,0 +1,58 @@
+package com.sematext.logseneandroid;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which exception fingerprints had their full stack trace logged recently.
+ */
+class FingerprintWindow {
+  /**
+   * Max number of fingerprints remembered, the least recently seen ones are forgotten.
+   */
+  static final int MAX_FINGERPRINTS = 256;
+
+  private final long windowMillis;
+  private final Map<Long, Long> lastFullTrace = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+      return size() > MAX_FINGERPRINTS;
+    }
+  };
+
+  /**
+   * Constructor.
+   * @param windowMillis how long after a full stack trace repeats only get a summary, 0 to always
+   *                     log the full stack trace
+   */
+  FingerprintWindow(long windowMillis) {
+    this.windowMillis = windowMillis;
+  }
+
+  /**
+   * Checks whether the full stack trace should be logged, and if so remembers that it was.
+   * @param fingerprint fingerprint of the exception
+   * @param now current time in milliseconds
+   * @return <code>true</code> if the fingerprint was not logged in full within the window
+   */
+  synchronized boolean claimFullTrace(long fingerprint, long now) {
+    if (windowMillis <= 0) {
+      return true;
+    }
+    Long last = lastFullTrace.get(fingerprint);
+    if (last != null && now - last < windowMillis) {
+      return false;
+    }
+    lastFullTrace.put(fingerprint, now);
+    return true;
+  }
+
+  /**
+   * Forgets that the full stack trace of a fingerprint was logged, when the message carrying it was
+   * dropped before it was stored, so the next occurrence logs it in full again.
+   * @param fingerprint fingerprint of the exception
+   */
+  synchronized void release(long fingerprint) {
+    lastFullTrace.remove(fingerprint);
+  }
+}
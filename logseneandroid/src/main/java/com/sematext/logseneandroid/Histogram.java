@@ -0,0 +1,81 @@
+package com.sematext.logseneandroid;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values, cheap enough to stay on in production.
+ *
+ * Values are counted in buckets of logarithmic width: each power of two is split into
+ * {@link #SUB_BUCKETS} buckets, so a bucket is at most 25% wider than its lower bound, and values
+ * below {@link #SUB_BUCKETS} are counted exactly. Recording neither locks nor allocates.
+ */
+class Histogram {
+  private static final int SUB_BITS = 2;
+
+  /**
+   * Number of buckets per power of two.
+   */
+  static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  /**
+   * Number of buckets, enough for any positive long.
+   */
+  static final int BUCKETS = bucketOf(Long.MAX_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a value, negative values are recorded as 0.
+   * @param value the value
+   */
+  void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(bucketOf(value));
+    sum.addAndGet(value);
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  /**
+   * Returns a copy of the recorded values. Values recorded while the copy is made might be
+   * counted in the buckets but not yet in the sum, or the other way round.
+   */
+  HistogramSnapshot snapshot() {
+    long[] copy = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = counts.get(i);
+    }
+    return new HistogramSnapshot(copy, sum.get(), max.get());
+  }
+
+  /**
+   * Returns the index of the bucket counting the value.
+   */
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+  }
+
+  /**
+   * Returns the smallest value counted in the bucket.
+   */
+  static long lowerBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = (bucket >>> SUB_BITS) + SUB_BITS - 1;
+    long sub = bucket & (SUB_BUCKETS - 1);
+    return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+  }
+}
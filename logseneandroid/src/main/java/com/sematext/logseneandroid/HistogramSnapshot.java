@@ -0,0 +1,113 @@
+package com.sematext.logseneandroid;
+
+/**
+ * Snapshot of a histogram, e.g. of latencies.
+ *
+ * Values are counted in buckets whose width grows with the value, at most 25% of the lower bound,
+ * so percentiles are estimates within that precision. The buckets are exposed for exporting the
+ * histogram as is.
+ */
+public final class HistogramSnapshot {
+  private final long[] counts;
+  private final long count;
+  private final long sum;
+  private final long max;
+
+  HistogramSnapshot(long[] counts, long sum, long max) {
+    this.counts = counts;
+    long total = 0;
+    for (long bucketCount : counts) {
+      total += bucketCount;
+    }
+    this.count = total;
+    this.sum = sum;
+    this.max = max;
+  }
+
+  /**
+   * Number of recorded values.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Sum of the recorded values.
+   */
+  public long getSum() {
+    return sum;
+  }
+
+  /**
+   * Highest recorded value, 0 if none.
+   */
+  public long getMax() {
+    return max;
+  }
+
+  /**
+   * Average of the recorded values, 0 if none.
+   */
+  public double getMean() {
+    return count == 0 ? 0 : (double) sum / count;
+  }
+
+  /**
+   * Estimates the value below which the given percentage of the recorded values fall.
+   * @param percentile from 0 to 100
+   * @return upper bound of the bucket holding the percentile, capped at the max; 0 if no values
+   *         were recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile must be between 0 and 100");
+    }
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        long upper = i + 1 < counts.length ? Histogram.lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+        return Math.min(upper, max);
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Number of buckets, the same for all histograms.
+   */
+  public int getBucketCount() {
+    return counts.length;
+  }
+
+  /**
+   * Smallest value counted in a bucket, the bucket ends where the next one starts.
+   * @param bucket index of the bucket
+   * @return the lower bound
+   */
+  public long getBucketLowerBound(int bucket) {
+    if (bucket < 0 || bucket >= counts.length) {
+      throw new IndexOutOfBoundsException("bucket " + bucket);
+    }
+    return Histogram.lowerBound(bucket);
+  }
+
+  /**
+   * Number of values counted in a bucket.
+   * @param bucket index of the bucket
+   * @return the count
+   */
+  public long getBucketValueCount(int bucket) {
+    return counts[bucket];
+  }
+
+  @Override
+  public String toString() {
+    return "HistogramSnapshot{count=" + count + ", mean=" + getMean() + ", p50=" + getValueAtPercentile(50)
+        + ", p99=" + getValueAtPercentile(99) + ", max=" + max + "}";
+  }
+}
@@ -0,0 +1,222 @@
+package com.sematext.logseneandroid;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous ingest stage in front of the persistent queue.
+ *
+ * Callers of <code>offer()</code> only touch the lock-free {@link RingBuffer}. A single background
+ * writer thread drains the buffer and hands the drained elements to the {@link Sink} in batches, so
+ * each batch can be persisted in one transaction.
+ */
+class IngestBuffer<E> {
+  private static final String TAG = "IngestBuffer";
+  private static final String THREAD_NAME = "Logsene-ingest";
+
+  /**
+   * Receives drained elements on the writer thread.
+   */
+  interface Sink<E> {
+    /**
+     * Persists a batch of elements. The list is reused after the call returns.
+     */
+    void persist(List<E> batch);
+
+    /**
+     * Called whenever the writer thread has nothing left to drain, before it goes to sleep.
+     * @return milliseconds after which to call this method again even if nothing is offered, or
+     *         a negative value to sleep until the next element
+     */
+    long onIdle();
+  }
+
+  private final RingBuffer<E> ring;
+  private final Sink<E> sink;
+  private final int maxBatchSize;
+  private final Object flushLock = new Object();
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread writer;
+
+  private volatile boolean running = true;
+  private volatile boolean parked;
+  private volatile int flushWaiters;
+  private volatile long maxPending;
+  private volatile long lastDrainLagMillis;
+  private volatile long maxDrainLagMillis;
+  private volatile long batches;
+  private volatile long persisted;
+
+  /**
+   * Constructor, starts the writer thread.
+   *
+   * @param capacity max number of elements waiting to be persisted
+   * @param maxBatchSize max number of elements handed to the sink at once
+   * @param sink the sink
+   */
+  IngestBuffer(int capacity, int maxBatchSize, Sink<E> sink) {
+    Utils.requireNonNull(sink);
+    if (maxBatchSize <= 0) {
+      throw new IllegalArgumentException("maxBatchSize must be greater than 0");
+    }
+    this.ring = new RingBuffer<>(capacity);
+    this.sink = sink;
+    this.maxBatchSize = maxBatchSize;
+    this.writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drainLoop();
+      }
+    }, THREAD_NAME);
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Adds element to the buffer without blocking.
+   * @param e the element
+   * @return <code>false</code> if the buffer is full and the element was dropped
+   */
+  boolean offer(E e) {
+    if (!ring.offer(e, SystemClock.elapsedRealtime())) {
+      dropped.incrementAndGet();
+      return false;
+    }
+    if (parked) {
+      LockSupport.unpark(writer);
+    }
+    return true;
+  }
+
+  /**
+   * Wakes the writer thread, which will call {@link Sink#onIdle()} once the buffer is drained.
+   */
+  void wakeUp() {
+    LockSupport.unpark(writer);
+  }
+
+  /**
+   * Waits until every element offered before this call has been handed to the sink.
+   *
+   * Meant for tests and for application shutdown, must not be called from the sink itself.
+   *
+   * @param timeout max time to wait
+   * @param unit unit of the timeout
+   * @return <code>true</code> if everything was persisted, <code>false</code> on timeout
+   * @throws InterruptedException if interrupted while waiting
+   */
+  boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+    if (Thread.currentThread() == writer) {
+      throw new IllegalStateException("flush() called from the writer thread");
+    }
+    long target = ring.claimed();
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    synchronized (flushLock) {
+      flushWaiters++;
+      try {
+        while (persisted < target) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0 || !running) {
+            return persisted >= target;
+          }
+          LockSupport.unpark(writer);
+          TimeUnit.NANOSECONDS.timedWait(flushLock, remaining);
+        }
+        return true;
+      } finally {
+        flushWaiters--;
+      }
+    }
+  }
+
+  /**
+   * Stops the writer thread after it drains what is currently buffered.
+   */
+  void close() {
+    running = false;
+    LockSupport.unpark(writer);
+  }
+
+  /**
+   * Returns the ingest counters.
+   */
+  IngestStats getStats() {
+    long claimed = ring.claimed();
+    long done = persisted;
+    return new IngestStats(claimed, done, dropped.get(), claimed - done, maxPending,
+        lastDrainLagMillis, maxDrainLagMillis, batches);
+  }
+
+  private void drainLoop() {
+    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    List<E> batch = new ArrayList<>(maxBatchSize);
+    while (true) {
+      long pending = ring.size();
+      if (pending > maxPending) {
+        maxPending = pending;
+      }
+      long oldest = ring.oldestStamp();
+      int n = ring.drainTo(batch, maxBatchSize);
+      if (n > 0) {
+        try {
+          sink.persist(batch);
+        } catch (RuntimeException e) {
+          Log.e(TAG, "Failed to persist " + n + " messages, messages dropped", e);
+        }
+        batch.clear();
+        batches++;
+        persisted = ring.consumed();
+        if (oldest >= 0) {
+          long lag = SystemClock.elapsedRealtime() - oldest;
+          lastDrainLagMillis = lag;
+          if (lag > maxDrainLagMillis) {
+            maxDrainLagMillis = lag;
+          }
+        }
+        notifyFlushWaiters();
+        continue;
+      }
+      if (!ring.isEmpty()) {
+        // a producer claimed a slot but has not published it yet
+        Thread.yield();
+        continue;
+      }
+
+      notifyFlushWaiters();
+      long wakeUpMillis = -1;
+      try {
+        wakeUpMillis = sink.onIdle();
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Ingest idle callback failed", e);
+      }
+      if (!running) {
+        return;
+      }
+      parked = true;
+      // re-check after publishing the parked flag, producers only unpark when they see it set
+      if (ring.isEmpty() && running) {
+        if (wakeUpMillis >= 0) {
+          LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(1, wakeUpMillis)));
+        } else {
+          LockSupport.park(this);
+        }
+      }
+      parked = false;
+    }
+  }
+
+  private void notifyFlushWaiters() {
+    if (flushWaiters > 0) {
+      synchronized (flushLock) {
+        flushLock.notifyAll();
+      }
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package com.sematext.logseneandroid;
+
+/**
+ * Snapshot of the asynchronous ingest counters.
+ */
+public final class IngestStats {
+  private final long enqueued;
+  private final long persisted;
+  private final long dropped;
+  private final long pending;
+  private final long maxPending;
+  private final long lastDrainLagMillis;
+  private final long maxDrainLagMillis;
+  private final long batches;
+
+  IngestStats(long enqueued, long persisted, long dropped, long pending, long maxPending,
+              long lastDrainLagMillis, long maxDrainLagMillis, long batches) {
+    this.enqueued = enqueued;
+    this.persisted = persisted;
+    this.dropped = dropped;
+    this.pending = pending;
+    this.maxPending = maxPending;
+    this.lastDrainLagMillis = lastDrainLagMillis;
+    this.maxDrainLagMillis = maxDrainLagMillis;
+    this.batches = batches;
+  }
+
+  /**
+   * Number of messages accepted into the ingest buffer.
+   */
+  public long getEnqueued() {
+    return enqueued;
+  }
+
+  /**
+   * Number of messages handed to the persistent queue.
+   */
+  public long getPersisted() {
+    return persisted;
+  }
+
+  /**
+   * Number of messages dropped because the ingest buffer was full.
+   */
+  public long getDropped() {
+    return dropped;
+  }
+
+  /**
+   * Number of messages currently waiting for the writer thread.
+   */
+  public long getPending() {
+    return pending;
+  }
+
+  /**
+   * Highest number of waiting messages observed by the writer thread.
+   */
+  public long getMaxPending() {
+    return maxPending;
+  }
+
+  /**
+   * Age of the oldest message in the most recent batch when it was persisted.
+   */
+  public long getLastDrainLagMillis() {
+    return lastDrainLagMillis;
+  }
+
+  /**
+   * Highest age of a message at the time it was persisted.
+   */
+  public long getMaxDrainLagMillis() {
+    return maxDrainLagMillis;
+  }
+
+  /**
+   * Number of batches (transactions) written by the writer thread.
+   */
+  public long getBatches() {
+    return batches;
+  }
+
+  @Override
+  public String toString() {
+    return "IngestStats{enqueued=" + enqueued + ", persisted=" + persisted + ", dropped=" + dropped
+        + ", pending=" + pending + ", maxPending=" + maxPending + ", lastDrainLagMillis="
+        + lastDrainLagMillis + ", maxDrainLagMillis=" + maxDrainLagMillis + ", batches=" + batches + "}";
+  }
+}
@@ -0,0 +1,201 @@
+package com.sematext.logseneandroid;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a message is logged at all, before it is serialized or buffered.
+ *
+ * Messages are sampled by level first (debug and info only) and then rate limited with token
+ * buckets, one per level and one per logger name. Messages that do not get through are counted,
+ * and the counts are attached to the next message that does as a <code>suppressed</code> object,
+ * so that the totals can be reconstructed from the stored messages.
+ */
+class IngestThrottle {
+  /**
+   * Name of the field holding the suppressed counts.
+   */
+  static final String SUPPRESSED_FIELD = "suppressed";
+
+  /**
+   * Max number of loggers with their own bucket, the least recently used ones are forgotten.
+   */
+  static final int MAX_LOGGERS = 64;
+
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final TokenBucket[] levelBuckets = new TokenBucket[Severity.values().length];
+  private final float[] sampleRates = new float[Severity.values().length];
+  private final int perLoggerLimit;
+  private final Map<String, TokenBucket> loggerBuckets;
+  private final boolean enabled;
+  private final Random random = new Random();
+
+  private final AtomicLong pendingRateLimited = new AtomicLong();
+  private final AtomicLong pendingSampledOut = new AtomicLong();
+  private final AtomicLong totalRateLimited = new AtomicLong();
+  private final AtomicLong totalSampledOut = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param levelLimits max messages per second of each level, indexed by severity ordinal; 0 means
+   *                    no limit. Each bucket allows bursts of one second worth of messages.
+   * @param perLoggerLimit max messages per second of each logger, 0 means no limit
+   * @param debugSampleRate fraction of debug messages to keep, from 0 to 1
+   * @param infoSampleRate fraction of info messages to keep, from 0 to 1
+   */
+  IngestThrottle(int[] levelLimits, int perLoggerLimit, float debugSampleRate, float infoSampleRate) {
+    Utils.requireNonNull(levelLimits);
+    if (levelLimits.length != levelBuckets.length) {
+      throw new IllegalArgumentException("Expected a limit for each of " + levelBuckets.length + " levels");
+    }
+    boolean anyLimit = perLoggerLimit > 0;
+    long now = System.nanoTime();
+    for (int i = 0; i < levelLimits.length; i++) {
+      if (levelLimits[i] > 0) {
+        levelBuckets[i] = new TokenBucket(levelLimits[i], now);
+        anyLimit = true;
+      }
+      sampleRates[i] = 1f;
+    }
+    sampleRates[Severity.DEBUG.ordinal()] = clamp(debugSampleRate);
+    sampleRates[Severity.INFO.ordinal()] = clamp(infoSampleRate);
+    this.perLoggerLimit = perLoggerLimit;
+    this.loggerBuckets = perLoggerLimit > 0 ? new LinkedHashMap<String, TokenBucket>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+        return size() > MAX_LOGGERS;
+      }
+    } : null;
+    this.enabled = anyLimit || sampleRates[Severity.DEBUG.ordinal()] < 1f
+        || sampleRates[Severity.INFO.ordinal()] < 1f;
+  }
+
+  /**
+   * Returns a throttle that lets everything through.
+   */
+  static IngestThrottle unlimited() {
+    return new IngestThrottle(new int[Severity.values().length], 0, 1f, 1f);
+  }
+
+  /**
+   * Checks whether a message is logged, counting it if not.
+   * @param severity severity of the message
+   * @param logger name of the logger, null if none
+   * @return <code>true</code> if the message should be logged
+   */
+  boolean admit(Severity severity, String logger) {
+    return !enabled || admit(severity, logger, System.nanoTime());
+  }
+
+  boolean admit(Severity severity, String logger, long nowNanos) {
+    float sampleRate = sampleRates[severity.ordinal()];
+    if (sampleRate < 1f && random.nextFloat() >= sampleRate) {
+      pendingSampledOut.incrementAndGet();
+      totalSampledOut.incrementAndGet();
+      return false;
+    }
+    TokenBucket bucket = levelBuckets[severity.ordinal()];
+    if (bucket != null && !bucket.tryAcquire(nowNanos)) {
+      return rateLimited();
+    }
+    if (logger != null && loggerBuckets != null && !loggerBucket(logger, nowNanos).tryAcquire(nowNanos)) {
+      // a logger held back by its own bucket must not use up the budget of other loggers
+      if (bucket != null) {
+        bucket.release();
+      }
+      return rateLimited();
+    }
+    return true;
+  }
+
+  private boolean rateLimited() {
+    pendingRateLimited.incrementAndGet();
+    totalRateLimited.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Adds the counts of messages suppressed since the last call to the document.
+   * @param json serialized json object
+   * @return the document with a <code>suppressed</code> object, or the same document if nothing
+   *         was suppressed
+   */
+  String attachCounts(String json) {
+    if (pendingRateLimited.get() == 0 && pendingSampledOut.get() == 0) {
+      return json;
+    }
+    if (json.lastIndexOf('}') < 0) {
+      return json;
+    }
+    long rateLimited = pendingRateLimited.getAndSet(0);
+    long sampledOut = pendingSampledOut.getAndSet(0);
+    StringBuilder counts = new StringBuilder(48);
+    counts.append("{\"rateLimited\":").append(rateLimited).append(",\"sampledOut\":").append(sampledOut)
+        .append('}');
+    return EventEncoder.withField(json, SUPPRESSED_FIELD, counts);
+  }
+
+  /**
+   * Returns the number of messages suppressed since the throttle was created.
+   */
+  ThrottleStats getStats() {
+    return new ThrottleStats(totalRateLimited.get(), totalSampledOut.get());
+  }
+
+  private TokenBucket loggerBucket(String logger, long nowNanos) {
+    synchronized (loggerBuckets) {
+      TokenBucket bucket = loggerBuckets.get(logger);
+      if (bucket == null) {
+        bucket = new TokenBucket(perLoggerLimit, nowNanos);
+        loggerBuckets.put(logger, bucket);
+      }
+      return bucket;
+    }
+  }
+
+  private static float clamp(float rate) {
+    return Math.max(0f, Math.min(1f, rate));
+  }
+
+  /**
+   * Refills continuously at the given rate, up to one second worth of tokens.
+   */
+  static class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(int perSecond, long nowNanos) {
+      this.tokensPerNano = (double) perSecond / NANOS_PER_SECOND;
+      this.capacity = perSecond;
+      this.tokens = perSecond;
+      this.lastRefill = nowNanos;
+    }
+
+    synchronized boolean tryAcquire(long nowNanos) {
+      long elapsed = nowNanos - lastRefill;
+      if (elapsed > 0) {
+        tokens = Math.min(capacity, tokens + elapsed * tokensPerNano);
+        lastRefill = nowNanos;
+      }
+      if (tokens >= 1) {
+        tokens -= 1;
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Gives back a token taken by {@link #tryAcquire} for a message which was not logged after all.
+     */
+    synchronized void release() {
+      tokens = Math.min(capacity, tokens + 1);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package com.sematext.logseneandroid;
+
+/**
+ * Lease rules shared by the {@link LogQueue} implementations.
+ */
+final class Leases {
+  private Leases() {
+  }
+
+  /**
+   * Checks the arguments of {@link LogQueue#lease}.
+   * @throws IllegalArgumentException if the lease id is 0 or a limit is not positive
+   */
+  static void checkArguments(long leaseId, int max, long maxBytes, long leaseMillis) {
+    if (leaseId == 0) {
+      throw new IllegalArgumentException("leaseId must not be 0");
+    }
+    if (max <= 0 || maxBytes <= 0 || leaseMillis <= 0) {
+      throw new IllegalArgumentException("max, maxBytes and leaseMillis must be greater than 0");
+    }
+  }
+
+  /**
+   * Checks whether a record can be leased.
+   * @param leaseId current lease of the record, 0 if none
+   * @param leaseExpiry when the current lease expires
+   * @param now current time in milliseconds since epoch
+   * @param expiry when the new lease would expire
+   * @return <code>true</code> if the record is not leased, or its lease is no longer trusted
+   */
+  static boolean isLeasable(long leaseId, long leaseExpiry, long now, long expiry) {
+    // an expiry this far ahead means the clock went back, the lease is not trusted either
+    return leaseId == 0 || leaseExpiry <= now || leaseExpiry > expiry;
+  }
+
+  /**
+   * Returns the SQL condition matching the rows {@link #isLeasable} accepts, for the
+   * <code>lease_id</code> and <code>lease_expiry</code> columns.
+   */
+  static String leasableWhere(long now, long expiry) {
+    return "(lease_id = 0 OR lease_expiry <= " + now + " OR lease_expiry > " + expiry + ")";
+  }
+
+  /**
+   * Collects the records of a new lease, visited in id order, within its count and byte limits.
+   */
+  static final class Builder {
+    private final long leaseId;
+    private final long maxBytes;
+    private final long[] timestamps;
+    private long firstId = -1;
+    private long lastId = -1;
+    private int count;
+    private long bytes;
+
+    /**
+     * Constructor.
+     * @param leaseId id of the lease
+     * @param max max number of records
+     * @param maxBytes max total size of the records
+     * @param available number of records which might be visited
+     */
+    Builder(long leaseId, int max, long maxBytes, long available) {
+      this.leaseId = leaseId;
+      this.maxBytes = maxBytes;
+      this.timestamps = new long[(int) Math.max(0, Math.min(max, available))];
+    }
+
+    /**
+     * Returns whether the lease holds as many records as it may.
+     */
+    boolean isFull() {
+      return count == timestamps.length;
+    }
+
+    /**
+     * Returns whether a record of the given size fits, the first record always does.
+     */
+    boolean fits(long length) {
+      return count == 0 || bytes + length <= maxBytes;
+    }
+
+    void add(long id, long length, long timestamp) {
+      if (count == 0) {
+        firstId = id;
+      }
+      lastId = id;
+      bytes += length;
+      timestamps[count++] = timestamp;
+    }
+
+    /**
+     * Returns the leased range, or null if no record was added.
+     */
+    QueueRange build() {
+      return count == 0 ? null : new QueueRange(firstId, lastId, count, bytes, timestamps, leaseId);
+    }
+  }
+}
@@ -0,0 +1,269 @@
+package com.sematext.logseneandroid;
+
+/**
+ * Structured log message with typed fields, obtained from {@link Logsene#atInfo()} and similar
+ * methods and finished with {@link #log(String)}:
+ *
+ * <pre>
+ * Logsene.getInstance().atInfo()
+ *     .field("route", route)
+ *     .field("latencyMs", latency)
+ *     .log("Request finished");
+ * </pre>
+ *
+ * Fields are encoded as they are added, so numbers are never boxed. Events are recycled per
+ * thread: do not keep an event or use it after <code>log</code> was called, and always finish it,
+ * an abandoned event is not reused. Events of levels below the minimum level ignore all calls.
+ *
+ * Fields named like the ones the library writes itself (<code>level</code>, <code>message</code>,
+ * <code>@timestamp</code>, <code>location</code>, <code>geo</code>, <code>meta</code>,
+ * <code>suppressed</code> and <code>coalesced</code>) are ignored, use {@link #timestamp(long)}
+ * and {@link #location(double, double)} instead. Adding a field again replaces its value, like
+ * <code>JSONObject.put</code> does.
+ */
+public final class LogEvent {
+  /**
+   * Returned for disabled levels, ignores everything.
+   */
+  static final LogEvent DISABLED = new LogEvent();
+
+  private static final int INITIAL_CAPACITY = 256;
+  private static final int MAX_POOLED_CAPACITY = 16 * 1024;
+
+  private static final ThreadLocal<LogEvent> POOL = new ThreadLocal<LogEvent>() {
+    @Override
+    protected LogEvent initialValue() {
+      return new LogEvent();
+    }
+  };
+
+  private Logsene logsene;
+  private boolean enabled;
+  private boolean inUse;
+  Severity severity;
+  String level;
+
+  /**
+   * Encoded fields, each starting with a comma.
+   */
+  StringBuilder fields = new StringBuilder(INITIAL_CAPACITY);
+  private String[] names = new String[8];
+  private int[] starts = new int[8];
+  private int count;
+
+  boolean hasTimestamp;
+  long timestamp;
+  boolean hasLocation;
+  double lat;
+  double lon;
+  boolean inMemory;
+
+  private LogEvent() {
+  }
+
+  /**
+   * Returns the event of the calling thread, or a new one if that one is still being built.
+   *
+   * @param logsene where to log the event
+   * @param severity severity of the level
+   * @param level value of the `level` field
+   * @return an empty event
+   */
+  static LogEvent obtain(Logsene logsene, Severity severity, String level) {
+    LogEvent event = POOL.get();
+    if (event.inUse) {
+      // started while building another event, e.g. when computing one of its fields
+      event = new LogEvent();
+    }
+    event.inUse = true;
+    event.enabled = true;
+    event.logsene = logsene;
+    event.severity = severity;
+    event.level = level;
+    return event;
+  }
+
+  /**
+   * Adds a string field, a null value removes the field.
+   */
+  public LogEvent field(String name, String value) {
+    if (begin(name) && value != null) {
+      appendName(name);
+      EventEncoder.appendString(fields, value);
+    }
+    return this;
+  }
+
+  /**
+   * Adds an integer field.
+   */
+  public LogEvent field(String name, long value) {
+    if (begin(name)) {
+      appendName(name);
+      fields.append(value);
+    }
+    return this;
+  }
+
+  /**
+   * Adds a floating point field. NaN and infinite values are not valid json, the field is left out.
+   */
+  public LogEvent field(String name, double value) {
+    if (begin(name) && !Double.isNaN(value) && !Double.isInfinite(value)) {
+      appendName(name);
+      // same format as JSONObject: integral values without fraction, negative zero as -0
+      if (value == 0 && Double.doubleToRawLongBits(value) != 0) {
+        fields.append("-0");
+      } else if (value == (long) value) {
+        fields.append((long) value);
+      } else {
+        fields.append(value);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Adds a boolean field.
+   */
+  public LogEvent field(String name, boolean value) {
+    if (begin(name)) {
+      appendName(name);
+      fields.append(value);
+    }
+    return this;
+  }
+
+  /**
+   * Sets the time of the event, by default the time <code>log</code> is called.
+   * @param millis milliseconds since epoch
+   */
+  public LogEvent timestamp(long millis) {
+    if (enabled) {
+      hasTimestamp = true;
+      timestamp = millis;
+    }
+    return this;
+  }
+
+  /**
+   * Adds a geo location to the event.
+   * @param lat latitude
+   * @param lon longitude
+   */
+  public LogEvent location(double lat, double lon) {
+    if (enabled) {
+      hasLocation = true;
+      this.lat = lat;
+      this.lon = lon;
+    }
+    return this;
+  }
+
+  /**
+   * Keeps the event in memory until it is sent instead of writing it to the persistent queue, for
+   * high rate events which are worthless after the process died, e.g. breadcrumbs. The event is
+   * lost if the process dies before it was sent.
+   */
+  public LogEvent inMemory() {
+    if (enabled) {
+      inMemory = true;
+    }
+    return this;
+  }
+
+  /**
+   * Logs the event and recycles it.
+   * @param message message text, may be null
+   */
+  public void log(String message) {
+    if (!enabled) {
+      return;
+    }
+    try {
+      logsene.log(this, message);
+    } finally {
+      recycle();
+    }
+  }
+
+  /**
+   * Clears the event so that it can be obtained again.
+   */
+  void recycle() {
+    if (fields.capacity() > MAX_POOLED_CAPACITY) {
+      fields = new StringBuilder(INITIAL_CAPACITY);
+    } else {
+      fields.setLength(0);
+    }
+    for (int i = 0; i < count; i++) {
+      names[i] = null;
+    }
+    count = 0;
+    logsene = null;
+    severity = null;
+    level = null;
+    hasTimestamp = false;
+    hasLocation = false;
+    inMemory = false;
+    enabled = false;
+    inUse = false;
+  }
+
+  private boolean begin(String name) {
+    if (!enabled || name == null || isReserved(name)) {
+      return false;
+    }
+    removeField(name);
+    return true;
+  }
+
+  private static boolean isReserved(String name) {
+    switch (name) {
+      case "level":
+      case "message":
+      case "@timestamp":
+      case "location":
+      case "geo":
+      case "meta":
+      case IngestThrottle.SUPPRESSED_FIELD:
+      case Coalescer.COALESCED_FIELD:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private void appendName(String name) {
+    if (count == names.length) {
+      String[] newNames = new String[count * 2];
+      int[] newStarts = new int[count * 2];
+      System.arraycopy(names, 0, newNames, 0, count);
+      System.arraycopy(starts, 0, newStarts, 0, count);
+      names = newNames;
+      starts = newStarts;
+    }
+    names[count] = name;
+    starts[count] = fields.length();
+    count++;
+    fields.append(',');
+    EventEncoder.appendString(fields, name);
+    fields.append(':');
+  }
+
+  private void removeField(String name) {
+    for (int i = 0; i < count; i++) {
+      if (names[i].equals(name)) {
+        int end = i + 1 < count ? starts[i + 1] : fields.length();
+        int removed = end - starts[i];
+        fields.delete(starts[i], end);
+        for (int j = i + 1; j < count; j++) {
+          names[j - 1] = names[j];
+          starts[j - 1] = starts[j] - removed;
+        }
+        names[--count] = null;
+        return;
+      }
+    }
+  }
+}
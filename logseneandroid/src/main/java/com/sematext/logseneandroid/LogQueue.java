@@ -0,0 +1,124 @@
+package com.sematext.logseneandroid;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * FIFO queue of serialized messages, filled by the ingest thread and drained by the worker. Both
+ * the persistent queues and the in-memory one implement it.
+ *
+ * Records are identified by ids growing in the order they were added. Senders lease ranges of
+ * records, read them and acknowledge them by range, see {@link QueueSender}.
+ */
+interface LogQueue {
+  /**
+   * Default time after which a lease is considered abandoned. WorkManager stops a worker after 10
+   * minutes, so a lease this old belongs to a run that is gone.
+   */
+  long DEFAULT_LEASE_MILLIS = 10 * 60 * 1000;
+
+  /**
+   * Receives raw stored records.
+   */
+  interface RecordReader {
+    /**
+     * Called for each record, oldest first.
+     * @param id id of the record
+     * @param data the stored json document, encoded as UTF-8
+     * @param metaId id of the meta snapshot to add to the document, 0 if none
+     */
+    void read(long id, byte[] data, long metaId) throws IOException;
+  }
+
+  /**
+   * Get size of the queue.
+   * @return number of records
+   */
+  long size();
+
+  /**
+   * Get total size of the encoded records in the queue.
+   * @return size in bytes
+   */
+  long bytes();
+
+  /**
+   * Pushes already serialized elements to queue, evicting records if the queue overflows.
+   * @param data serialized messages
+   * @return number of evicted records
+   */
+  long addAll(Collection<QueueEntry> data);
+
+  /**
+   * Retrieves up to specified amount of elements from queue, without removing them.
+   * @param max max number of elements to return.
+   * @return list of elements, with their meta
+   */
+  List<JSONObject> peek(int max);
+
+  /**
+   * Returns the queue counters.
+   * @return <code>QueueStats</code> snapshot
+   */
+  QueueStats getStats();
+
+  /**
+   * Returns the id of the newest element, 0 if the queue is empty.
+   */
+  long lastId();
+
+  /**
+   * Leases up to specified amount and total size of the oldest elements following the given id,
+   * skipping elements leased by someone else. Elements whose lease expired are leased again. The
+   * first element is always included, even if it alone is bigger than <code>maxBytes</code>.
+   *
+   * Reading and removing the returned range only affects the elements leased with it, even if
+   * others fall between its first and last id.
+   *
+   * @param leaseId id of the lease, never 0
+   * @param afterId only elements with a greater id are included, 0 to start at the oldest one
+   * @param maxId only elements with this or a lower id are included
+   * @param max max number of elements in the range
+   * @param maxBytes max total size of the elements in the range
+   * @param now current time in milliseconds since epoch
+   * @param leaseMillis time after which the lease expires
+   * @return the leased range, or <code>null</code> if there are no such elements
+   */
+  QueueRange lease(long leaseId, long afterId, long maxId, int max, long maxBytes, long now, long leaseMillis);
+
+  /**
+   * Gives up the lease of a range which was not sent, so that its elements can be leased again
+   * right away.
+   * @param range the leased range
+   */
+  void release(QueueRange range);
+
+  /**
+   * Reads the raw stored elements of a range, oldest first, without parsing them. Elements
+   * removed in the meantime are skipped.
+   * @param range the range to read
+   * @param reader receives the elements
+   * @throws IOException if thrown by the reader
+   */
+  void read(QueueRange range, RecordReader reader) throws IOException;
+
+  /**
+   * Returns a stored meta snapshot.
+   * @param metaId id of the snapshot
+   * @return the serialized snapshot encoded as UTF-8, or null if there is no such snapshot
+   */
+  byte[] readMeta(long metaId);
+
+  /**
+   * Removes all elements of a range which are still in the queue, except for the given ones which
+   * are moved to the tail of the queue or into the quarantine instead.
+   * @param range the range to remove
+   * @param requeueIds ids of the elements to move to the tail, e.g. to send them again later, may
+   *                   be null
+   * @param quarantineIds ids of corrupt elements to keep aside, may be null
+   */
+  void remove(QueueRange range, long[] requeueIds, long[] quarantineIds);
+}
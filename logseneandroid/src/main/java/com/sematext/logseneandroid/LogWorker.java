@@ -1,14 +1,12 @@
 package com.sematext.logseneandroid;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
-import com.sematext.logseneandroid.logsene.ApiResponse;
-import com.sematext.logseneandroid.logsene.Bulk;
+import com.sematext.logseneandroid.logsene.Compression;
 import com.sematext.logseneandroid.logsene.LogseneClient;
-import org.json.JSONObject;
 
-import java.io.IOException;
-import java.util.List;
+import java.util.zip.Deflater;
 
 import androidx.annotation.NonNull;
 import androidx.work.Worker;
@@ -17,22 +15,9 @@ import androidx.work.WorkerParameters;
 public class LogWorker extends Worker {
   private final static String LOG_TAG = "Logsene";
 
-  /**
-   * Maximum number of messages to send in one bulk request.
-   */
-  private static final int MAX_BULK_SIZE = 50;
-
-  /**
-   * Number of times to attempt to send batch request.
-   */
-  private static final int MAX_ATTEMPTS = 3;
-
-  private LogseneClient client;
-  private String appToken;
-  private String type;
   private final Context context;
 
-  private SqliteObjectQueue preflightQueue;
+  private LogQueue preflightQueue;
 
   public LogWorker(@NonNull Context context, @NonNull WorkerParameters params) {
     super(context, params);
@@ -41,80 +26,70 @@ public class LogWorker extends Worker {
 
   @Override
   public Result doWork() {
-    appToken = getInputData().getString(Logsene.KEY_APPTOKEN);
-    type = getInputData().getString(Logsene.KEY_TYPE);
+    long start = SystemClock.elapsedRealtime();
+    try {
+      return send();
+    } finally {
+      Metrics.workerRunMillis.record(SystemClock.elapsedRealtime() - start);
+      Logsene.notifyMetricsListener();
+    }
+  }
 
-    this.client = new LogseneClient(getInputData().getString(Logsene.KEY_RECEIVERURL), appToken);
-    this.preflightQueue = new SqliteObjectQueue(context);
+  private Result send() {
+    String appToken = getInputData().getString(Logsene.KEY_APPTOKEN);
+    String type = getInputData().getString(Logsene.KEY_TYPE);
+
+    // connections are pooled by a process-wide client, this only rebuilds it if settings changed
+    LogseneClient.setConnectionSettings(
+        getInputData().getInt(Logsene.KEY_MAX_IDLE_CONNECTIONS, LogseneClient.DEFAULT_MAX_IDLE_CONNECTIONS),
+        getInputData().getLong(Logsene.KEY_KEEP_ALIVE, LogseneClient.DEFAULT_KEEP_ALIVE),
+        getInputData().getLong(Logsene.KEY_CONNECT_TIMEOUT, LogseneClient.DEFAULT_CONNECT_TIMEOUT),
+        getInputData().getLong(Logsene.KEY_READ_TIMEOUT, LogseneClient.DEFAULT_IO_TIMEOUT),
+        getInputData().getLong(Logsene.KEY_WRITE_TIMEOUT, LogseneClient.DEFAULT_IO_TIMEOUT));
+    LogseneClient client = new LogseneClient(getInputData().getString(Logsene.KEY_RECEIVERURL), appToken);
+    client.setCompression(Compression.fromName(getInputData().getString(Logsene.KEY_COMPRESSION)),
+        getInputData().getInt(Logsene.KEY_COMPRESSION_LEVEL, Deflater.DEFAULT_COMPRESSION),
+        getInputData().getLong(Logsene.KEY_COMPRESSION_MIN_SIZE, LogseneClient.DEFAULT_COMPRESSION_MIN_SIZE));
+    this.preflightQueue = QueueStorage.fromName(getInputData().getString(Logsene.KEY_QUEUE_STORAGE)).open(context);
+
+    MemoryLogQueue memoryQueue = MemoryLogQueue.open();
 
     long size = preflightQueue.size();
-    Log.d(LOG_TAG, "Worker started, message queue size = " + size);
-    if (size <= 0) {
+    long inMemorySize = memoryQueue.size();
+    Log.d(LOG_TAG, "Worker started, message queue size = " + size + ", in-memory queue size = " + inMemorySize);
+    if (size <= 0 && inMemorySize <= 0) {
       return Result.success();
     }
 
-    // sendInBatches() only returns false if nothing was sent
-    boolean success = sendInBatches();
-
-    if (!success) {
-        Log.e(LOG_TAG, "Worker failed to send logs");
-        return Result.failure();
-    } else {
-        Log.d(LOG_TAG, "Worker succeeded in sending logs, message queue size = " + preflightQueue.size());
-        return Result.success();
+    boolean retryWithWorkManager = getInputData().getBoolean(Logsene.KEY_RETRY_WITH_WORK_MANAGER, false);
+    int maxInFlight = getInputData().getInt(Logsene.KEY_MAX_IN_FLIGHT, QueueSender.DEFAULT_MAX_IN_FLIGHT);
+    int maxAttempts = retryWithWorkManager
+        ? 1 : getInputData().getInt(Logsene.KEY_MAX_ATTEMPTS, QueueSender.DEFAULT_MAX_ATTEMPTS);
+    SendOutcome outcome = SendOutcome.SUCCESS;
+    int sentBulks = 0;
+    // in-memory messages go first, they are lost if the process dies before they were sent
+    if (inMemorySize > 0) {
+      QueueSender sender = new QueueSender(memoryQueue, client, appToken, type, maxInFlight, maxAttempts);
+      outcome = sender.drain();
+      sentBulks += sender.getSentBulks();
     }
-  }
-
-  private boolean sendInBatches() {
-    boolean success = false;
-    List<JSONObject> batch = preflightQueue.peek(MAX_BULK_SIZE);
-    do {
-      if (sendBatch(batch)) {
-        success = true;
-        preflightQueue.remove(batch.size());
-        batch = preflightQueue.peek(MAX_BULK_SIZE);
-      } else {
-        return success;
-      }
-    } while (batch.size() > 0);
-
-    return success;
-  }
-
-  private boolean sendBatch(List<JSONObject> batch) {
-    Bulk.Builder bulkBuilder = new Bulk.Builder();
-    for (JSONObject obj : batch) {
-      bulkBuilder.addSource(obj.toString(), type);
+    if (outcome == SendOutcome.SUCCESS && size > 0) {
+      QueueSender sender = new QueueSender(preflightQueue, client, appToken, type, maxInFlight, maxAttempts);
+      outcome = sender.drain();
+      sentBulks += sender.getSentBulks();
     }
-    return attemptExecute(bulkBuilder.build(), MAX_ATTEMPTS);
-  }
 
-  private boolean attemptExecute(Bulk bulk, int leftAttempts) {
-    if (leftAttempts == 0) {
-      return false;
-    }
-    leftAttempts -= 1;
-    try {
-      Log.d(LOG_TAG, "Attempting to send bulk request");
-      ApiResponse result = client.execute(bulk);
-      if (!result.isSuccessful()) {
-        Log.e(LOG_TAG, String.format("Bad status code (%d) returned from api. Response: %s",
-                result.getHttpResponse().code(), result.getBody()));
-        return false;
-      } else {
-        // even though the status code is successful, some documents might have failed
-        JSONObject json = result.getJson();
-        if (json != null && Boolean.parseBoolean(json.optString("errors", "false"))) {
-          // we just log the error, as we most likely cannot resolve the issue by retrying these documents
-          Log.e(LOG_TAG, String.format("Unable to index all documents. Response: %s\nRequest: %s",
-                  result.getBody(), bulk.toString(appToken)));
-        }
-      }
-      return true;
-    } catch (IOException e) {
-      Log.e(LOG_TAG, "Error while sending logs", e);
-      return attemptExecute(bulk, leftAttempts);
+    if (outcome == SendOutcome.RETRYABLE && retryWithWorkManager) {
+      // WorkManager runs the worker again after its exponential backoff
+      Log.d(LOG_TAG, "Worker will retry sending logs, message queue size = " + preflightQueue.size());
+      Metrics.retries.incrementAndGet();
+      return Result.retry();
+    } else if (outcome != SendOutcome.SUCCESS && sentBulks == 0) {
+      Log.e(LOG_TAG, "Worker failed to send logs");
+      return Result.failure();
+    } else {
+      Log.d(LOG_TAG, "Worker succeeded in sending logs, message queue size = " + preflightQueue.size());
+      return Result.success();
     }
   }
 }
-
@@ -8,13 +8,22 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.SystemClock;
 import android.util.Log;
+import com.sematext.logseneandroid.logsene.Compression;
+import com.sematext.logseneandroid.logsene.ConnectionStats;
+import com.sematext.logseneandroid.logsene.LogseneClient;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
+import okhttp3.OkHttpClient;
+
+import androidx.work.BackoffPolicy;
 import androidx.work.Constraints;
 import androidx.work.Data;
 import androidx.work.ExistingPeriodicWorkPolicy;
@@ -31,6 +40,18 @@ public class Logsene {
   public static final String KEY_RECEIVERURL = "LOGSENE_RECEIVERURL";
   public static final String KEY_APPTOKEN = "LOGSENE_APPTOKEN";
   public static final String KEY_TYPE = "LOGSENE_TYPE";
+  public static final String KEY_COMPRESSION = "LOGSENE_COMPRESSION";
+  public static final String KEY_COMPRESSION_LEVEL = "LOGSENE_COMPRESSION_LEVEL";
+  public static final String KEY_COMPRESSION_MIN_SIZE = "LOGSENE_COMPRESSION_MIN_SIZE";
+  public static final String KEY_MAX_IDLE_CONNECTIONS = "LOGSENE_MAX_IDLE_CONNECTIONS";
+  public static final String KEY_KEEP_ALIVE = "LOGSENE_KEEP_ALIVE";
+  public static final String KEY_CONNECT_TIMEOUT = "LOGSENE_CONNECT_TIMEOUT";
+  public static final String KEY_READ_TIMEOUT = "LOGSENE_READ_TIMEOUT";
+  public static final String KEY_WRITE_TIMEOUT = "LOGSENE_WRITE_TIMEOUT";
+  public static final String KEY_MAX_IN_FLIGHT = "LOGSENE_MAX_IN_FLIGHT";
+  public static final String KEY_MAX_ATTEMPTS = "LOGSENE_MAX_ATTEMPTS";
+  public static final String KEY_RETRY_WITH_WORK_MANAGER = "LOGSENE_RETRY_WITH_WORK_MANAGER";
+  public static final String KEY_QUEUE_STORAGE = "LOGSENE_QUEUE_STORAGE";
 
   private final String TAG = getClass().getSimpleName();
   private final String FLUSH_WORKER_TAG = "com.sematext.android.LogWorker.unconstrained";
@@ -44,6 +65,11 @@ public class Logsene {
    */
   private final int DEFAULT_MAX_OFFLINE_MESSAGES = 5000;
 
+  /**
+   * Maximum total size of messages to cache when offline, 0 means no limit.
+   */
+  private final int DEFAULT_MAX_OFFLINE_BYTES = 0;
+
   /**
    * Minimum number of messages before sending request.
    */
@@ -59,7 +85,28 @@ public class Logsene {
    */
   private static final int DEFAULT_TIME_INTERVAL = 15 * 60 * 1000;
 
-  private static JSONObject defaultMeta;
+  /**
+   * Maximum number of messages waiting to be written to the persistent queue.
+   */
+  private static final int DEFAULT_INGEST_BUFFER_SIZE = 1024;
+
+  /**
+   * Maximum number of messages written to the persistent queue in one transaction.
+   */
+  private static final int INGEST_BATCH_SIZE = 100;
+
+  /**
+   * Time after which a repeated exception gets its full stack trace again.
+   */
+  private static final int DEFAULT_STACK_TRACE_WINDOW = 10 * 60 * 1000;
+
+  /**
+   * Initial delay of WorkManager's exponential backoff when a worker asks to be retried.
+   */
+  private static final long WORKER_BACKOFF_DELAY = 30 * 1000;
+
+  private static volatile JSONObject defaultMeta;
+  private static volatile int defaultMetaVersion;
   private static boolean initialized = false;
   private static Logsene self;
   private String versionName;
@@ -72,21 +119,70 @@ public class Logsene {
    * Messages are persisted as they are acknowledged.
    * Messages are dequeued from LogWorker, and only removed when they are successfully sent.
    */
-  private SqliteObjectQueue preflightQueue;
+  private LogQueue preflightQueue;
+
+  /**
+   * Bounded queue for messages which are not worth a disk write, sent along with the persistent
+   * queue and lost if the process dies.
+   */
+  private MemoryLogQueue memoryQueue;
+
+  /**
+   * Buffers messages in memory, so that logging never touches the database on the caller thread.
+   */
+  private IngestBuffer<QueueEntry> ingestBuffer;
+  private IngestSink ingestSink;
+  private volatile MetricsListener metricsListener;
   private long lastScheduled = -1;
+  private volatile boolean flushRequested;
 
   private String appToken;
   private String type;
   private String receiverUrl;
   private int maxOfflineMessages;
+  private long maxOfflineBytes;
+  private QueueStorage queueStorage;
+  private Severity inMemoryLevel;
+  private int inMemoryMaxMessages;
+  private long inMemoryMaxBytes;
+  private MemoryLogQueue.Overflow inMemoryOverflow;
+  private int ingestBufferSize;
+  private Compression compression;
+  private int compressionLevel;
+  private long compressionMinSize;
+  private int maxIdleConnections;
+  private long keepAlive;
+  private long connectTimeout;
+  private long readTimeout;
+  private long writeTimeout;
+  private int maxInFlightRequests;
+  private int maxAttempts;
+  private boolean retryWithWorkManager;
   private long timeInterval;
   private long minTimeDelay;
   private boolean sendRequiresUnmeteredNetwork;
   private boolean sendRequiresDeviceIdle;
   private boolean sendRequiresBatteryNotLow;
-  private boolean isActive;
+  private volatile boolean isActive;
   private boolean automaticLocationEnabled;
   private LogseneLocationListener locationListener;
+  private volatile Severity minSeverity = Severity.DEBUG;
+  private int[] rateLimits;
+  private int loggerRateLimit;
+  private float debugSampleRate;
+  private float infoSampleRate;
+  private IngestThrottle throttle = IngestThrottle.unlimited();
+  private long coalesceWindow;
+  private int coalesceMaxGroups;
+  private int stackTraceMaxFrames = StackTraces.DEFAULT_MAX_FRAMES;
+  private int stackTraceMaxCauses = StackTraces.DEFAULT_MAX_CAUSES;
+  private long stackTraceWindowMillis;
+  private FingerprintWindow stackTraceWindow = new FingerprintWindow(0);
+
+  /**
+   * Serialized meta of messages without their own, rebuilt when the default meta changes.
+   */
+  private volatile MetaSnapshot metaSnapshot;
 
   // Private constructor - no instances.
   private Logsene() {
@@ -102,7 +198,15 @@ public class Logsene {
       Logsene logsene = new Logsene();
       logsene.uuid = Installation.id(context);
       logsene.config(context);
-      logsene.preflightQueue = new SqliteObjectQueue(context, logsene.maxOfflineMessages);
+      LogseneClient.setConnectionSettings(logsene.maxIdleConnections, logsene.keepAlive,
+          logsene.connectTimeout, logsene.readTimeout, logsene.writeTimeout);
+      logsene.preflightQueue = logsene.queueStorage.open(context, logsene.maxOfflineMessages,
+          logsene.maxOfflineBytes);
+      logsene.memoryQueue = MemoryLogQueue.open(logsene.inMemoryMaxMessages, logsene.inMemoryMaxBytes,
+          logsene.inMemoryOverflow);
+      logsene.ingestSink = logsene.new IngestSink();
+      logsene.ingestBuffer = new IngestBuffer<>(logsene.ingestBufferSize, INGEST_BATCH_SIZE,
+          logsene.ingestSink);
       logsene.lastScheduled = SystemClock.elapsedRealtime();
       logsene.isActive = true;
       logsene.schedulePeriodicWorker();
@@ -113,6 +217,18 @@ public class Logsene {
     }
   }
 
+  /**
+   * Forgets the instance, so tests can initialize it again with other settings. The queues are
+   * left as they are.
+   */
+  static synchronized void resetForTesting() {
+    if (self != null) {
+      self.ingestBuffer.close();
+    }
+    initialized = false;
+    self = null;
+  }
+
   /**
    * Checks if the Logsene object is initialized.
    * @return <code>true</code> if initialized, <code>false</code> otherwise
@@ -144,10 +260,23 @@ public class Logsene {
 
   /**
    * Sets the default meta properties. These will be included with every request.
+   *
+   * The properties are read once, when the next message is logged, and stored only once for all
+   * messages; call this method again after modifying the object.
    * @param metadata the default meta properties, use null to disable.
    */
-  public static void setDefaultMeta(JSONObject metadata) {
+  public static synchronized void setDefaultMeta(JSONObject metadata) {
     defaultMeta = metadata;
+    defaultMetaVersion++;
+  }
+
+  /**
+   * Sets the http client used to send logs, so that they share connections with the app's other
+   * requests. Should be called before <code>init</code>, or at least before the first send.
+   * @param client the app's http client, use null to go back to the default client.
+   */
+  public static void setHttpClient(OkHttpClient client) {
+    LogseneClient.setHttpClient(client);
   }
 
   /**
@@ -192,15 +321,16 @@ public class Logsene {
    */
   public void log(String level, String message, Double lat, Double lon) {
     Utils.requireNonNull(message);
-    JSONObject obj = new JSONObject();
+    Severity severity = Severity.of(level);
+    if (!isLoggable(severity)) {
+      return;
+    }
+    long start = System.nanoTime();
+    long now = System.currentTimeMillis();
     try {
-      obj.put("level", level);
-      obj.put("message", message);
-      enrichWithLocation(obj);
-      addLocationToObject(obj, lat, lon);
-      addToQueue(obj);
-    } catch (JSONException e) {
-      // thrown when key is null in put(), so should never happen
+      addToQueue(EventEncoder.encodeMessage(level, message, getLocation(), lat, lon, now), severity, now,
+          message, 0, false, start);
+    } catch (IllegalArgumentException e) {
       Log.e(TAG, "Failed to construct json object", e);
     }
   }
@@ -331,28 +461,120 @@ public class Logsene {
    */
   public void log(String level, Throwable error, Double lat, Double lon) {
     Utils.requireNonNull(error);
-    JSONObject obj = new JSONObject();
+    Severity severity = Severity.of(level);
+    if (!isLoggable(severity)) {
+      return;
+    }
+    long start = System.nanoTime();
+    long now = System.currentTimeMillis();
     try {
-      obj.put("level", level);
-      obj.put("exception", error.getClass().toString());
-      obj.put("message", error.getMessage());
-      obj.put("stacktrace", Utils.getStackTrace(error));
-      enrichWithLocation(obj);
-      addLocationToObject(obj, lat, lon);
-      addToQueue(obj);
-    } catch (JSONException e) {
-      // thrown when key is null in put(), so should never happen
+      String errorMessage = error.getMessage();
+      long fingerprint = StackTraces.fingerprint(error);
+      // repeats only get a summary, the full stack trace was logged with the same fingerprint
+      boolean fullTrace = stackTraceWindow.claimFullTrace(fingerprint, now);
+      boolean queued = addToQueue(EventEncoder.encodeError(level, error.getClass().toString(), errorMessage,
+          fullTrace ? StackTraces.render(error, stackTraceMaxFrames, stackTraceMaxCauses) : null,
+          fullTrace ? null : StackTraces.topFrames(error, StackTraces.TOP_FRAMES),
+          StackTraces.toHex(fingerprint), getLocation(), lat, lon, now), severity, now,
+          errorMessage != null ? errorMessage : "", fingerprint, false, start);
+      if (!queued && fullTrace) {
+        stackTraceWindow.release(fingerprint);
+      }
+    } catch (IllegalArgumentException e) {
       Log.e(TAG, "Failed to construct json object", e);
     }
   }
 
+  /**
+   * Starts a structured debug message.
+   * @return the event to add fields to, finish it with <code>log</code>
+   */
+  public LogEvent atDebug() {
+    return at(Severity.DEBUG, "debug");
+  }
+
+  /**
+   * Starts a structured info message.
+   * @return the event to add fields to, finish it with <code>log</code>
+   */
+  public LogEvent atInfo() {
+    return at(Severity.INFO, "info");
+  }
+
+  /**
+   * Starts a structured warning message.
+   * @return the event to add fields to, finish it with <code>log</code>
+   */
+  public LogEvent atWarn() {
+    return at(Severity.WARN, "warn");
+  }
+
+  /**
+   * Starts a structured error message.
+   * @return the event to add fields to, finish it with <code>log</code>
+   */
+  public LogEvent atError() {
+    return at(Severity.ERROR, "error");
+  }
+
+  /**
+   * Starts a structured message.
+   * @param level value of the log `level` field, unknown levels are logged as an error and ranked
+   *              as <code>info</code>
+   * @return the event to add fields to, finish it with <code>log</code>
+   */
+  public LogEvent at(String level) {
+    Severity severity = level == null ? null : Severity.parse(level);
+    if (severity == null) {
+      Log.e(TAG, "Unknown level " + level + ", ranking the message as info");
+      severity = Severity.INFO;
+    }
+    return at(severity, level);
+  }
+
+  /**
+   * Sets the minimum level of messages to log, less severe messages are dropped right away.
+   *
+   * Applies to the <code>log</code>, <code>debug</code>, <code>info</code>, <code>warn</code>,
+   * <code>error</code> and <code>at</code> methods, but not to custom events.
+   * @param level one of <code>debug</code>, <code>info</code>, <code>warn</code> or
+   *              <code>error</code>, null to log everything; for unknown levels an error is logged
+   *              and the current minimum is kept
+   */
+  public void setMinLevel(String level) {
+    if (level == null) {
+      minSeverity = Severity.DEBUG;
+      return;
+    }
+    Severity severity = Severity.parse(level);
+    if (severity == null) {
+      Log.e(TAG, "Unknown level " + level + ", keeping the minimum level at " + minSeverity);
+      return;
+    }
+    minSeverity = severity;
+  }
+
   /**
    * Send a custom event.
    * @param object the event data.
    */
   public void event(JSONObject object) {
+    event(object, false);
+  }
+
+  /**
+   * Send a custom event, optionally keeping it in memory until it is sent instead of writing it to
+   * the persistent queue. Meant for high rate events which are worthless after the process died,
+   * e.g. breadcrumbs and performance samples; such events are lost if the process dies before
+   * they were sent.
+   * @param object the event data.
+   * @param inMemory whether to keep the event in memory only
+   */
+  public void event(JSONObject object, boolean inMemory) {
     Utils.requireNonNull(object);
-    addToQueue(object);
+    if (throttle.admit(Severity.of(object.optString("level", null)), null)) {
+      addToQueue(object, null, 0, inMemory);
+    }
   }
 
   /**
@@ -363,8 +585,121 @@ public class Logsene {
    * LogseneSendRequiresDeviceIdle or LogseneSendRequiresBatteryNotLow.
    */
   public void flushMessageQueue() {
-    Log.d(TAG, "Flushing message queue, message queue size = " + preflightQueue.size());
-    scheduleUnconstrainedWorker();
+    // the worker is scheduled from the ingest thread once buffered messages are persisted
+    flushRequested = true;
+    ingestBuffer.wakeUp();
+  }
+
+  /**
+   * Waits until all messages logged before this call are written to the persistent queue,
+   * including the summaries of repeats collapsed by LogseneCoalesceWindow.
+   *
+   * Logging methods only buffer messages in memory, a background thread persists them shortly
+   * after. This call is meant for tests and for application shutdown; it blocks, so avoid calling
+   * it from the main thread.
+   *
+   * @param timeout max time to wait
+   * @param unit unit of the timeout
+   * @return <code>true</code> if all messages were persisted, <code>false</code> on timeout
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean flushIngestBuffer(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    if (!ingestBuffer.flush(timeout, unit)) {
+      return false;
+    }
+    return ingestSink.coalescer == null || ingestSink.flushSummaries(deadline - System.nanoTime());
+  }
+
+  /**
+   * Returns counters of the offline message queue, e.g. how many messages were lost because it
+   * was full.
+   * @return <code>QueueStats</code> snapshot
+   */
+  public QueueStats getQueueStats() {
+    return preflightQueue.getStats();
+  }
+
+  /**
+   * Returns counters of the in-memory message queue, e.g. how many messages were dropped because
+   * it was full.
+   * @return <code>QueueStats</code> snapshot
+   */
+  public QueueStats getInMemoryQueueStats() {
+    return memoryQueue.getStats();
+  }
+
+  /**
+   * Returns counters of the in-memory ingest buffer, e.g. how far the persistence lags behind.
+   * @return <code>IngestStats</code> snapshot
+   */
+  public IngestStats getIngestStats() {
+    return ingestBuffer.getStats();
+  }
+
+  /**
+   * Returns the number of messages suppressed by rate limits and sampling.
+   * @return <code>ThrottleStats</code> snapshot
+   */
+  public ThrottleStats getThrottleStats() {
+    return throttle.getStats();
+  }
+
+  /**
+   * Returns connection counters of the http client, e.g. how many requests reused an already
+   * open connection instead of paying for a new handshake.
+   * @return <code>ConnectionStats</code> snapshot
+   */
+  public ConnectionStats getConnectionStats() {
+    return LogseneClient.getConnectionStats();
+  }
+
+  /**
+   * Returns the bulk request sizes currently chosen from the observed network conditions.
+   * @return <code>BulkStats</code> snapshot
+   */
+  public BulkStats getBulkStats() {
+    return QueueSender.getBulkStats();
+  }
+
+  /**
+   * Returns all counters and latency histograms in one snapshot, e.g. to export them into the
+   * application's own telemetry. Recording them is cheap and always on.
+   * @return <code>LogseneMetrics</code> snapshot
+   */
+  public LogseneMetrics getMetrics() {
+    Coalescer coalescer = ingestSink.coalescer;
+    return new LogseneMetrics(System.currentTimeMillis(), ingestBuffer.getStats(), preflightQueue.getStats(),
+        memoryQueue.getStats(), throttle.getStats(), QueueSender.getBulkStats(),
+        LogseneClient.getConnectionStats(), coalescer != null ? coalescer.getCoalesced() : 0);
+  }
+
+  /**
+   * Sets a listener which receives a metrics snapshot after each worker run.
+   * @param listener the listener, null to remove it
+   */
+  public void setMetricsListener(MetricsListener listener) {
+    this.metricsListener = listener;
+  }
+
+  /**
+   * Hands a metrics snapshot to the listener, if there is one; called by the worker.
+   */
+  static void notifyMetricsListener() {
+    if (!isInitialized()) {
+      // the worker can run in a process in which the app did not initialize logging yet
+      return;
+    }
+    Logsene logsene = self;
+    MetricsListener listener = logsene.metricsListener;
+    if (listener == null) {
+      return;
+    }
+    try {
+      listener.onMetrics(logsene.getMetrics());
+    } catch (RuntimeException e) {
+      Log.e(logsene.TAG, "Metrics listener failed", e);
+    }
   }
 
   private void config(Context context) {
@@ -400,32 +735,121 @@ public class Logsene {
     // optional fields
     receiverUrl = data.getString("LogseneReceiverUrl", RECEIVER_URL);
     maxOfflineMessages = data.getInt("LogseneMaxOfflineMessages", DEFAULT_MAX_OFFLINE_MESSAGES);
+    maxOfflineBytes = data.getInt("LogseneMaxOfflineBytes", DEFAULT_MAX_OFFLINE_BYTES);
+    queueStorage = QueueStorage.fromName(data.getString("LogseneQueueStorage"));
+    String level = data.getString("LogseneInMemoryLevel");
+    inMemoryLevel = level == null ? null : Severity.parse(level);
+    if (level != null && inMemoryLevel == null) {
+      // a typo must not move messages out of the persistent queue
+      Log.e(TAG, "Unknown LogseneInMemoryLevel " + level + ", keeping all messages in the persistent queue");
+    }
+    inMemoryMaxMessages = data.getInt("LogseneInMemoryMaxMessages", MemoryLogQueue.DEFAULT_MAX_SIZE);
+    inMemoryMaxBytes = data.getInt("LogseneInMemoryMaxBytes", (int) MemoryLogQueue.DEFAULT_MAX_BYTES);
+    inMemoryOverflow = MemoryLogQueue.Overflow.fromName(data.getString("LogseneInMemoryOverflow"));
+    ingestBufferSize = data.getInt("LogseneIngestBufferSize", DEFAULT_INGEST_BUFFER_SIZE);
     minTimeDelay = (long)(data.getInt("LogseneMinTimeDelay", DEFAULT_MIN_TIME_DELAY));
     timeInterval = (long)(data.getInt("LogseneInterval", DEFAULT_TIME_INTERVAL));
+    compression = Compression.fromName(data.getString("LogseneCompression"));
+    compressionLevel = data.getInt("LogseneCompressionLevel", Deflater.DEFAULT_COMPRESSION);
+    compressionMinSize = data.getInt("LogseneCompressionMinSize",
+        (int) LogseneClient.DEFAULT_COMPRESSION_MIN_SIZE);
+    maxIdleConnections = getInt(data, "LogseneMaxIdleConnections", LogseneClient.DEFAULT_MAX_IDLE_CONNECTIONS, 0);
+    keepAlive = getInt(data, "LogseneKeepAlive", (int) LogseneClient.DEFAULT_KEEP_ALIVE, 1);
+    connectTimeout = getInt(data, "LogseneConnectTimeout", (int) LogseneClient.DEFAULT_CONNECT_TIMEOUT, 0);
+    readTimeout = getInt(data, "LogseneReadTimeout", (int) LogseneClient.DEFAULT_IO_TIMEOUT, 0);
+    writeTimeout = getInt(data, "LogseneWriteTimeout", (int) LogseneClient.DEFAULT_IO_TIMEOUT, 0);
+    maxInFlightRequests = data.getInt("LogseneMaxInFlightRequests", QueueSender.DEFAULT_MAX_IN_FLIGHT);
+    maxAttempts = data.getInt("LogseneMaxAttempts", QueueSender.DEFAULT_MAX_ATTEMPTS);
+    retryWithWorkManager = data.getBoolean("LogseneRetryWithWorkManager", false);
     sendRequiresUnmeteredNetwork = data.getBoolean("LogseneSendRequiresUnmeteredNetwork", false);
     sendRequiresDeviceIdle = data.getBoolean("LogseneSendRequiresDeviceIdle", false);
     sendRequiresBatteryNotLow = data.getBoolean("LogseneSendRequiresBatteryNotLow", false);
     automaticLocationEnabled = data.getBoolean("LogseneAutomaticLocationEnabled", false);
+    setMinLevel(data.getString("LogseneMinLevel"));
+    rateLimits = new int[Severity.values().length];
+    rateLimits[Severity.DEBUG.ordinal()] = data.getInt("LogseneRateLimitDebug", 0);
+    rateLimits[Severity.INFO.ordinal()] = data.getInt("LogseneRateLimitInfo", 0);
+    rateLimits[Severity.WARN.ordinal()] = data.getInt("LogseneRateLimitWarn", 0);
+    rateLimits[Severity.ERROR.ordinal()] = data.getInt("LogseneRateLimitError", 0);
+    loggerRateLimit = data.getInt("LogseneRateLimitPerLogger", 0);
+    debugSampleRate = data.getFloat("LogseneSampleRateDebug", 1f);
+    infoSampleRate = data.getFloat("LogseneSampleRateInfo", 1f);
+    throttle = new IngestThrottle(rateLimits, loggerRateLimit, debugSampleRate, infoSampleRate);
+    coalesceWindow = data.getInt("LogseneCoalesceWindow", 0);
+    coalesceMaxGroups = data.getInt("LogseneCoalesceMaxGroups", Coalescer.DEFAULT_MAX_GROUPS);
+    stackTraceMaxFrames = data.getInt("LogseneStackTraceMaxFrames", StackTraces.DEFAULT_MAX_FRAMES);
+    stackTraceMaxCauses = data.getInt("LogseneStackTraceMaxCauses", StackTraces.DEFAULT_MAX_CAUSES);
+    stackTraceWindowMillis = data.getInt("LogseneStackTraceWindow", DEFAULT_STACK_TRACE_WINDOW);
+    stackTraceWindow = new FingerprintWindow(stackTraceWindowMillis);
 
     Log.d(TAG, String.format("Logsene is configured:\n"
                     + "  Type:                                   %s\n"
                     + "  Receiver URL:                           %s\n"
                     + "  Max Offline Messages:                   %d\n"
+                    + "  Max Offline Bytes:                      %d\n"
+                    + "  Queue Storage:                          %s\n"
+                    + "  In-Memory Level:                        %s\n"
+                    + "  In-Memory Max Messages/Bytes/Overflow:  %d/%d/%s\n"
+                    + "  Ingest Buffer Size:                     %d\n"
                     + "  Min Time Trigger:                       %d\n"
                     + "  Max Time Trigger:                       %d\n"
+                    + "  Compression:                            %s\n"
+                    + "  Max Idle Connections:                   %d\n"
+                    + "  Keep Alive:                             %d\n"
+                    + "  Connect/Read/Write Timeout:             %d/%d/%d\n"
+                    + "  Max In-Flight Requests:                 %d\n"
+                    + "  Max Attempts:                           %d\n"
+                    + "  Retry with WorkManager:                 %b\n"
+                    + "  Min Level:                              %s\n"
+                    + "  Rate Limits (debug/info/warn/error):    %d/%d/%d/%d\n"
+                    + "  Rate Limit per Logger:                  %d\n"
+                    + "  Sample Rates (debug/info):              %.2f/%.2f\n"
+                    + "  Coalesce Window / Max Groups:           %d/%d\n"
+                    + "  Stack Trace Frames/Causes/Window:       %d/%d/%d\n"
                     + "  Automatic location enabled:             %b\n"
                     + "  Send logs only on unmetered network:    %s\n"
                     + "  Send logs only when device is idle:     %s\n"
                     + "  Send logs only when battery is not low: %s",
-            type, receiverUrl, maxOfflineMessages, minTimeDelay, timeInterval, automaticLocationEnabled,
+            type, receiverUrl, maxOfflineMessages, maxOfflineBytes, queueStorage, inMemoryLevel,
+            inMemoryMaxMessages, inMemoryMaxBytes, inMemoryOverflow, ingestBufferSize, minTimeDelay,
+            timeInterval, compression, maxIdleConnections, keepAlive, connectTimeout, readTimeout,
+            writeTimeout, maxInFlightRequests, maxAttempts, retryWithWorkManager, minSeverity,
+            rateLimits[0], rateLimits[1], rateLimits[2], rateLimits[3], loggerRateLimit, debugSampleRate,
+            infoSampleRate, coalesceWindow, coalesceMaxGroups, stackTraceMaxFrames, stackTraceMaxCauses,
+            stackTraceWindowMillis, automaticLocationEnabled,
             sendRequiresUnmeteredNetwork, sendRequiresDeviceIdle, sendRequiresBatteryNotLow));
   }
 
+  /**
+   * Reads an int setting from the manifest, a value below <code>min</code> is logged and replaced
+   * by the default rather than failing the app.
+   */
+  private int getInt(Bundle data, String key, int defaultValue, int min) {
+    int value = data.getInt(key, defaultValue);
+    if (value < min) {
+      Log.e(TAG, "Invalid " + key + " " + value + ", using " + defaultValue);
+      return defaultValue;
+    }
+    return value;
+  }
+
   private Data getWorkerData() {
     return new Data.Builder()
             .putString(KEY_RECEIVERURL, receiverUrl)
             .putString(KEY_APPTOKEN, appToken)
             .putString(KEY_TYPE, type)
+            .putString(KEY_COMPRESSION, compression.name())
+            .putInt(KEY_COMPRESSION_LEVEL, compressionLevel)
+            .putLong(KEY_COMPRESSION_MIN_SIZE, compressionMinSize)
+            .putInt(KEY_MAX_IDLE_CONNECTIONS, maxIdleConnections)
+            .putLong(KEY_KEEP_ALIVE, keepAlive)
+            .putLong(KEY_CONNECT_TIMEOUT, connectTimeout)
+            .putLong(KEY_READ_TIMEOUT, readTimeout)
+            .putLong(KEY_WRITE_TIMEOUT, writeTimeout)
+            .putInt(KEY_MAX_IN_FLIGHT, maxInFlightRequests)
+            .putInt(KEY_MAX_ATTEMPTS, maxAttempts)
+            .putBoolean(KEY_RETRY_WITH_WORK_MANAGER, retryWithWorkManager)
+            .putString(KEY_QUEUE_STORAGE, queueStorage.name())
             .build();
   }
 
@@ -451,6 +875,7 @@ public class Logsene {
     OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(LogWorker.class)
         .addTag(FLUSH_WORKER_TAG)
         .setInputData(getWorkerData())
+        .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, WORKER_BACKOFF_DELAY, TimeUnit.MILLISECONDS)
         .build();
 
     WorkManager.getInstance().enqueueUniqueWork(FLUSH_WORKER_TAG,
@@ -462,6 +887,7 @@ public class Logsene {
             .addTag(FLUSH_WORKER_TAG)
             .setInputData(getWorkerData())
             .setConstraints(getWorkerConstraints())
+            .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, WORKER_BACKOFF_DELAY, TimeUnit.MILLISECONDS)
             .build();
 
     WorkManager.getInstance().enqueueUniqueWork(ONQUEUE_WORKER_TAG,
@@ -476,32 +902,218 @@ public class Logsene {
         .addTag(INTERVAL_WORKER_TAG)
         .setInputData(getWorkerData())
         .setConstraints(workerConstraints)
+        .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, WORKER_BACKOFF_DELAY, TimeUnit.MILLISECONDS)
         .build();
 
     WorkManager.getInstance().enqueueUniquePeriodicWork(INTERVAL_WORKER_TAG,
         ExistingPeriodicWorkPolicy.KEEP, workRequest);
   }
 
-  private void addToQueue(JSONObject obj) {
-    if (preflightQueue == null) {
+  /**
+   * Queues a custom event, called by {@link LogseneHandler} once the message was admitted.
+   * @param obj the event
+   * @param template message template identifying repeats, null if the event is never coalesced
+   * @param fingerprint fingerprint of the exception, 0 if none
+   */
+  void addToQueue(JSONObject obj, String template, long fingerprint) {
+    addToQueue(obj, template, fingerprint, false);
+  }
+
+  /**
+   * Queues a custom event.
+   * @param inMemory whether to keep the event in memory only, regardless of its level
+   * @return <code>false</code> if the event was dropped
+   */
+  private boolean addToQueue(JSONObject obj, String template, long fingerprint, boolean inMemory) {
+    if (ingestBuffer == null) {
       Log.e(TAG, "Message queue has not been initialized, message dropped.");
-      return;
+      return false;
     }
+    long start = System.nanoTime();
 
     assert obj != null;
+    // if user has specified some value for this field, we don't touch it, otherwise the shared
+    // snapshot is stored once and added to the message when it is sent
+    String meta = obj.has("meta") ? null : getMetaSnapshot();
     enrich(obj);
 
-    preflightQueue.add(obj);
+    // serialize on the caller thread, the object might be modified after this call returns
+    String serialized = obj.toString();
+    String data = serialized;
+    if (!obj.has(IngestThrottle.SUPPRESSED_FIELD)) {
+      data = throttle.attachCounts(serialized);
+    }
+    // a message carrying suppressed counts must be stored, even if it repeats
+    Severity severity = Severity.of(obj.optString("level", null));
+    QueueEntry entry = new QueueEntry(data, severity, System.currentTimeMillis(), meta,
+        data == serialized ? template : null, fingerprint, inMemory || isInMemoryLevel(severity));
+    boolean queued = ingestBuffer.offer(entry);
+    if (!queued) {
+      Log.w(TAG, "Ingest buffer is full, message dropped.");
+      if (fingerprint != 0 && obj.has("stacktrace")) {
+        // the full stack trace claimed by putStackTrace() was never stored
+        stackTraceWindow.release(fingerprint);
+      }
+    }
+    Metrics.enqueueNanos.record(System.nanoTime() - start);
+    return queued;
+  }
+
+  /**
+   * Queues a message encoded by {@link EventEncoder}, which never has a meta field of its own.
+   * @param inMemory whether to keep the message in memory only, regardless of its level
+   * @param startNanos when the logging call started encoding the message, from <code>System.nanoTime()</code>
+   * @return <code>false</code> if the message was dropped
+   */
+  private boolean addToQueue(String data, Severity severity, long timestamp, String template, long fingerprint,
+                             boolean inMemory, long startNanos) {
+    if (ingestBuffer == null) {
+      Log.e(TAG, "Message queue has not been initialized, message dropped.");
+      return false;
+    }
+
+    String counted = throttle.attachCounts(data);
+    QueueEntry entry = new QueueEntry(counted, severity, timestamp, getMetaSnapshot(),
+        counted == data ? template : null, fingerprint, inMemory || isInMemoryLevel(severity));
+    boolean queued = ingestBuffer.offer(entry);
+    if (!queued) {
+      Log.w(TAG, "Ingest buffer is full, message dropped.");
+    }
+    Metrics.enqueueNanos.record(System.nanoTime() - startNanos);
+    return queued;
+  }
+
+  /**
+   * Returns whether messages of a severity are kept in memory only, as configured with
+   * LogseneInMemoryLevel.
+   */
+  private boolean isInMemoryLevel(Severity severity) {
+    return inMemoryLevel != null && severity.rank <= inMemoryLevel.rank;
+  }
+
+  /**
+   * Writes buffered messages to the persistent and in-memory queues and schedules the worker, runs
+   * on the ingest thread.
+   */
+  private class IngestSink implements IngestBuffer.Sink<QueueEntry> {
+    private final Coalescer coalescer =
+        coalesceWindow > 0 ? new Coalescer(coalesceWindow, coalesceMaxGroups) : null;
+    private final List<QueueEntry> entries = new ArrayList<>();
+    private final List<QueueEntry> persistentEntries = new ArrayList<>();
+    private final List<QueueEntry> inMemoryEntries = new ArrayList<>();
+    private final Object summaryLock = new Object();
+    // guarded by summaryLock, flushes of the coalescer asked for and done by the ingest thread
+    private long summaryRequests;
+    private long summaryFlushes;
+
+    /**
+     * Asks the ingest thread to persist the summaries of all open coalescer windows and waits
+     * until it did.
+     * @param timeoutNanos max time to wait
+     * @return <code>true</code> if the summaries were persisted, <code>false</code> on timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean flushSummaries(long timeoutNanos) throws InterruptedException {
+      long deadline = System.nanoTime() + timeoutNanos;
+      synchronized (summaryLock) {
+        long request = ++summaryRequests;
+        ingestBuffer.wakeUp();
+        while (summaryFlushes < request) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            return false;
+          }
+          TimeUnit.NANOSECONDS.timedWait(summaryLock, remaining);
+        }
+        return true;
+      }
+    }
+
+    @Override
+    public void persist(List<QueueEntry> batch) {
+      if (coalescer == null) {
+        store(batch);
+        return;
+      }
+      coalescer.process(batch, System.currentTimeMillis(), entries);
+      store(entries);
+      entries.clear();
+    }
+
+    @Override
+    public long onIdle() {
+      long wakeUp = -1;
+      if (coalescer != null) {
+        long requests;
+        synchronized (summaryLock) {
+          requests = summaryRequests;
+        }
+        // summaries are due once their window ended, or right away when the app asks to flush
+        if (flushRequested || requests > summaryFlushes) {
+          coalescer.flush(entries);
+        } else {
+          coalescer.expire(System.currentTimeMillis(), entries);
+        }
+        store(entries);
+        entries.clear();
+        wakeUp = coalescer.millisUntilNextSummary(System.currentTimeMillis());
+        if (requests > summaryFlushes) {
+          synchronized (summaryLock) {
+            summaryFlushes = requests;
+            summaryLock.notifyAll();
+          }
+        }
+      }
+      if (flushRequested) {
+        flushRequested = false;
+        Log.d(TAG, "Flushing message queue, message queue size = " + preflightQueue.size());
+        scheduleUnconstrainedWorker();
+      }
+      return wakeUp;
+    }
+
+    private void store(List<QueueEntry> batch) {
+      if (batch.isEmpty()) {
+        return;
+      }
+      List<QueueEntry> persistent = batch;
+      if (hasInMemory(batch)) {
+        for (QueueEntry entry : batch) {
+          (entry.inMemory ? inMemoryEntries : persistentEntries).add(entry);
+        }
+        persistent = persistentEntries;
+        long dropped = memoryQueue.addAll(inMemoryEntries);
+        inMemoryEntries.clear();
+        if (dropped > 0) {
+          Log.d(TAG, "In-memory message queue overflowing (max " + inMemoryMaxMessages + " messages, "
+              + inMemoryMaxBytes + " bytes), " + dropped + " logs were dropped.");
+        }
+      }
+      if (!persistent.isEmpty()) {
+        long evicted = preflightQueue.addAll(persistent);
+        if (evicted > 0) {
+          Log.d(TAG, "Message queue overflowing (max " + maxOfflineMessages + " messages, "
+              + maxOfflineBytes + " bytes), " + evicted + " logs were dropped.");
+        }
+      }
+      persistentEntries.clear();
+
+      long size = preflightQueue.size() + memoryQueue.size();
 
-    if (preflightQueue.size() == maxOfflineMessages) {
-      Log.d(TAG, "Message queue overflowing (" + preflightQueue.size() + " > "
-          + maxOfflineMessages + "), some logs might be lost.");
+      boolean canSend = lastScheduled == -1 || SystemClock.elapsedRealtime() - lastScheduled > minTimeDelay;
+      if (size >= DEFAULT_MIN_BATCH_SIZE && canSend && isActive) {
+        scheduleConstrainedWorker();
+        lastScheduled = SystemClock.elapsedRealtime();
+      }
     }
 
-    boolean canSend = lastScheduled == -1 || SystemClock.elapsedRealtime() - lastScheduled > minTimeDelay;
-    if (preflightQueue.size() >= DEFAULT_MIN_BATCH_SIZE && canSend && isActive) {
-      scheduleConstrainedWorker();
-      lastScheduled = SystemClock.elapsedRealtime();
+    private boolean hasInMemory(List<QueueEntry> batch) {
+      for (int i = 0; i < batch.size(); i++) {
+        if (batch.get(i).inMemory) {
+          return true;
+        }
+      }
+      return false;
     }
   }
 
@@ -513,17 +1125,100 @@ public class Logsene {
     return versionCode;
   }
 
-  private void enrichWithLocation(JSONObject obj) throws JSONException {
-    if (locationListener != null) {
-      obj.put("location", locationListener.getLocationAsString());
+  /**
+   * Checks the minimum level and the rate limits, before any work is done for the message.
+   */
+  private boolean isLoggable(Severity severity) {
+    return severity.rank >= minSeverity.rank && throttle.admit(severity, null);
+  }
+
+  /**
+   * Adds the stack trace of a throwable to a message from a logging framework, in full or, if it was
+   * logged recently, as a short summary.
+   * @param obj the message
+   * @param error the throwable
+   * @return fingerprint of the throwable
+   * @throws JSONException never, keys are not null
+   */
+  long putStackTrace(JSONObject obj, Throwable error) throws JSONException {
+    long fingerprint = StackTraces.fingerprint(error);
+    if (stackTraceWindow.claimFullTrace(fingerprint, System.currentTimeMillis())) {
+      obj.put("stacktrace", StackTraces.render(error, stackTraceMaxFrames, stackTraceMaxCauses));
+    } else {
+      obj.put("topFrames", StackTraces.topFrames(error, StackTraces.TOP_FRAMES));
     }
+    obj.put("fingerprint", StackTraces.toHex(fingerprint));
+    return fingerprint;
   }
 
-  private void addLocationToObject(JSONObject obj, Double lat, Double lon) throws JSONException {
-    if (lat != null && lon != null) {
-      obj.put("lat", lat);
-      obj.put("lon", lon);
+  /**
+   * Checks the rate limits of a message from a logging framework, which does its own level
+   * filtering.
+   * @param level the level of the message
+   * @param logger name of the logger, null if unknown
+   * @return <code>true</code> if the message should be logged
+   */
+  boolean admit(String level, String logger) {
+    return throttle.admit(Severity.of(level), logger);
+  }
+
+  private LogEvent at(Severity severity, String level) {
+    if (!isLoggable(severity)) {
+      return LogEvent.DISABLED;
     }
+    return LogEvent.obtain(this, severity, level);
+  }
+
+  /**
+   * Queues a structured message, called by {@link LogEvent#log(String)}.
+   */
+  void log(LogEvent event, String message) {
+    long start = System.nanoTime();
+    long now = event.hasTimestamp ? event.timestamp : System.currentTimeMillis();
+    try {
+      addToQueue(EventEncoder.encodeEvent(event, message, getLocation(), now), event.severity, now,
+          message != null ? message : "", 0, event.inMemory, start);
+    } catch (IllegalArgumentException e) {
+      Log.e(TAG, "Failed to construct json object", e);
+    }
+  }
+
+  private String getLocation() {
+    return locationListener != null ? locationListener.getLocationAsString() : null;
+  }
+
+  private String getMetaSnapshot() {
+    int version = defaultMetaVersion;
+    MetaSnapshot snapshot = metaSnapshot;
+    if (snapshot == null || snapshot.version != version) {
+      // racing threads might build it twice, which is harmless
+      snapshot = new MetaSnapshot(version, buildMeta().toString());
+      metaSnapshot = snapshot;
+    }
+    return snapshot.json;
+  }
+
+  private JSONObject buildMeta() {
+    JSONObject metadata = new JSONObject();
+    try {
+      metadata.put("versionName", getVersionName());
+      metadata.put("versionCode", getVersionCode());
+      metadata.put("osRelease", Build.VERSION.RELEASE);
+      metadata.put("osType", "Android");
+      metadata.put("uuid", uuid);
+      JSONObject defaults = defaultMeta;
+      if (defaults != null) {
+        Iterator<String> keys = defaults.keys();
+        while (keys.hasNext()) {
+          String key = keys.next();
+          metadata.put(key, defaults.get(key));
+        }
+      }
+    } catch (JSONException e) {
+      // thrown when key is null in put(), so should never happen
+      Log.e(TAG, "Failed to construct json object", e);
+    }
+    return metadata;
   }
 
   private void enrich(JSONObject obj) {
@@ -533,24 +1228,6 @@ public class Logsene {
         obj.put("@timestamp", Utils.iso8601());
       }
 
-      // if user has specified some value for this field, we don't touch it
-      if (!obj.has("meta")) {
-        JSONObject metadata = new JSONObject();
-        metadata.put("versionName", getVersionName());
-        metadata.put("versionCode", getVersionCode());
-        metadata.put("osRelease", Build.VERSION.RELEASE);
-        metadata.put("osType", "Android");
-        metadata.put("uuid", uuid);
-        if (defaultMeta != null) {
-          Iterator<String> keys = defaultMeta.keys();
-          while (keys.hasNext()) {
-            String key = keys.next();
-            metadata.put(key, defaultMeta.get(key));
-          }
-        }
-        obj.put("meta", metadata);
-      }
-
       // create a location out of lat and lon fields
       if (obj.has("lat") && obj.has("lon")) {
         JSONObject geo = new JSONObject();
@@ -565,4 +1242,14 @@ public class Logsene {
       Log.e(TAG, "Failed to construct json object", e);
     }
   }
+
+  private static class MetaSnapshot {
+    final int version;
+    final String json;
+
+    MetaSnapshot(int version, String json) {
+      this.version = version;
+      this.json = json;
+    }
+  }
 }
@@ -25,8 +25,9 @@ public class LogseneHandler extends Handler {
 
   @Override
   public void publish(LogRecord record) {
-    // first check if this record should be logged (log level and filters are checked)
-    if (!isLoggable(record)) {
+    // first check if this record should be logged (log level and filters are checked), and then
+    // the rate limits, before building the message
+    if (!isLoggable(record) || !logsene.admit(record.getLevel().toString(), record.getLoggerName())) {
       return;
     }
     JSONObject obj = new JSONObject();
@@ -39,13 +40,14 @@ public class LogseneHandler extends Handler {
       obj.put("threadId", record.getThreadID());
       obj.put("sourceClass", record.getSourceClassName());
       obj.put("sourceMethod", record.getSourceMethodName());
+      long fingerprint = 0;
       if (record.getThrown() != null) {
-        obj.put("stacktrace", Utils.getStackTrace(record.getThrown()));
+        fingerprint = logsene.putStackTrace(obj, record.getThrown());
       }
       if (locationListener != null && locationListener.isLocationPresent()) {
         obj.put("location", locationListener.getLocationAsString());
       }
-      logsene.event(obj);
+      logsene.addToQueue(obj, record.getMessage(), fingerprint);
     } catch (JSONException e) {
       // should never happen, as exception is thrown when key in put() is null
       reportError("Unable to construct json object", e, ErrorManager.GENERIC_FAILURE);
@@ -0,0 +1,183 @@
+package com.sematext.logseneandroid;
+
+import com.sematext.logseneandroid.logsene.ConnectionStats;
+
+/**
+ * Snapshot of all counters and histograms of the library, from the logging call to the
+ * acknowledgement of the receiver.
+ *
+ * Counters and histograms count since the process started; queue sizes are current values.
+ */
+public final class LogseneMetrics {
+  private final long timestamp;
+  private final IngestStats ingestStats;
+  private final QueueStats queueStats;
+  private final QueueStats inMemoryQueueStats;
+  private final ThrottleStats throttleStats;
+  private final BulkStats bulkStats;
+  private final ConnectionStats connectionStats;
+  private final long coalesced;
+  private final HistogramSnapshot enqueueNanos;
+  private final HistogramSnapshot deliveryMillis;
+  private final HistogramSnapshot bulkDocs;
+  private final HistogramSnapshot bulkBytes;
+  private final HistogramSnapshot httpMillis;
+  private final HistogramSnapshot workerRunMillis;
+  private final long[] statusClasses;
+  private final long retries;
+
+  LogseneMetrics(long timestamp, IngestStats ingestStats, QueueStats queueStats, QueueStats inMemoryQueueStats,
+                 ThrottleStats throttleStats, BulkStats bulkStats, ConnectionStats connectionStats,
+                 long coalesced) {
+    this.timestamp = timestamp;
+    this.ingestStats = ingestStats;
+    this.queueStats = queueStats;
+    this.inMemoryQueueStats = inMemoryQueueStats;
+    this.throttleStats = throttleStats;
+    this.bulkStats = bulkStats;
+    this.connectionStats = connectionStats;
+    this.coalesced = coalesced;
+    this.enqueueNanos = Metrics.enqueueNanos.snapshot();
+    this.deliveryMillis = Metrics.deliveryMillis.snapshot();
+    this.bulkDocs = Metrics.bulkDocs.snapshot();
+    this.bulkBytes = Metrics.bulkBytes.snapshot();
+    this.httpMillis = Metrics.httpMillis.snapshot();
+    this.workerRunMillis = Metrics.workerRunMillis.snapshot();
+    this.statusClasses = new long[Metrics.statusClasses.length()];
+    for (int i = 0; i < statusClasses.length; i++) {
+      statusClasses[i] = Metrics.statusClasses.get(i);
+    }
+    this.retries = Metrics.retries.get();
+  }
+
+  /**
+   * Time the snapshot was taken, in milliseconds since epoch.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Counters of the in-memory ingest buffer, including messages dropped because it was full.
+   */
+  public IngestStats getIngestStats() {
+    return ingestStats;
+  }
+
+  /**
+   * Current size of the offline queue and its eviction counters.
+   */
+  public QueueStats getQueueStats() {
+    return queueStats;
+  }
+
+  /**
+   * Current size of the in-memory queue and the number of messages it dropped because it was full.
+   */
+  public QueueStats getInMemoryQueueStats() {
+    return inMemoryQueueStats;
+  }
+
+  /**
+   * Number of messages suppressed by rate limits and sampling.
+   */
+  public ThrottleStats getThrottleStats() {
+    return throttleStats;
+  }
+
+  /**
+   * Current bulk request limits and the number of messages rejected by the receiver.
+   */
+  public BulkStats getBulkStats() {
+    return bulkStats;
+  }
+
+  /**
+   * Connection counters of the http client.
+   */
+  public ConnectionStats getConnectionStats() {
+    return connectionStats;
+  }
+
+  /**
+   * Number of repeated messages collapsed into summaries.
+   */
+  public long getCoalesced() {
+    return coalesced;
+  }
+
+  /**
+   * Time logging calls spent encoding and buffering a message, in nanoseconds.
+   */
+  public HistogramSnapshot getEnqueueNanos() {
+    return enqueueNanos;
+  }
+
+  /**
+   * Time from logging a message until the receiver acknowledged it, in milliseconds.
+   */
+  public HistogramSnapshot getDeliveryMillis() {
+    return deliveryMillis;
+  }
+
+  /**
+   * Number of messages in each bulk request sent, including retried requests.
+   */
+  public HistogramSnapshot getBulkDocs() {
+    return bulkDocs;
+  }
+
+  /**
+   * Size of the messages in each bulk request sent in bytes, before compression.
+   */
+  public HistogramSnapshot getBulkBytes() {
+    return bulkBytes;
+  }
+
+  /**
+   * Time from sending a bulk request until its response was received, in milliseconds.
+   */
+  public HistogramSnapshot getHttpMillis() {
+    return httpMillis;
+  }
+
+  /**
+   * Duration of the worker runs which sent the offline queue, in milliseconds.
+   */
+  public HistogramSnapshot getWorkerRunMillis() {
+    return workerRunMillis;
+  }
+
+  /**
+   * Number of bulk responses with a status of the given class.
+   * @param statusClass 1 to 5 for 1xx to 5xx responses, 0 for requests that failed without a
+   *                    response, e.g. on a network error or timeout
+   * @return the count
+   */
+  public long getStatusCount(int statusClass) {
+    if (statusClass < 0 || statusClass >= statusClasses.length) {
+      throw new IllegalArgumentException("statusClass must be between 0 and " + (statusClasses.length - 1));
+    }
+    return statusClasses[statusClass];
+  }
+
+  /**
+   * Number of times sending was retried after a failure, in process or by asking WorkManager to
+   * run the worker again.
+   */
+  public long getRetries() {
+    return retries;
+  }
+
+  @Override
+  public String toString() {
+    return "LogseneMetrics{timestamp=" + timestamp + ", ingestStats=" + ingestStats + ", queueStats=" + queueStats
+        + ", inMemoryQueueStats=" + inMemoryQueueStats + ", throttleStats=" + throttleStats + ", bulkStats="
+        + bulkStats + ", connectionStats=" + connectionStats
+        + ", coalesced=" + coalesced + ", enqueueNanos=" + enqueueNanos + ", deliveryMillis=" + deliveryMillis
+        + ", bulkDocs=" + bulkDocs + ", bulkBytes=" + bulkBytes + ", httpMillis=" + httpMillis
+        + ", workerRunMillis=" + workerRunMillis + ", status={failed=" + statusClasses[0] + ", 1xx="
+        + statusClasses[1] + ", 2xx=" + statusClasses[2] + ", 3xx=" + statusClasses[3] + ", 4xx="
+        + statusClasses[4] + ", 5xx=" + statusClasses[5] + "}, retries=" + retries + "}";
+  }
+}
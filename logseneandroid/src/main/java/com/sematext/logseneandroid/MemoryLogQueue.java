@@ -0,0 +1,494 @@
+package com.sematext.logseneandroid;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Bounded FIFO queue kept in memory only, for high rate messages which are worthless after the
+ * process died, e.g. breadcrumbs and performance samples. Adding messages never touches the disk,
+ * they are lost if the process dies before the worker sent them.
+ *
+ * The queue is limited by the number of messages and by an estimate of the memory they take, see
+ * {@link #RECORD_OVERHEAD_BYTES}. When a message does not fit, the {@link Overflow} policy decides
+ * whether the oldest messages or the new one are dropped; both count as evicted in the stats.
+ *
+ * Records live in a ring in id order. Records acknowledged out of order are only cleared, the ring
+ * head moves past them once all older records are gone. Until then their slots count against both
+ * limits, so a lease stuck at the head cannot make the ring grow without bound. Leases are kept in memory like the
+ * records, so there is one instance per process, see {@link #open}.
+ */
+class MemoryLogQueue implements LogQueue {
+  private static final String TAG = "MemoryLogQueue";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  static final int DEFAULT_MAX_SIZE = 10000;
+  static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+  /**
+   * Estimated memory taken by a record besides its data: the record object, the array holding
+   * the data and the slot in the ring.
+   */
+  static final int RECORD_OVERHEAD_BYTES = 64;
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  /**
+   * What to do with a message that does not fit into the queue.
+   */
+  enum Overflow {
+    /**
+     * Evict the oldest messages until the new one fits, the default.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Drop the new message, keeping the ones already queued.
+     */
+    DROP_NEWEST;
+
+    /**
+     * Parses the policy name, as used in the application manifest.
+     * @param name <code>drop_oldest</code> or <code>drop_newest</code>, case insensitive
+     * @return the policy, <code>DROP_OLDEST</code> if the name is null, empty or unknown
+     */
+    static Overflow fromName(String name) {
+      if (name == null || name.trim().isEmpty()) {
+        return DROP_OLDEST;
+      }
+      try {
+        return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+      } catch (IllegalArgumentException e) {
+        Log.e(TAG, "Unknown overflow policy " + name + ", dropping the oldest messages");
+        return DROP_OLDEST;
+      }
+    }
+  }
+
+  /**
+   * Queued message, its data is cleared once it is removed.
+   */
+  private static final class Record {
+    byte[] data;
+    final long timestamp;
+    final long metaId;
+    long leaseId;
+    long leaseExpiry;
+
+    Record(byte[] data, long timestamp, long metaId) {
+      this.data = data;
+      this.timestamp = timestamp;
+      this.metaId = metaId;
+    }
+
+    boolean isInRange(QueueRange range) {
+      return data != null && (range.leaseId == 0 || leaseId == range.leaseId);
+    }
+  }
+
+  private static MemoryLogQueue instance;
+
+  private int maxSize;
+  private long maxBytes;
+  private Overflow overflow;
+
+  // ring of records, the one at head has id headId and the following ones have consecutive ids
+  private Record[] records = new Record[INITIAL_CAPACITY];
+  private int head;
+  private int count;
+  private long headId = 1;
+  private long size;
+  private long bytes;
+  private long memory;
+  private long evictedCount;
+  private long evictionCount;
+  private long requeuedCount;
+  private long quarantinedCount;
+
+  private final MetaInterner metas = new MetaInterner();
+
+  /**
+   * Returns the queue of this process, created with default limits if needed.
+   *
+   * @return the queue
+   */
+  static synchronized MemoryLogQueue open() {
+    if (instance == null) {
+      instance = new MemoryLogQueue(DEFAULT_MAX_SIZE, DEFAULT_MAX_BYTES, Overflow.DROP_OLDEST);
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the queue of this process with new limits, created if needed.
+   *
+   * @param maxSize max number of queued messages
+   * @param maxBytes max memory taken by the queued messages in bytes
+   * @param overflow what to do with messages that do not fit
+   * @return the queue
+   */
+  static synchronized MemoryLogQueue open(int maxSize, long maxBytes, Overflow overflow) {
+    if (instance == null) {
+      instance = new MemoryLogQueue(maxSize, maxBytes, overflow);
+    } else {
+      instance.setLimits(maxSize, maxBytes, overflow);
+    }
+    return instance;
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize max number of queued messages
+   * @param maxBytes max memory taken by the queued messages in bytes
+   * @param overflow what to do with messages that do not fit
+   */
+  MemoryLogQueue(int maxSize, long maxBytes, Overflow overflow) {
+    setLimits(maxSize, maxBytes, overflow);
+  }
+
+  private synchronized void setLimits(int maxSize, long maxBytes, Overflow overflow) {
+    if (maxSize <= 0 || maxBytes <= 0) {
+      throw new IllegalArgumentException("maxSize and maxBytes must be greater than 0");
+    }
+    Utils.requireNonNull(overflow);
+    this.maxSize = maxSize;
+    this.maxBytes = maxBytes;
+    this.overflow = overflow;
+  }
+
+  @Override
+  public synchronized long size() {
+    return size;
+  }
+
+  @Override
+  public synchronized long bytes() {
+    return bytes;
+  }
+
+  /**
+   * Returns the estimated memory taken by the queued messages and by the slots of removed ones
+   * still in the ring, which is kept below the max bytes.
+   * @return size in bytes
+   */
+  synchronized long memoryBytes() {
+    return memory;
+  }
+
+  /**
+   * Pushes already serialized elements to queue. Messages which do not fit are dropped according
+   * to the overflow policy, a message bigger than the whole queue is always dropped.
+   *
+   * @param data serialized messages
+   * @return number of dropped messages, either evicted old ones or rejected new ones
+   */
+  @Override
+  public synchronized long addAll(Collection<QueueEntry> data) {
+    Utils.requireNonNull(data);
+    long evicted = 0;
+    for (QueueEntry entry : data) {
+      byte[] encoded = entry.data.getBytes(UTF_8);
+      long cost = encoded.length + RECORD_OVERHEAD_BYTES;
+      if (cost > maxBytes) {
+        evicted++;
+        continue;
+      }
+      if (overflow == Overflow.DROP_NEWEST) {
+        if (count >= maxSize || memory + cost > maxBytes) {
+          evicted++;
+          continue;
+        }
+      } else {
+        // evicting the oldest record also drops the cleared slots behind it
+        while (count >= maxSize || memory + cost > maxBytes) {
+          evictOldest();
+          evicted++;
+        }
+      }
+      append(encoded, entry.timestamp, internMeta(entry.meta));
+    }
+    if (evicted > 0) {
+      evictedCount += evicted;
+      evictionCount++;
+    }
+    return evicted;
+  }
+
+  @Override
+  public synchronized byte[] readMeta(long metaId) {
+    return metas.get(metaId);
+  }
+
+  @Override
+  public synchronized QueueStats getStats() {
+    return new QueueStats(size, bytes, evictedCount, evictionCount, requeuedCount, quarantinedCount);
+  }
+
+  /**
+   * Retrieves up to specified amount of elements from queue, without removing them. Records which
+   * are not well formed are dropped, so fewer than <code>max</code> elements might be returned even
+   * if the queue holds more.
+   * @param max max number of elements to return.
+   * @return list of elements
+   */
+  @Override
+  public synchronized List<JSONObject> peek(int max) {
+    if (max <= 0) {
+      throw new IllegalArgumentException("max must be greater than 0");
+    }
+    List<JSONObject> results = new ArrayList<>();
+    for (int i = 0; i < count && results.size() < max; i++) {
+      Record record = records[slot(i)];
+      if (record.data == null) {
+        continue;
+      }
+      try {
+        JSONObject o = new JSONObject(new String(record.data, UTF_8));
+        byte[] meta = metas.get(record.metaId);
+        if (meta != null) {
+          o.put("meta", new JSONObject(new String(meta, UTF_8)));
+        }
+        results.add(o);
+      } catch (JSONException e) {
+        clear(record);
+        quarantinedCount++;
+        Log.e(TAG, "Dropped corrupt record " + (headId + i));
+      }
+    }
+    trimHead();
+    return results;
+  }
+
+  @Override
+  public synchronized long lastId() {
+    for (int i = count - 1; i >= 0; i--) {
+      if (records[slot(i)].data != null) {
+        return headId + i;
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public synchronized QueueRange lease(long leaseId, long afterId, long maxId, int max, long maxBytes, long now,
+                                       long leaseMillis) {
+    Leases.checkArguments(leaseId, max, maxBytes, leaseMillis);
+    if (size == 0) {
+      return null;
+    }
+    long expiry = now + leaseMillis;
+    Leases.Builder leased = new Leases.Builder(leaseId, max, maxBytes, size);
+    for (int i = indexOf(afterId + 1); i < count && !leased.isFull(); i++) {
+      long id = headId + i;
+      if (id > maxId) {
+        break;
+      }
+      Record record = records[slot(i)];
+      if (record.data == null || !Leases.isLeasable(record.leaseId, record.leaseExpiry, now, expiry)) {
+        continue;
+      }
+      if (!leased.fits(record.data.length)) {
+        break;
+      }
+      record.leaseId = leaseId;
+      record.leaseExpiry = expiry;
+      leased.add(id, record.data.length, record.timestamp);
+    }
+    return leased.build();
+  }
+
+  @Override
+  public synchronized void release(QueueRange range) {
+    Utils.requireNonNull(range);
+    if (range.leaseId == 0) {
+      return;
+    }
+    for (int i = indexOf(range.firstId), to = indexOf(range.lastId + 1); i < to; i++) {
+      Record record = records[slot(i)];
+      if (record.leaseId == range.leaseId) {
+        record.leaseId = 0;
+        record.leaseExpiry = 0;
+      }
+    }
+  }
+
+  /**
+   * Reads the raw stored elements of a range, oldest first. Record data never changes, so only
+   * the arrays are collected while holding the lock; the reader is called without it and does
+   * not block adding records.
+   *
+   * @param range the range to read
+   * @param reader receives each element
+   * @throws IOException if thrown by the reader
+   */
+  @Override
+  public void read(QueueRange range, RecordReader reader) throws IOException {
+    Utils.requireNonNull(range);
+    Utils.requireNonNull(reader);
+    byte[][] data = new byte[range.count][];
+    long[] metaIds = new long[range.count];
+    long[] ids = new long[range.count];
+    int found = 0;
+    synchronized (this) {
+      for (int i = indexOf(range.firstId), to = indexOf(range.lastId + 1); i < to && found < ids.length; i++) {
+        Record record = records[slot(i)];
+        if (record.isInRange(range)) {
+          data[found] = record.data;
+          metaIds[found] = record.metaId;
+          ids[found++] = headId + i;
+        }
+      }
+    }
+    for (int i = 0; i < found; i++) {
+      reader.read(ids[i], data[i], metaIds[i]);
+    }
+  }
+
+  /**
+   * Removes all elements of a range which are still in the queue, except for the given ones which
+   * are appended to the queue again or dropped as corrupt.
+   *
+   * @param range the range to remove
+   * @param requeueIds ids of the elements to move to the tail, e.g. to send them again later, may
+   *                   be null
+   * @param quarantineIds ids of corrupt elements, may be null
+   */
+  @Override
+  public synchronized void remove(QueueRange range, long[] requeueIds, long[] quarantineIds) {
+    Utils.requireNonNull(range);
+    if (requeueIds != null) {
+      for (long id : requeueIds) {
+        Record record = id >= headId && id < headId + count ? records[slot((int) (id - headId))] : null;
+        if (record != null && record.data != null) {
+          append(record.data, record.timestamp, record.metaId);
+          requeuedCount++;
+        }
+      }
+    }
+    if (quarantineIds != null && quarantineIds.length > 0) {
+      quarantinedCount += quarantineIds.length;
+      Log.e(TAG, "Dropped " + quarantineIds.length + " corrupt records");
+    }
+    for (int i = indexOf(range.firstId), to = indexOf(range.lastId + 1); i < to; i++) {
+      Record record = records[slot(i)];
+      if (record.isInRange(range)) {
+        clear(record);
+      }
+    }
+    trimHead();
+  }
+
+  /**
+   * Forgets the process wide queue, so that tests can start with a fresh one.
+   */
+  static synchronized void resetForTesting() {
+    instance = null;
+  }
+
+  private int slot(int index) {
+    return (head + index) & (records.length - 1);
+  }
+
+  /**
+   * Returns the ring index of an id, clamped to the records in the ring.
+   */
+  private int indexOf(long id) {
+    return (int) Math.max(0, Math.min(count, id - headId));
+  }
+
+  private void append(byte[] data, long timestamp, long metaId) {
+    if (count == records.length) {
+      Record[] grown = new Record[records.length * 2];
+      for (int i = 0; i < count; i++) {
+        grown[i] = records[slot(i)];
+      }
+      records = grown;
+      head = 0;
+    }
+    records[slot(count++)] = new Record(data, timestamp, metaId);
+    size++;
+    bytes += data.length;
+    memory += data.length + RECORD_OVERHEAD_BYTES;
+  }
+
+  private void evictOldest() {
+    for (int i = 0; i < count; i++) {
+      Record record = records[slot(i)];
+      if (record.data != null) {
+        clear(record);
+        break;
+      }
+    }
+    trimHead();
+  }
+
+  /**
+   * Drops the data of a record, its slot is still counted until {@link #trimHead()} drops it.
+   */
+  private void clear(Record record) {
+    size--;
+    bytes -= record.data.length;
+    memory -= record.data.length;
+    record.data = null;
+  }
+
+  /**
+   * Drops removed records from the head of the ring, and the ring itself once it is empty.
+   */
+  private void trimHead() {
+    while (count > 0 && records[head].data == null) {
+      records[head] = null;
+      head = (head + 1) & (records.length - 1);
+      headId++;
+      count--;
+      memory -= RECORD_OVERHEAD_BYTES;
+    }
+    if (count == 0 && records.length > INITIAL_CAPACITY) {
+      records = new Record[INITIAL_CAPACITY];
+      head = 0;
+    }
+  }
+
+  /**
+   * Returns the id of a meta snapshot, keeping it first if needed.
+   * @param meta the serialized snapshot, null if none
+   * @return the snapshot id, 0 for none
+   */
+  private long internMeta(String meta) {
+    if (meta == null) {
+      return 0;
+    }
+    long id = metas.idOf(meta);
+    if (id == 0) {
+      if (metas.isFull()) {
+        metas.retain(usedMetaIds());
+      }
+      id = metas.newId();
+      metas.put(id, meta.getBytes(UTF_8));
+      metas.remember(meta, id);
+    }
+    return id;
+  }
+
+  private Set<Long> usedMetaIds() {
+    Set<Long> used = new HashSet<>();
+    for (int i = 0; i < count; i++) {
+      Record record = records[slot(i)];
+      if (record.data != null) {
+        used.add(record.metaId);
+      }
+    }
+    return used;
+  }
+}
@@ -0,0 +1,118 @@
+package com.sematext.logseneandroid;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Ids of the meta snapshots stored by a queue. Queues keeping their snapshots elsewhere, like the
+ * sqlite one, only use the last interned snapshot and add nothing to the table.
+ *
+ * Not thread-safe, used under the lock of the queue.
+ */
+class MetaInterner {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Number of distinct meta snapshots kept before those no longer used by any record are dropped.
+   */
+  static final int MAX_METAS = 16;
+
+  private final Map<Long, byte[]> metas = new HashMap<>();
+  private final Map<String, Long> ids = new HashMap<>();
+  private long nextId = 1;
+  private String last;
+  private long lastId;
+
+  /**
+   * Returns the id of a known snapshot, and remembers it as the last interned one.
+   * @param meta the serialized snapshot
+   * @return the snapshot id, 0 if the snapshot is new
+   */
+  long idOf(String meta) {
+    // snapshots change rarely, usually it's the very same string as for the previous record
+    if (meta == last || meta.equals(last)) {
+      return lastId;
+    }
+    Long id = ids.get(meta);
+    if (id == null) {
+      return 0;
+    }
+    remember(meta, id);
+    return id;
+  }
+
+  /**
+   * Remembers the last interned snapshot, so that following records with the same one skip the
+   * lookup.
+   */
+  void remember(String meta, long id) {
+    last = meta;
+    lastId = id;
+  }
+
+  /**
+   * Forgets the last interned snapshot, e.g. when storing it was rolled back.
+   */
+  void forget() {
+    last = null;
+  }
+
+  /**
+   * Returns whether the table holds as many snapshots as it should, unused ones should be dropped
+   * before adding another one.
+   */
+  boolean isFull() {
+    return metas.size() >= MAX_METAS;
+  }
+
+  /**
+   * Returns the id for a new snapshot.
+   */
+  long newId() {
+    return nextId++;
+  }
+
+  /**
+   * Adds a snapshot to the table, after it was stored or when it was loaded.
+   */
+  void put(long id, byte[] data) {
+    metas.put(id, data);
+    ids.put(new String(data, UTF_8), id);
+    nextId = Math.max(nextId, id + 1);
+  }
+
+  /**
+   * Returns a snapshot.
+   * @param id id of the snapshot
+   * @return the serialized snapshot encoded as UTF-8, or null if there is no such snapshot
+   */
+  byte[] get(long id) {
+    return metas.get(id);
+  }
+
+  /**
+   * Drops the snapshots no longer used by any record.
+   * @param used ids of the snapshots to keep
+   */
+  void retain(Set<Long> used) {
+    for (Iterator<Map.Entry<Long, byte[]>> it = metas.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Long, byte[]> entry = it.next();
+      if (!used.contains(entry.getKey())) {
+        ids.remove(new String(entry.getValue(), UTF_8));
+        it.remove();
+      }
+    }
+    last = null;
+  }
+
+  /**
+   * Returns the snapshots in the table, by id.
+   */
+  Map<Long, byte[]> snapshots() {
+    return Collections.unmodifiableMap(metas);
+  }
+}
@@ -0,0 +1,83 @@
+package com.sematext.logseneandroid;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import okio.BufferedSink;
+
+/**
+ * Adds a stored meta snapshot to a stored document, as the last field of the object.
+ *
+ * Documents logged with the default meta are stored without it, the snapshot is kept once in the
+ * queue and only spliced in when the document is sent.
+ */
+final class MetaSplicer {
+  private static final byte[] META_FIELD = ",\"meta\":".getBytes(Charset.forName("UTF-8"));
+
+  private MetaSplicer() {
+  }
+
+  /**
+   * Writes the document with the meta field added.
+   * @param sink where to write to
+   * @param data a well formed json object, encoded as UTF-8
+   * @param meta the serialized meta object encoded as UTF-8, null to write the document as is
+   * @throws IOException if unable to write
+   */
+  static void write(BufferedSink sink, byte[] data, byte[] meta) throws IOException {
+    int end = closingBrace(data);
+    if (meta == null || end < 0) {
+      sink.write(data);
+      return;
+    }
+    // {"a":1} -> {"a":1,"meta":{...}}, {} -> {"meta":{...}}
+    int skip = isEmpty(data, end) ? 1 : 0;
+    sink.write(data, 0, end);
+    sink.write(META_FIELD, skip, META_FIELD.length - skip);
+    sink.write(meta);
+    sink.writeByte('}');
+  }
+
+  /**
+   * Returns the document with the meta field added.
+   * @param data a well formed json object, encoded as UTF-8
+   * @param meta the serialized meta object encoded as UTF-8, null to return the document as is
+   * @return the document
+   */
+  static byte[] splice(byte[] data, byte[] meta) {
+    int end = closingBrace(data);
+    if (meta == null || end < 0) {
+      return data;
+    }
+    int skip = isEmpty(data, end) ? 1 : 0;
+    int fieldLength = META_FIELD.length - skip;
+    byte[] result = Arrays.copyOf(data, end + fieldLength + meta.length + 1);
+    System.arraycopy(META_FIELD, skip, result, end, fieldLength);
+    System.arraycopy(meta, 0, result, end + fieldLength, meta.length);
+    result[result.length - 1] = '}';
+    return result;
+  }
+
+  private static int closingBrace(byte[] data) {
+    for (int i = data.length - 1; i >= 0; i--) {
+      if (data[i] == '}') {
+        return i;
+      } else if (data[i] != ' ' && data[i] != '\t') {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isEmpty(byte[] data, int end) {
+    for (int i = end - 1; i >= 0; i--) {
+      if (data[i] == '{') {
+        return true;
+      } else if (data[i] != ' ' && data[i] != '\t') {
+        return false;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,63 @@
+package com.sematext.logseneandroid;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide histograms and counters of the logging pipeline, shared by the logging threads,
+ * the ingest thread and the workers. Recording is lock-free and does not allocate.
+ */
+final class Metrics {
+  /**
+   * Time a logging call spends encoding and buffering a message, in nanoseconds.
+   */
+  static final Histogram enqueueNanos = new Histogram();
+
+  /**
+   * Time from a logging call until the receiver acknowledged the message, in milliseconds.
+   */
+  static final Histogram deliveryMillis = new Histogram();
+
+  /**
+   * Number of messages in each bulk request sent.
+   */
+  static final Histogram bulkDocs = new Histogram();
+
+  /**
+   * Size of the messages in each bulk request sent, in bytes.
+   */
+  static final Histogram bulkBytes = new Histogram();
+
+  /**
+   * Time from sending a bulk request until its response was received, in milliseconds.
+   */
+  static final Histogram httpMillis = new Histogram();
+
+  /**
+   * Duration of each worker run, in milliseconds.
+   */
+  static final Histogram workerRunMillis = new Histogram();
+
+  /**
+   * Number of bulk responses by status class: index 0 counts requests that failed without a valid
+   * response, 1 to 5 count responses with a 1xx to 5xx status.
+   */
+  static final AtomicLongArray statusClasses = new AtomicLongArray(6);
+
+  /**
+   * Number of times sending was retried after a failure.
+   */
+  static final AtomicLong retries = new AtomicLong();
+
+  private Metrics() {
+  }
+
+  /**
+   * Counts the status of a bulk response.
+   * @param code http status code, 0 if the request failed without a response
+   */
+  static void recordStatus(int code) {
+    int statusClass = code / 100;
+    statusClasses.incrementAndGet(statusClass >= 1 && statusClass <= 5 ? statusClass : 0);
+  }
+}
@@ -0,0 +1,13 @@
+package com.sematext.logseneandroid;
+
+/**
+ * Receives a metrics snapshot after each run of the worker which sends the offline queue, e.g.
+ * to export it into the application's own telemetry.
+ */
+public interface MetricsListener {
+  /**
+   * Called on the worker thread, so it should return quickly.
+   * @param metrics snapshot taken when the worker run finished
+   */
+  void onMetrics(LogseneMetrics metrics);
+}
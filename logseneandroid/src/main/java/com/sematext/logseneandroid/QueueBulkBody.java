@@ -0,0 +1,152 @@
+package com.sematext.logseneandroid;
+
+import com.sematext.logseneandroid.logsene.Bulk;
+import com.sematext.logseneandroid.logsene.LogseneClient;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * Bulk request body streamed straight from the persistent queue.
+ *
+ * Stored records are already serialized json, so they are copied from the cursor to the sink as
+ * raw bytes, each preceded by the same precomputed action line. Nothing is parsed and the request
+ * is never materialized as one string. The records are read again if the request is retried.
+ *
+ * The ids of the written records are kept, so that the n-th item of the bulk response can be
+ * mapped back to its record. Records which are not well formed are skipped, and their ids kept
+ * separately, so that a corrupt row cannot fail the whole request. {@link #validate()} finds them
+ * before anything is sent, so that a range of corrupt rows only is never sent at all. Records stored with a reference
+ * to a meta snapshot get the snapshot spliced in as their <code>meta</code> field.
+ */
+class QueueBulkBody extends RequestBody {
+  private final LogQueue queue;
+  private final QueueRange range;
+  private final byte[] action;
+  private long[] writtenIds;
+  private int writtenCount;
+  private long[] corruptIds = new long[0];
+  private int corruptCount;
+  private boolean validated;
+
+  /**
+   * Constructor.
+   *
+   * @param queue the queue to read records from
+   * @param range the records to send
+   * @param index the index to use for all documents
+   * @param type the type to use for all documents
+   */
+  QueueBulkBody(LogQueue queue, QueueRange range, String index, String type) {
+    Utils.requireNonNull(queue);
+    Utils.requireNonNull(range);
+    this.queue = queue;
+    this.range = range;
+    this.action = Bulk.indexAction(index, type);
+    this.writtenIds = new long[range.count];
+  }
+
+  @Override
+  public MediaType contentType() {
+    return LogseneClient.JSON;
+  }
+
+  /**
+   * Returns the size of the body computed from the stored record sizes. Records evicted after the
+   * range was peeked are not sent, so this is only an upper bound and not the content length.
+   * @return estimated size in bytes
+   */
+  long estimatedLength() {
+    return range.bytes + (long) range.count * (action.length + 1);
+  }
+
+  /**
+   * Returns the ids of the records written by the last {@link #writeTo}, in request order.
+   * @return record ids
+   */
+  long[] writtenIds() {
+    return Arrays.copyOf(writtenIds, writtenCount);
+  }
+
+  /**
+   * Returns the ids of the corrupt records skipped by the last {@link #writeTo}.
+   * @return record ids
+   */
+  long[] corruptIds() {
+    return Arrays.copyOf(corruptIds, corruptCount);
+  }
+
+  /**
+   * Reads the range once to find the corrupt records. They are skipped by {@link #writeTo}
+   * without being checked again, stored records never change.
+   * @return number of well formed records, 0 if there is nothing to send
+   * @throws IOException if unable to read the records
+   */
+  int validate() throws IOException {
+    corruptCount = 0;
+    final int[] valid = new int[1];
+    queue.read(range, new LogQueue.RecordReader() {
+      @Override
+      public void read(long id, byte[] data, long metaId) {
+        if (RecordValidator.isWellFormed(data)) {
+          valid[0]++;
+        } else {
+          addCorrupt(id);
+        }
+      }
+    });
+    validated = true;
+    return valid[0];
+  }
+
+  @Override
+  public void writeTo(final BufferedSink sink) throws IOException {
+    writtenCount = 0;
+    if (!validated) {
+      corruptCount = 0;
+    }
+    // each meta snapshot is read once per request, usually all records share the same one
+    final Map<Long, byte[]> metas = new HashMap<>();
+    queue.read(range, new LogQueue.RecordReader() {
+      @Override
+      public void read(long id, byte[] data, long metaId) throws IOException {
+        if (validated) {
+          if (Arrays.binarySearch(corruptIds, 0, corruptCount, id) >= 0) {
+            return;
+          }
+        } else if (!RecordValidator.isWellFormed(data)) {
+          addCorrupt(id);
+          return;
+        }
+        byte[] meta = null;
+        if (metaId != 0) {
+          meta = metas.get(metaId);
+          if (meta == null && !metas.containsKey(metaId)) {
+            meta = queue.readMeta(metaId);
+            metas.put(metaId, meta);
+          }
+        }
+        sink.write(action);
+        MetaSplicer.write(sink, data, meta);
+        sink.writeByte('\n');
+        if (writtenCount == writtenIds.length) {
+          writtenIds = Arrays.copyOf(writtenIds, writtenCount * 2 + 1);
+        }
+        writtenIds[writtenCount++] = id;
+      }
+    });
+  }
+
+  private void addCorrupt(long id) {
+    if (corruptCount == corruptIds.length) {
+      corruptIds = Arrays.copyOf(corruptIds, corruptCount * 2 + 1);
+    }
+    corruptIds[corruptCount++] = id;
+  }
+}
@@ -0,0 +1,78 @@
+package com.sematext.logseneandroid;
+
+/**
+ * Serialized message waiting to be stored in the persistent queue, or in the in-memory queue.
+ */
+class QueueEntry {
+  final String data;
+  final Severity severity;
+  final long timestamp;
+  final String meta;
+  final String template;
+  final long fingerprint;
+  final boolean inMemory;
+
+  /**
+   * Constructor.
+   *
+   * @param data the json document
+   * @param severity severity used for retention when the queue is full
+   * @param timestamp time of the message in milliseconds since epoch
+   */
+  QueueEntry(String data, Severity severity, long timestamp) {
+    this(data, severity, timestamp, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param data the json document, without the meta field
+   * @param severity severity used for retention when the queue is full
+   * @param timestamp time of the message in milliseconds since epoch
+   * @param meta serialized meta snapshot, added to the document when it is sent; the same string
+   *             instance should be passed for all messages sharing a snapshot. May be null.
+   */
+  QueueEntry(String data, Severity severity, long timestamp, String meta) {
+    this(data, severity, timestamp, meta, null, 0);
+  }
+
+  /**
+   * Constructor for messages that may be coalesced with their repeats.
+   *
+   * @param data the json document, without the meta field
+   * @param severity severity used for retention when the queue is full
+   * @param timestamp time of the message in milliseconds since epoch
+   * @param meta serialized meta snapshot, may be null
+   * @param template message template identifying repeats, null if the message is never coalesced
+   * @param fingerprint fingerprint of the exception, 0 if none
+   */
+  QueueEntry(String data, Severity severity, long timestamp, String meta, String template,
+             long fingerprint) {
+    this(data, severity, timestamp, meta, template, fingerprint, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param data the json document, without the meta field
+   * @param severity severity used for retention when the queue is full
+   * @param timestamp time of the message in milliseconds since epoch
+   * @param meta serialized meta snapshot, may be null
+   * @param template message template identifying repeats, null if the message is never coalesced
+   * @param fingerprint fingerprint of the exception, 0 if none
+   * @param inMemory whether the message goes to the {@link MemoryLogQueue} instead of the
+   *                 persistent queue
+   */
+  QueueEntry(String data, Severity severity, long timestamp, String meta, String template,
+             long fingerprint, boolean inMemory) {
+    Utils.requireNonNull(data);
+    Utils.requireNonNull(severity);
+    this.data = data;
+    this.severity = severity;
+    this.timestamp = timestamp;
+    this.meta = meta;
+    this.template = template;
+    this.fingerprint = fingerprint;
+    this.inMemory = inMemory;
+  }
+}
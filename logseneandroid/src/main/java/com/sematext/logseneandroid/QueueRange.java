@@ -0,0 +1,62 @@
+package com.sematext.logseneandroid;
+
+/**
+ * Contiguous range of records in the persistent queue, identified by their ids.
+ */
+class QueueRange {
+  final long firstId;
+  final long lastId;
+  final int count;
+  final long bytes;
+  final long[] timestamps;
+  final long leaseId;
+
+  /**
+   * Constructor.
+   *
+   * @param firstId id of the oldest record in the range
+   * @param lastId id of the newest record in the range
+   * @param count number of records in the range
+   * @param bytes total size of the encoded records
+   */
+  QueueRange(long firstId, long lastId, int count, long bytes) {
+    this(firstId, lastId, count, bytes, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param firstId id of the oldest record in the range
+   * @param lastId id of the newest record in the range
+   * @param count number of records in the range
+   * @param bytes total size of the encoded records
+   * @param timestamps time each record was logged, in milliseconds since epoch; null if unknown
+   */
+  QueueRange(long firstId, long lastId, int count, long bytes, long[] timestamps) {
+    this(firstId, lastId, count, bytes, timestamps, 0);
+  }
+
+  /**
+   * Constructor for a leased range, which only covers the elements of its lease.
+   *
+   * @param firstId id of the oldest record in the range
+   * @param lastId id of the newest record in the range
+   * @param count number of records in the range
+   * @param bytes total size of the encoded records
+   * @param timestamps time each record was logged, in milliseconds since epoch; null if unknown
+   * @param leaseId id of the lease, 0 if not leased
+   */
+  QueueRange(long firstId, long lastId, int count, long bytes, long[] timestamps, long leaseId) {
+    this.firstId = firstId;
+    this.lastId = lastId;
+    this.count = count;
+    this.bytes = bytes;
+    this.timestamps = timestamps;
+    this.leaseId = leaseId;
+  }
+
+  @Override
+  public String toString() {
+    return "[" + firstId + ".." + lastId + "] (" + count + " records, " + bytes + " bytes)";
+  }
+}
@@ -0,0 +1,368 @@
+package com.sematext.logseneandroid;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.sematext.logseneandroid.logsene.BulkResponse;
+import com.sematext.logseneandroid.logsene.LogseneClient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the persistent queue to Logsene in bulk requests, keeping several of them in flight.
+ *
+ * Each bulk covers a known id range, leased from the queue so that senders of concurrent worker
+ * runs never send the same records. Ranges are acknowledged in order: records are only removed
+ * once all lower ranges of the same sender were acknowledged as well, so each sender stays FIFO and
+ * at-least-once. Ranges which were not acknowledged are released for the next drain; those of a
+ * sender that was killed are leased again once their lease expires.
+ */
+class QueueSender {
+  private static final String LOG_TAG = "Logsene";
+  private static final String THREAD_NAME = "Logsene-sender";
+
+  /**
+   * Default number of bulk requests in flight at the same time.
+   */
+  static final int DEFAULT_MAX_IN_FLIGHT = 2;
+
+  /**
+   * Default number of times to attempt to send a bulk request.
+   */
+  static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+  /**
+   * Longer delays are not waited out in process, the records are left for a later worker run.
+   */
+  static final long MAX_IN_PROCESS_DELAY_MILLIS = 60 * 1000;
+
+  private static final int HTTP_ENTITY_TOO_LARGE = 413;
+
+  private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, THREAD_NAME);
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
+  /**
+   * Shared by all senders, so that the learned bulk size survives between worker runs.
+   */
+  private static final BulkSizer defaultSizer = new BulkSizer();
+  private static final AtomicLong rejectedDocs = new AtomicLong();
+  private static final AtomicLong retriedDocs = new AtomicLong();
+  private static final Random leaseIds = new Random();
+
+  private final LogQueue queue;
+  private final LogseneClient client;
+  private final String appToken;
+  private final String type;
+  private final int maxInFlight;
+  private final int maxAttempts;
+  private final BulkSizer sizer;
+  private int sentBulks;
+
+  /**
+   * Constructor.
+   *
+   * @param queue the queue to drain
+   * @param client client used to send bulk requests
+   * @param appToken the logsene app token
+   * @param type type of the documents
+   * @param maxInFlight max number of bulk requests sent at the same time
+   * @param maxAttempts max number of times to send a bulk request, 1 leaves retrying to the caller
+   */
+  QueueSender(LogQueue queue, LogseneClient client, String appToken, String type,
+              int maxInFlight, int maxAttempts) {
+    this(queue, client, appToken, type, maxInFlight, maxAttempts, defaultSizer);
+  }
+
+  QueueSender(LogQueue queue, LogseneClient client, String appToken, String type,
+              int maxInFlight, int maxAttempts, BulkSizer sizer) {
+    Utils.requireNonNull(queue);
+    Utils.requireNonNull(client);
+    if (maxInFlight <= 0 || maxAttempts <= 0) {
+      throw new IllegalArgumentException("maxInFlight and maxAttempts must be greater than 0");
+    }
+    this.queue = queue;
+    this.client = client;
+    this.appToken = appToken;
+    this.type = type;
+    this.maxInFlight = maxInFlight;
+    this.maxAttempts = maxAttempts;
+    this.sizer = sizer;
+  }
+
+  /**
+   * Returns the current bulk sizes chosen by the senders.
+   */
+  static BulkStats getBulkStats() {
+    return defaultSizer.getStats(rejectedDocs.get(), retriedDocs.get());
+  }
+
+  /**
+   * Sends queued messages until the queue is empty or a bulk request fails.
+   * @return {@link SendOutcome#SUCCESS} if all messages were sent, otherwise the outcome of the
+   *         failed bulk request
+   */
+  SendOutcome drain() {
+    ExecutorService executor = Executors.newFixedThreadPool(maxInFlight, THREAD_FACTORY);
+    ArrayDeque<InFlight> window = new ArrayDeque<>(maxInFlight);
+    SendOutcome outcome = SendOutcome.SUCCESS;
+    long lastPeeked = 0;
+    // documents requeued during this drain are left for the next one
+    long lastId = queue.lastId();
+    long leaseId = newLeaseId();
+    sentBulks = 0;
+    try {
+      while (true) {
+        while (outcome == SendOutcome.SUCCESS && window.size() < maxInFlight) {
+          QueueRange range = queue.lease(leaseId, lastPeeked, lastId, sizer.targetDocs(), sizer.targetBytes(),
+              System.currentTimeMillis(), LogQueue.DEFAULT_LEASE_MILLIS);
+          if (range == null) {
+            break;
+          }
+          lastPeeked = range.lastId;
+          SendTask task = new SendTask(range);
+          window.addLast(new InFlight(task, executor.submit(task)));
+        }
+        InFlight head = window.pollFirst();
+        if (head == null) {
+          break;
+        }
+        SendOutcome result = await(head.result);
+        if (outcome != SendOutcome.SUCCESS) {
+          // a lower range failed, this one is kept even if it got through and is sent again
+          queue.release(head.task.range);
+          continue;
+        }
+        if (result == SendOutcome.SUCCESS) {
+          // all lower ranges are acknowledged already; remove by id, records logged or evicted in
+          // the meantime are not affected
+          queue.remove(head.task.range, head.task.requeueIds, head.task.quarantineIds);
+          recordDelivery(head.task.range, System.currentTimeMillis());
+          sentBulks++;
+        } else {
+          // stop sending, but let the requests in flight finish
+          queue.release(head.task.range);
+          outcome = result;
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+    return outcome;
+  }
+
+  /**
+   * Returns the number of bulk requests acknowledged by the last {@link #drain()}.
+   */
+  int getSentBulks() {
+    return sentBulks;
+  }
+
+  /**
+   * Returns a new lease id, never 0.
+   */
+  static long newLeaseId() {
+    synchronized (leaseIds) {
+      long id;
+      do {
+        id = leaseIds.nextLong();
+      } while (id == 0);
+      return id;
+    }
+  }
+
+  /**
+   * Records how long the acknowledged records took from being logged until now.
+   */
+  private static void recordDelivery(QueueRange range, long now) {
+    if (range.timestamps == null) {
+      return;
+    }
+    for (long timestamp : range.timestamps) {
+      // records stored before timestamps were kept have none
+      if (timestamp > 0) {
+        Metrics.deliveryMillis.record(now - timestamp);
+      }
+    }
+  }
+
+  private static SendOutcome await(Future<SendOutcome> result) {
+    try {
+      return result.get();
+    } catch (ExecutionException e) {
+      Log.e(LOG_TAG, "Error while sending logs", e.getCause());
+      return SendOutcome.RETRYABLE;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return SendOutcome.RETRYABLE;
+    }
+  }
+
+  private SendOutcome send(SendTask task) {
+    QueueRange batch = task.range;
+    QueueBulkBody bulk = new QueueBulkBody(queue, batch, appToken, type);
+    try {
+      if (bulk.validate() == 0) {
+        // all records were corrupt or are gone, there is nothing to send
+        task.quarantineIds = bulk.corruptIds();
+        return SendOutcome.SUCCESS;
+      }
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Error while reading logs", e);
+      return SendOutcome.RETRYABLE;
+    }
+    for (int attempt = 1; ; attempt++) {
+      long retryAfter = -1;
+      SendOutcome outcome;
+      try {
+        Log.d(LOG_TAG, "Attempting to send bulk request " + batch);
+        Metrics.bulkDocs.record(batch.count);
+        Metrics.bulkBytes.record(batch.bytes);
+        long start = SystemClock.elapsedRealtime();
+        BulkResponse result = client.executeBulk(bulk, bulk.estimatedLength());
+        long latency = SystemClock.elapsedRealtime() - start;
+        int code = result.getCode();
+        Metrics.httpMillis.record(latency);
+        Metrics.recordStatus(code);
+        outcome = SendOutcome.ofStatus(code);
+        long[] corruptIds = bulk.corruptIds();
+        if (corruptIds.length > 0) {
+          task.quarantineIds = corruptIds;
+        }
+        if (outcome == SendOutcome.SUCCESS && result.isMalformed()) {
+          // nothing confirms that the documents were indexed, they are kept and sent again
+          Log.e(LOG_TAG, "Unable to parse the response to bulk request " + batch);
+          outcome = SendOutcome.RETRYABLE;
+        } else if (outcome == SendOutcome.SUCCESS) {
+          sizer.onSuccess(batch, latency);
+          if (result.hasErrors()) {
+            // even though the status code is successful, some documents might have failed
+            task.requeueIds = handleItemErrors(batch, bulk.writtenIds(), result);
+          }
+          return outcome;
+        } else if (code == HTTP_ENTITY_TOO_LARGE && batch.count == 1) {
+          // no smaller bulk can hold the document, it would block the queue forever
+          rejectedDocs.incrementAndGet();
+          Log.e(LOG_TAG, "Document of bulk request " + batch + " is too large for the receiver, dropping it");
+          return SendOutcome.SUCCESS;
+        } else if (code == HTTP_ENTITY_TOO_LARGE) {
+          Log.e(LOG_TAG, "Bulk request " + batch + " is too large, sending smaller ones from now on");
+          sizer.onTooSlowOrLarge(batch);
+          // the range is fixed, only the next peek gets smaller
+          return outcome;
+        } else {
+          Log.e(LOG_TAG, String.format("Bad status code (%d) returned from api. Response: %s",
+                  code, result.getErrorBody()));
+          retryAfter = Backoff.parseRetryAfter(result.getRetryAfter(), System.currentTimeMillis());
+        }
+      } catch (IOException e) {
+        Log.e(LOG_TAG, "Error while sending logs", e);
+        Metrics.recordStatus(0);
+        if (e instanceof InterruptedIOException) {
+          // timed out, the network cannot keep up with bulks of this size
+          sizer.onTooSlowOrLarge(batch);
+        }
+        outcome = SendOutcome.RETRYABLE;
+      }
+
+      if (outcome != SendOutcome.RETRYABLE || attempt >= maxAttempts) {
+        return outcome;
+      }
+      long delay = Backoff.delayMillis(attempt, retryAfter);
+      if (delay > MAX_IN_PROCESS_DELAY_MILLIS) {
+        Log.d(LOG_TAG, "Receiver asked to retry in " + retryAfter + " ms, leaving it to the next run");
+        return outcome;
+      }
+      Metrics.retries.incrementAndGet();
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return outcome;
+      }
+    }
+  }
+
+  /**
+   * Counts documents the receiver rejected for good and picks those worth sending again.
+   * @return ids of the documents to requeue, null if none
+   */
+  private static long[] handleItemErrors(QueueRange batch, long[] ids, BulkResponse result) {
+    if (result.getItemCount() != ids.length) {
+      Log.e(LOG_TAG, String.format("Unable to index some documents of %s, but got %d results for %d documents",
+              batch, result.getItemCount(), ids.length));
+      return null;
+    }
+    long[] requeue = new long[ids.length];
+    int requeued = 0;
+    int rejected = 0;
+    String rejectedType = null;
+    for (int i = 0; i < ids.length; i++) {
+      String errorType = result.getItemErrorType(i);
+      switch (SendOutcome.ofItem(result.getItemStatus(i), errorType)) {
+        case RETRYABLE:
+          requeue[requeued++] = ids[i];
+          break;
+        case PERMANENT:
+          rejected++;
+          rejectedType = errorType;
+          break;
+        default:
+          break;
+      }
+    }
+    if (rejected > 0) {
+      rejectedDocs.addAndGet(rejected);
+      Log.e(LOG_TAG, String.format("Receiver rejected %d documents of %s, e.g. with %s, dropping them",
+              rejected, batch, rejectedType));
+    }
+    if (requeued == 0) {
+      return null;
+    }
+    retriedDocs.addAndGet(requeued);
+    Log.d(LOG_TAG, String.format("Receiver could not index %d documents of %s for now, requeueing them",
+            requeued, batch));
+    return Arrays.copyOf(requeue, requeued);
+  }
+
+  private class SendTask implements Callable<SendOutcome> {
+    final QueueRange range;
+    // set by the sending thread, read after the task completed
+    long[] requeueIds;
+    long[] quarantineIds;
+
+    SendTask(QueueRange range) {
+      this.range = range;
+    }
+
+    @Override
+    public SendOutcome call() {
+      return send(this);
+    }
+  }
+
+  private static class InFlight {
+    final SendTask task;
+    final Future<SendOutcome> result;
+
+    InFlight(SendTask task, Future<SendOutcome> result) {
+      this.task = task;
+      this.result = result;
+    }
+  }
+}
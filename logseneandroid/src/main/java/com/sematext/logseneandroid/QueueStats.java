@@ -0,0 +1,71 @@
+package com.sematext.logseneandroid;
+
+/**
+ * Snapshot of the offline message queue counters.
+ */
+public final class QueueStats {
+  private final long size;
+  private final long bytes;
+  private final long evicted;
+  private final long evictions;
+  private final long requeued;
+  private final long quarantined;
+
+  QueueStats(long size, long bytes, long evicted, long evictions, long requeued, long quarantined) {
+    this.size = size;
+    this.bytes = bytes;
+    this.evicted = evicted;
+    this.evictions = evictions;
+    this.requeued = requeued;
+    this.quarantined = quarantined;
+  }
+
+  /**
+   * Number of messages currently stored in the queue.
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Total size of the stored messages in bytes.
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Number of messages lost because the queue was full.
+   */
+  public long getEvicted() {
+    return evicted;
+  }
+
+  /**
+   * Number of times the queue overflowed and a chunk of the oldest messages was evicted.
+   */
+  public long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * Number of messages moved to the tail of the queue to be sent again, because the receiver
+   * could not index them at the time.
+   */
+  public long getRequeued() {
+    return requeued;
+  }
+
+  /**
+   * Number of corrupt messages which could not be sent and were moved aside instead.
+   */
+  public long getQuarantined() {
+    return quarantined;
+  }
+
+  @Override
+  public String toString() {
+    return "QueueStats{size=" + size + ", bytes=" + bytes + ", evicted=" + evicted + ", evictions=" + evictions
+        + ", requeued=" + requeued + ", quarantined=" + quarantined + "}";
+  }
+}
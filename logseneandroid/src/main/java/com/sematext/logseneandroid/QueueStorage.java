@@ -0,0 +1,71 @@
+package com.sematext.logseneandroid;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Storage engine of the persistent message queue.
+ */
+enum QueueStorage {
+  /**
+   * Sqlite database, see {@link SqliteObjectQueue}.
+   */
+  SQLITE,
+
+  /**
+   * Append-only log of memory mapped segment files, see {@link SegmentLogQueue}.
+   */
+  SEGMENTS;
+
+  private static final String TAG = "QueueStorage";
+
+  /**
+   * Parses the storage name, as used in the application manifest.
+   * @param name <code>sqlite</code> or <code>segments</code>, case insensitive
+   * @return the storage, <code>SQLITE</code> if the name is null, empty or unknown
+   */
+  static QueueStorage fromName(String name) {
+    if (name == null || name.trim().isEmpty()) {
+      return SQLITE;
+    }
+    try {
+      return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+    } catch (IllegalArgumentException e) {
+      Log.e(TAG, "Unknown queue storage " + name + ", using sqlite");
+      return SQLITE;
+    }
+  }
+
+  /**
+   * Opens the queue to add messages to.
+   * @param context android context
+   * @param maxSize max number of queued messages
+   * @param maxBytes max total size of the queued messages in bytes, 0 for no limit
+   * @return the queue
+   */
+  LogQueue open(Context context, int maxSize, long maxBytes) {
+    switch (this) {
+      case SEGMENTS:
+        return SegmentLogQueue.open(context, maxSize, maxBytes);
+      default:
+        return new SqliteObjectQueue(context, maxSize, maxBytes);
+    }
+  }
+
+  /**
+   * Opens the queue to send messages from. Limits only apply when adding messages, the worker
+   * does not need to know them.
+   * @param context android context
+   * @return the queue
+   */
+  LogQueue open(Context context) {
+    switch (this) {
+      case SEGMENTS:
+        return SegmentLogQueue.open(context);
+      default:
+        return new SqliteObjectQueue(context);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package com.sematext.logseneandroid;
+
+/**
+ * Cheap structural check of stored json documents, done while they are streamed to the receiver.
+ *
+ * This is not a full json parser: it only verifies that the record is a single object with
+ * balanced nesting and terminated strings, and that it contains no line breaks, which would break
+ * the newline delimited bulk format. That is enough to catch truncated or garbled rows without
+ * parsing every record.
+ */
+final class RecordValidator {
+  private RecordValidator() {
+  }
+
+  /**
+   * Checks the structure of a stored record.
+   * @param data the record, encoded as UTF-8
+   * @return <code>true</code> if the record looks like a single json object
+   */
+  static boolean isWellFormed(byte[] data) {
+    int depth = 0;
+    boolean inString = false;
+    boolean escaped = false;
+    boolean closed = false;
+    for (byte b : data) {
+      if (b == '\n' || b == '\r') {
+        return false;
+      }
+      if (inString) {
+        if (escaped) {
+          escaped = false;
+        } else if (b == '\\') {
+          escaped = true;
+        } else if (b == '"') {
+          inString = false;
+        } else if (b >= 0 && b < 0x20) {
+          // control characters must be escaped
+          return false;
+        }
+        continue;
+      }
+      if (b == ' ' || b == '\t') {
+        continue;
+      }
+      if (closed) {
+        // trailing data after the top level object
+        return false;
+      }
+      switch (b) {
+        case '{':
+        case '[':
+          if (depth == 0 && b != '{') {
+            return false;
+          }
+          depth++;
+          break;
+        case '}':
+        case ']':
+          if (--depth < 0) {
+            return false;
+          }
+          closed = depth == 0;
+          break;
+        case '"':
+          inString = true;
+          break;
+        default:
+          if (depth == 0) {
+            return false;
+          }
+          break;
+      }
+    }
+    return closed;
+  }
+}
@@ -0,0 +1,147 @@
+package com.sematext.logseneandroid;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free, multi-producer single-consumer ring buffer.
+ *
+ * Producers claim a slot with a CAS on the tail sequence and publish it by advancing the slot
+ * sequence, so <code>offer()</code> never blocks and never allocates. Only one thread may call the
+ * consumer methods (<code>poll()</code>, <code>drainTo()</code>, <code>oldestStamp()</code>).
+ */
+class RingBuffer<E> {
+  private final int capacity;
+  private final int mask;
+  private final AtomicReferenceArray<E> items;
+  private final AtomicLongArray sequences;
+  private final long[] stamps;
+  private final AtomicLong tail = new AtomicLong();
+  private volatile long head;
+
+  /**
+   * Constructor.
+   *
+   * @param minCapacity minimum number of elements, rounded up to the next power of two
+   */
+  RingBuffer(int minCapacity) {
+    if (minCapacity <= 0) {
+      throw new IllegalArgumentException("capacity must be greater than 0");
+    }
+    int cap = 1;
+    while (cap < minCapacity) {
+      cap <<= 1;
+    }
+    this.capacity = cap;
+    this.mask = cap - 1;
+    this.items = new AtomicReferenceArray<>(cap);
+    this.sequences = new AtomicLongArray(cap);
+    this.stamps = new long[cap];
+    for (int i = 0; i < cap; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Adds element to the buffer.
+   * @param e the element
+   * @param stamp arbitrary value stored alongside the element, e.g. enqueue time
+   * @return <code>false</code> if the buffer is full
+   */
+  boolean offer(E e, long stamp) {
+    Utils.requireNonNull(e);
+    long pos = tail.get();
+    int idx;
+    for (;;) {
+      idx = (int) (pos & mask);
+      long diff = sequences.get(idx) - pos;
+      if (diff == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          break;
+        }
+        pos = tail.get();
+      } else if (diff < 0) {
+        return false;
+      } else {
+        pos = tail.get();
+      }
+    }
+    stamps[idx] = stamp;
+    items.lazySet(idx, e);
+    // publishing the sequence makes the element and its stamp visible to the consumer
+    sequences.set(idx, pos + 1);
+    return true;
+  }
+
+  /**
+   * Removes the oldest element. Consumer thread only.
+   * @return the element, or <code>null</code> if nothing is published yet
+   */
+  E poll() {
+    long pos = head;
+    int idx = (int) (pos & mask);
+    if (sequences.get(idx) != pos + 1) {
+      return null;
+    }
+    E e = items.get(idx);
+    items.lazySet(idx, null);
+    sequences.set(idx, pos + capacity);
+    head = pos + 1;
+    return e;
+  }
+
+  /**
+   * Moves up to <code>max</code> published elements into the list. Consumer thread only.
+   * @return number of elements moved
+   */
+  int drainTo(List<? super E> sink, int max) {
+    int n = 0;
+    E e;
+    while (n < max && (e = poll()) != null) {
+      sink.add(e);
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Returns the stamp of the oldest published element. Consumer thread only.
+   * @return the stamp, or <code>-1</code> if nothing is published yet
+   */
+  long oldestStamp() {
+    long pos = head;
+    int idx = (int) (pos & mask);
+    if (sequences.get(idx) != pos + 1) {
+      return -1;
+    }
+    return stamps[idx];
+  }
+
+  /**
+   * Total number of slots ever claimed by producers.
+   */
+  long claimed() {
+    return tail.get();
+  }
+
+  /**
+   * Total number of elements ever removed by the consumer.
+   */
+  long consumed() {
+    return head;
+  }
+
+  int size() {
+    return (int) Math.max(0, tail.get() - head);
+  }
+
+  boolean isEmpty() {
+    return size() == 0;
+  }
+
+  int capacity() {
+    return capacity;
+  }
+}
@@ -0,0 +1,945 @@
+package com.sematext.logseneandroid;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent FIFO queue stored in an append-only log of memory mapped segment files.
+ *
+ * Records are appended to the newest segment, framed with their length and a CRC32 checksum, and
+ * never changed afterwards. Removed records are only marked in memory, a segment file is deleted
+ * as a whole once all of its records are removed. A checkpoint file keeps the id of the oldest
+ * record still queued (head) and of the newest record known to be on disk (tail). When the queue
+ * is opened, the segments are scanned, checksums are verified past the checkpointed tail and a
+ * torn record left by a crash is cut off.
+ *
+ * Compared to {@link SqliteObjectQueue} there are no indexes to update and no pages to rewrite,
+ * at the cost of:
+ * <ul>
+ *   <li>eviction drops the oldest records, regardless of their severity</li>
+ *   <li>records acknowledged out of order are sent again after a crash, until all older ones
+ *       are acknowledged too</li>
+ *   <li>corrupt records are dropped instead of being quarantined</li>
+ *   <li>leases are kept in memory, so there is one instance per process, see {@link #open}</li>
+ * </ul>
+ */
+class SegmentLogQueue implements LogQueue {
+  private static final String TAG = "SegmentLogQueue";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  static final String DIRECTORY_NAME = "logsene-queue";
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String CHECKPOINT_FILE_NAME = "checkpoint";
+  private static final String META_FILE_NAME = "meta";
+
+  /**
+   * Default size of a segment file, bigger records get a segment of their own.
+   */
+  static final int DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+  private static final int DEFAULT_MAX_SIZE = 5000;
+
+  /**
+   * Part of the max size that is evicted at once when the queue overflows.
+   */
+  private static final int EVICTION_CHUNK_DIVISOR = 10;
+
+  // record frame: data length, checksum of the rest of the frame, id, timestamp, severity, meta id
+  // and the data itself; an id of 0 marks the end of the segment
+  private static final int LENGTH_OFFSET = 0;
+  private static final int CRC_OFFSET = 4;
+  private static final int ID_OFFSET = 8;
+  private static final int TS_OFFSET = 16;
+  private static final int SEVERITY_OFFSET = 24;
+  private static final int META_OFFSET = 25;
+  static final int HEADER_BYTES = 33;
+
+  // meta frame: data length, checksum of id and data, id, data
+  private static final int META_HEADER_BYTES = 16;
+
+  // checkpoint: sequence, head, tail and checksum; two slots are written in turn, so that a torn
+  // write leaves the previous checkpoint intact
+  private static final int CHECKPOINT_BYTES = 28;
+  private static final int CHECKPOINT_SLOT_BYTES = 32;
+
+  private static SegmentLogQueue instance;
+
+  private final File dir;
+  private final int segmentBytes;
+  private int maxSize;
+  private int lowWatermark;
+  private long maxBytes;
+  private long lowBytesWatermark;
+
+  private final List<Segment> segments = new ArrayList<>();
+  private final FileChannel checkpointChannel;
+  private long checkpointSequence;
+  private long checkpointHead = -1;
+  private long checkpointTail = -1;
+  private long syncedTail;
+  private long nextId = 1;
+  private long size;
+  private long bytes;
+  private long evictedCount;
+  private long evictionCount;
+  private long requeuedCount;
+  private long quarantinedCount;
+
+  private FileChannel metaChannel;
+  private final MetaInterner metas = new MetaInterner();
+
+  private final CRC32 crc = new CRC32();
+  private byte[] scratch = new byte[1024];
+
+  /**
+   * Segment file with the positions and state of its records.
+   */
+  private static final class Segment {
+    final long baseId;
+    final File file;
+    final MappedByteBuffer buffer;
+    final BitSet removed = new BitSet();
+    int[] offsets = new int[256];
+    long[] leaseIds;
+    long[] leaseExpiries;
+    int count;
+    int removedCount;
+    int writePosition;
+    boolean dirty;
+
+    Segment(long baseId, File file, MappedByteBuffer buffer) {
+      this.baseId = baseId;
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    /**
+     * Returns the index of the given id, clamped to the records of this segment.
+     */
+    int clamp(long id) {
+      return (int) Math.max(0, Math.min(count, id - baseId));
+    }
+
+    void added(int offset) {
+      if (count == offsets.length) {
+        offsets = Arrays.copyOf(offsets, count * 2);
+        if (leaseIds != null) {
+          leaseIds = Arrays.copyOf(leaseIds, count * 2);
+          leaseExpiries = Arrays.copyOf(leaseExpiries, count * 2);
+        }
+      }
+      offsets[count++] = offset;
+    }
+
+    int length(int index) {
+      return buffer.getInt(offsets[index] + LENGTH_OFFSET);
+    }
+
+    long timestamp(int index) {
+      return buffer.getLong(offsets[index] + TS_OFFSET);
+    }
+
+    int severity(int index) {
+      return buffer.get(offsets[index] + SEVERITY_OFFSET);
+    }
+
+    long metaId(int index) {
+      return buffer.getLong(offsets[index] + META_OFFSET);
+    }
+
+    byte[] data(int index) {
+      return read(buffer, offsets[index]);
+    }
+
+    long leaseId(int index) {
+      return leaseIds == null ? 0 : leaseIds[index];
+    }
+
+    boolean isLeasable(int index, long now, long expiry) {
+      return leaseIds == null || Leases.isLeasable(leaseIds[index], leaseExpiries[index], now, expiry);
+    }
+
+    void lease(int index, long leaseId, long expiry) {
+      if (leaseIds == null) {
+        leaseIds = new long[offsets.length];
+        leaseExpiries = new long[offsets.length];
+      }
+      leaseIds[index] = leaseId;
+      leaseExpiries[index] = expiry;
+    }
+  }
+
+  /**
+   * Opens the queue of this process with default limits, or returns it if already open.
+   *
+   * @param context android context
+   * @return the queue
+   */
+  static synchronized SegmentLogQueue open(Context context) {
+    if (instance == null) {
+      instance = open(context, DEFAULT_MAX_SIZE, 0);
+    }
+    return instance;
+  }
+
+  /**
+   * Opens the queue of this process, or returns it with new limits if already open.
+   *
+   * @param context android context
+   * @param maxSize max size of the queue, older records will be evicted in chunks once exceeded
+   * @param maxBytes max total size of the encoded records in bytes, 0 for no limit
+   * @return the queue
+   */
+  static synchronized SegmentLogQueue open(Context context, int maxSize, long maxBytes) {
+    Utils.requireNonNull(context);
+    if (instance == null) {
+      instance = new SegmentLogQueue(new File(context.getFilesDir(), DIRECTORY_NAME), maxSize, maxBytes,
+          DEFAULT_SEGMENT_BYTES);
+    } else {
+      instance.setLimits(maxSize, maxBytes);
+    }
+    return instance;
+  }
+
+  /**
+   * Constructor, opens the queue stored in the given directory. Only one instance may be open for
+   * a directory.
+   *
+   * @param dir directory of the segment files, created if needed
+   * @param maxSize max size of the queue, older records will be evicted in chunks once exceeded
+   * @param maxBytes max total size of the encoded records in bytes, 0 for no limit
+   * @param segmentBytes size of a segment file
+   */
+  SegmentLogQueue(File dir, int maxSize, long maxBytes, int segmentBytes) {
+    Utils.requireNonNull(dir);
+    if (segmentBytes < HEADER_BYTES) {
+      throw new IllegalArgumentException("segmentBytes must be at least " + HEADER_BYTES);
+    }
+    setLimits(maxSize, maxBytes);
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new RuntimeException("Unable to create " + dir);
+    }
+    try {
+      checkpointChannel = new RandomAccessFile(new File(dir, CHECKPOINT_FILE_NAME), "rw").getChannel();
+      loadMetas();
+      recover();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private synchronized void setLimits(int maxSize, long maxBytes) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be greater than 0");
+    }
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must not be negative");
+    }
+    this.maxSize = maxSize;
+    this.lowWatermark = maxSize - Math.max(1, maxSize / EVICTION_CHUNK_DIVISOR);
+    this.maxBytes = maxBytes;
+    this.lowBytesWatermark = maxBytes - maxBytes / EVICTION_CHUNK_DIVISOR;
+  }
+
+  @Override
+  public synchronized long size() {
+    return size;
+  }
+
+  @Override
+  public synchronized long bytes() {
+    return bytes;
+  }
+
+  /**
+   * Pushes already serialized elements to queue.
+   *
+   * The records are appended to the newest segment, which is flushed to disk once per batch. If
+   * the batch pushes the queue over one of its limits, the oldest records are evicted down to the
+   * low watermark.
+   *
+   * @param data serialized messages
+   * @return number of evicted records
+   */
+  @Override
+  public synchronized long addAll(Collection<QueueEntry> data) {
+    Utils.requireNonNull(data);
+    if (data.isEmpty()) {
+      return 0;
+    }
+    try {
+      for (QueueEntry entry : data) {
+        append(entry.data.getBytes(UTF_8), entry.timestamp, entry.severity.rank, internMeta(entry.meta));
+      }
+      sync();
+      long evicted = 0;
+      long rowsOver = size > maxSize ? size - lowWatermark : 0;
+      long bytesOver = maxBytes > 0 && bytes > maxBytes ? bytes - lowBytesWatermark : 0;
+      if (rowsOver > 0 || bytesOver > 0) {
+        evicted = evict(rowsOver, bytesOver);
+        evictedCount += evicted;
+        evictionCount++;
+      }
+      writeCheckpoint();
+      return evicted;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public synchronized byte[] readMeta(long metaId) {
+    return metas.get(metaId);
+  }
+
+  @Override
+  public synchronized QueueStats getStats() {
+    return new QueueStats(size, bytes, evictedCount, evictionCount, requeuedCount, quarantinedCount);
+  }
+
+  /**
+   * Retrieves up to specified amount of elements from queue, without removing them. Records which
+   * are not well formed are dropped, so fewer than <code>max</code> elements might be returned even
+   * if the queue holds more.
+   * @param max max number of elements to return.
+   * @return list of elements
+   */
+  @Override
+  public synchronized List<JSONObject> peek(int max) {
+    if (max <= 0) {
+      throw new IllegalArgumentException("max must be greater than 0");
+    }
+    List<JSONObject> results = new ArrayList<>();
+    for (int s = 0; s < segments.size() && results.size() < max; s++) {
+      Segment segment = segments.get(s);
+      for (int i = segment.removed.nextClearBit(0); i < segment.count && results.size() < max;
+           i = segment.removed.nextClearBit(i + 1)) {
+        try {
+          JSONObject o = new JSONObject(new String(segment.data(i), UTF_8));
+          byte[] meta = metas.get(segment.metaId(i));
+          if (meta != null) {
+            o.put("meta", new JSONObject(new String(meta, UTF_8)));
+          }
+          results.add(o);
+        } catch (JSONException e) {
+          markRemoved(segment, i);
+          quarantinedCount++;
+          Log.e(TAG, "Dropped corrupt record " + (segment.baseId + i));
+        }
+      }
+    }
+    writeCheckpoint();
+    return results;
+  }
+
+  @Override
+  public synchronized long lastId() {
+    for (int s = segments.size() - 1; s >= 0; s--) {
+      Segment segment = segments.get(s);
+      for (int i = segment.count - 1; i >= 0; i--) {
+        if (!segment.removed.get(i)) {
+          return segment.baseId + i;
+        }
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public synchronized QueueRange lease(long leaseId, long afterId, long maxId, int max, long maxBytes, long now,
+                                       long leaseMillis) {
+    Leases.checkArguments(leaseId, max, maxBytes, leaseMillis);
+    if (size == 0) {
+      return null;
+    }
+    long expiry = now + leaseMillis;
+    Leases.Builder leased = new Leases.Builder(leaseId, max, maxBytes, size);
+    scan:
+    for (Segment segment : segments) {
+      for (int i = segment.removed.nextClearBit(segment.clamp(afterId + 1)); i < segment.count;
+           i = segment.removed.nextClearBit(i + 1)) {
+        long id = segment.baseId + i;
+        if (id > maxId || leased.isFull()) {
+          break scan;
+        }
+        if (!segment.isLeasable(i, now, expiry)) {
+          continue;
+        }
+        int length = segment.length(i);
+        if (!leased.fits(length)) {
+          break scan;
+        }
+        segment.lease(i, leaseId, expiry);
+        leased.add(id, length, segment.timestamp(i));
+      }
+    }
+    return leased.build();
+  }
+
+  @Override
+  public synchronized void release(QueueRange range) {
+    Utils.requireNonNull(range);
+    if (range.leaseId == 0) {
+      return;
+    }
+    for (Segment segment : segments) {
+      for (int i = segment.clamp(range.firstId), to = segment.clamp(range.lastId + 1); i < to; i++) {
+        if (segment.leaseId(i) == range.leaseId) {
+          segment.lease(i, 0, 0);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the raw stored elements of a range, oldest first, without parsing them.
+   *
+   * Records never change once written, so only their positions are looked up while holding the
+   * lock; the reader is called without it and does not block adding records.
+   *
+   * @param range the range to read
+   * @param reader receives each element
+   * @throws IOException if thrown by the reader
+   */
+  @Override
+  public void read(QueueRange range, RecordReader reader) throws IOException {
+    Utils.requireNonNull(range);
+    Utils.requireNonNull(reader);
+    ByteBuffer[] buffers = new ByteBuffer[range.count];
+    int[] offsets = new int[range.count];
+    long[] ids = new long[range.count];
+    int count = 0;
+    synchronized (this) {
+      for (Segment segment : segments) {
+        for (int i = segment.clamp(range.firstId), to = segment.clamp(range.lastId + 1); i < to; i++) {
+          if (!isInRange(segment, i, range)) {
+            continue;
+          }
+          if (count == ids.length) {
+            buffers = Arrays.copyOf(buffers, count * 2 + 1);
+            offsets = Arrays.copyOf(offsets, count * 2 + 1);
+            ids = Arrays.copyOf(ids, count * 2 + 1);
+          }
+          buffers[count] = segment.buffer;
+          offsets[count] = segment.offsets[i];
+          ids[count++] = segment.baseId + i;
+        }
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      reader.read(ids[i], read(buffers[i], offsets[i]), buffers[i].getLong(offsets[i] + META_OFFSET));
+    }
+  }
+
+  /**
+   * Removes all elements of a range which are still in the queue, except for the given ones which
+   * are appended to the queue again or dropped as corrupt.
+   *
+   * @param range the range to remove
+   * @param requeueIds ids of the elements to move to the tail, e.g. to send them again later, may
+   *                   be null
+   * @param quarantineIds ids of corrupt elements, may be null
+   */
+  @Override
+  public synchronized void remove(QueueRange range, long[] requeueIds, long[] quarantineIds) {
+    Utils.requireNonNull(range);
+    try {
+      if (requeueIds != null && requeueIds.length > 0) {
+        for (long id : requeueIds) {
+          Segment segment = segmentOf(id);
+          int i = segment == null ? -1 : (int) (id - segment.baseId);
+          if (i >= 0 && !segment.removed.get(i)) {
+            append(segment.data(i), segment.timestamp(i), segment.severity(i), segment.metaId(i));
+            requeuedCount++;
+          }
+        }
+        sync();
+      }
+      if (quarantineIds != null && quarantineIds.length > 0) {
+        quarantinedCount += quarantineIds.length;
+        Log.e(TAG, "Dropped " + quarantineIds.length + " corrupt records");
+      }
+      for (Segment segment : segments) {
+        for (int i = segment.clamp(range.firstId), to = segment.clamp(range.lastId + 1); i < to; i++) {
+          if (isInRange(segment, i, range)) {
+            markRemoved(segment, i);
+          }
+        }
+      }
+      deleteRemovedSegments();
+      writeCheckpoint();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the number of segment files.
+   */
+  synchronized int segmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Forgets the process wide queue, so that tests can start with a fresh one.
+   */
+  static synchronized void resetForTesting() {
+    if (instance != null) {
+      instance.close();
+      instance = null;
+    }
+  }
+
+  /**
+   * Closes the checkpoint and meta files. Segments stay mapped until they are garbage collected.
+   */
+  synchronized void close() {
+    try {
+      checkpointChannel.close();
+      metaChannel.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to close queue files", e);
+    }
+  }
+
+  /**
+   * Returns whether a record is still queued and, for a leased range, leased with it.
+   */
+  private static boolean isInRange(Segment segment, int index, QueueRange range) {
+    return !segment.removed.get(index) && (range.leaseId == 0 || segment.leaseId(index) == range.leaseId);
+  }
+
+  private Segment segmentOf(long id) {
+    for (int s = segments.size() - 1; s >= 0; s--) {
+      Segment segment = segments.get(s);
+      if (id >= segment.baseId) {
+        return id < segment.baseId + segment.count ? segment : null;
+      }
+    }
+    return null;
+  }
+
+  private static byte[] read(ByteBuffer buffer, int offset) {
+    // absolute reads only, the shared buffer's position is never moved
+    ByteBuffer frame = buffer.duplicate();
+    byte[] data = new byte[frame.getInt(offset + LENGTH_OFFSET)];
+    frame.position(offset + HEADER_BYTES);
+    frame.get(data);
+    return data;
+  }
+
+  /**
+   * Appends a record to the newest segment, starting a new one if it does not fit.
+   */
+  private void append(byte[] data, long timestamp, int severity, long metaId) throws IOException {
+    int frameLength = HEADER_BYTES + data.length;
+    Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    if (segment == null || segment.baseId + segment.count != nextId
+        || segment.writePosition + frameLength > segment.buffer.capacity()) {
+      segment = newSegment(Math.max(segmentBytes, frameLength));
+    }
+    if (scratch.length < frameLength) {
+      scratch = new byte[Math.max(frameLength, scratch.length * 2)];
+    }
+    ByteBuffer frame = ByteBuffer.wrap(scratch);
+    frame.putInt(data.length).putInt(0).putLong(nextId).putLong(timestamp).put((byte) severity).putLong(metaId)
+        .put(data);
+    crc.reset();
+    crc.update(scratch, ID_OFFSET, frameLength - ID_OFFSET);
+    frame.putInt(CRC_OFFSET, (int) crc.getValue());
+
+    ByteBuffer target = segment.buffer.duplicate();
+    target.position(segment.writePosition);
+    target.put(scratch, 0, frameLength);
+    segment.added(segment.writePosition);
+    segment.writePosition += frameLength;
+    segment.dirty = true;
+    nextId++;
+    size++;
+    bytes += data.length;
+  }
+
+  private Segment newSegment(int capacity) throws IOException {
+    Segment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    if (tail != null && tail.count == 0) {
+      // never written to, e.g. too small for the record; the new segment takes over its name
+      segments.remove(segments.size() - 1);
+      delete(tail);
+    }
+    Segment segment = map(new File(dir, SEGMENT_PREFIX + nextId + SEGMENT_SUFFIX), nextId, capacity);
+    segments.add(segment);
+    deleteRemovedSegments();
+    return segment;
+  }
+
+  private static Segment map(File file, long baseId, int capacity) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      // the file is extended with zeros, which read as the end of the segment
+      return new Segment(baseId, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+    } finally {
+      // the mapping stays valid after the file is closed
+      raf.close();
+    }
+  }
+
+  /**
+   * Flushes the segments written since the last call to disk, before the checkpoint refers to
+   * their records.
+   */
+  private void sync() {
+    for (int s = segments.size() - 1; s >= 0 && segments.get(s).dirty; s--) {
+      segments.get(s).buffer.force();
+      segments.get(s).dirty = false;
+    }
+    syncedTail = nextId - 1;
+  }
+
+  private void markRemoved(Segment segment, int index) {
+    if (!segment.removed.get(index)) {
+      segment.removed.set(index);
+      segment.removedCount++;
+      size--;
+      bytes -= segment.length(index);
+    }
+  }
+
+  /**
+   * Removes the oldest records until at least <code>rows</code> records and <code>bytes</code>
+   * bytes are freed.
+   * @return number of removed records
+   */
+  private long evict(long rows, long bytes) {
+    long count = 0;
+    long freed = 0;
+    for (int s = 0; s < segments.size() && (count < rows || freed < bytes); s++) {
+      Segment segment = segments.get(s);
+      for (int i = segment.removed.nextClearBit(0); i < segment.count && (count < rows || freed < bytes);
+           i = segment.removed.nextClearBit(i + 1)) {
+        freed += segment.length(i);
+        markRemoved(segment, i);
+        count++;
+      }
+    }
+    deleteRemovedSegments();
+    return count;
+  }
+
+  /**
+   * Deletes the oldest segments whose records were all removed. The newest segment is kept to
+   * append to.
+   */
+  private void deleteRemovedSegments() {
+    while (segments.size() > 1 && segments.get(0).removedCount == segments.get(0).count) {
+      delete(segments.remove(0));
+    }
+  }
+
+  private static void delete(Segment segment) {
+    if (!segment.file.delete()) {
+      Log.e(TAG, "Unable to delete " + segment.file);
+    }
+  }
+
+  /**
+   * Returns the id of the oldest queued record, or the id of the next record if the queue is empty.
+   */
+  private long headId() {
+    for (Segment segment : segments) {
+      int first = segment.removed.nextClearBit(0);
+      if (first < segment.count) {
+        return segment.baseId + first;
+      }
+    }
+    return nextId;
+  }
+
+  /**
+   * Stores the head and the synced tail, if they changed. The checkpoint is not flushed: if it is
+   * lost, records are at worst sent again or verified again when the queue is opened.
+   */
+  private void writeCheckpoint() {
+    long head = headId();
+    if (head == checkpointHead && syncedTail == checkpointTail) {
+      return;
+    }
+    ByteBuffer slot = ByteBuffer.allocate(CHECKPOINT_BYTES);
+    slot.putLong(++checkpointSequence).putLong(head).putLong(syncedTail);
+    crc.reset();
+    crc.update(slot.array(), 0, CHECKPOINT_BYTES - 4);
+    slot.putInt((int) crc.getValue());
+    slot.flip();
+    try {
+      write(checkpointChannel, slot, (checkpointSequence % 2) * CHECKPOINT_SLOT_BYTES);
+      checkpointHead = head;
+      checkpointTail = syncedTail;
+    } catch (IOException e) {
+      // the records are safe, only the next start takes longer or sends some of them again
+      Log.e(TAG, "Unable to write queue checkpoint", e);
+    }
+  }
+
+  /**
+   * Reads the newest intact checkpoint.
+   * @return sequence, head and tail, or null if there is none
+   */
+  private long[] readCheckpoint() throws IOException {
+    long[] newest = null;
+    for (int slot = 0; slot < 2; slot++) {
+      ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_BYTES);
+      long position = slot * CHECKPOINT_SLOT_BYTES;
+      int read;
+      while (buffer.hasRemaining() && (read = checkpointChannel.read(buffer, position)) > 0) {
+        position += read;
+      }
+      if (buffer.hasRemaining()) {
+        continue;
+      }
+      crc.reset();
+      crc.update(buffer.array(), 0, CHECKPOINT_BYTES - 4);
+      if ((int) crc.getValue() != buffer.getInt(CHECKPOINT_BYTES - 4)) {
+        continue;
+      }
+      long sequence = buffer.getLong(0);
+      if (newest == null || sequence > newest[0]) {
+        newest = new long[] { sequence, buffer.getLong(8), buffer.getLong(16) };
+      }
+    }
+    return newest;
+  }
+
+  /**
+   * Rebuilds the in-memory state from the segment files and the checkpoint.
+   */
+  private void recover() throws IOException {
+    long[] checkpoint = readCheckpoint();
+    long head = 0;
+    long tail = 0;
+    if (checkpoint != null) {
+      checkpointSequence = checkpoint[0];
+      head = checkpoint[1];
+      tail = checkpoint[2];
+    }
+
+    List<Long> baseIds = new ArrayList<>();
+    File[] files = dir.listFiles();
+    for (File file : files == null ? new File[0] : files) {
+      String name = file.getName();
+      if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+        try {
+          baseIds.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+        } catch (NumberFormatException e) {
+          Log.e(TAG, "Ignoring " + file);
+        }
+      }
+    }
+    Collections.sort(baseIds);
+
+    nextId = Math.max(1, head);
+    for (int s = 0; s < baseIds.size(); s++) {
+      long baseId = baseIds.get(s);
+      File file = new File(dir, SEGMENT_PREFIX + baseId + SEGMENT_SUFFIX);
+      if (s + 1 < baseIds.size() && baseIds.get(s + 1) <= head) {
+        // all of its records were removed before the segment could be deleted
+        if (!file.delete()) {
+          Log.e(TAG, "Unable to delete " + file);
+        }
+        continue;
+      }
+      Segment segment = map(file, baseId, (int) file.length());
+      scan(segment, tail);
+      nextId = Math.max(nextId, baseId + segment.count);
+      // records past the tail might not have been flushed before the crash
+      segment.dirty = baseId + segment.count - 1 > tail;
+      if (segment.count == 0) {
+        delete(segment);
+        continue;
+      }
+      for (int i = 0; i < segment.count; i++) {
+        if (baseId + i < head) {
+          segment.removed.set(i);
+          segment.removedCount++;
+        } else {
+          size++;
+          bytes += segment.length(i);
+        }
+      }
+      segments.add(segment);
+    }
+    deleteRemovedSegments();
+    sync();
+    writeCheckpoint();
+  }
+
+  /**
+   * Finds the records of a segment. Checksums are verified for records past the given tail, the
+   * first invalid record and everything after it is cut off.
+   */
+  private void scan(Segment segment, long syncedTail) {
+    ByteBuffer buffer = segment.buffer;
+    int limit = buffer.capacity();
+    int position = 0;
+    while (position + HEADER_BYTES <= limit) {
+      long id = buffer.getLong(position + ID_OFFSET);
+      if (id == 0) {
+        break;
+      }
+      int length = buffer.getInt(position + LENGTH_OFFSET);
+      boolean valid = id == segment.baseId + segment.count && length >= 0
+          && length <= limit - position - HEADER_BYTES
+          && (id <= syncedTail || checksum(buffer, position, length) == buffer.getInt(position + CRC_OFFSET));
+      if (!valid) {
+        Log.e(TAG, "Cutting off torn or corrupt records of " + segment.file.getName() + " at " + position);
+        byte[] zeros = new byte[Math.min(4096, limit - position)];
+        ByteBuffer target = buffer.duplicate();
+        target.position(position);
+        while (target.hasRemaining()) {
+          target.put(zeros, 0, Math.min(zeros.length, target.remaining()));
+        }
+        segment.dirty = true;
+        break;
+      }
+      segment.added(position);
+      position += HEADER_BYTES + length;
+    }
+    segment.writePosition = position;
+  }
+
+  private int checksum(ByteBuffer buffer, int offset, int length) {
+    int covered = HEADER_BYTES - ID_OFFSET + length;
+    if (scratch.length < covered) {
+      scratch = new byte[covered];
+    }
+    ByteBuffer frame = buffer.duplicate();
+    frame.position(offset + ID_OFFSET);
+    frame.get(scratch, 0, covered);
+    crc.reset();
+    crc.update(scratch, 0, covered);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Returns the id of a stored meta snapshot, storing it first if needed.
+   * @param meta the serialized snapshot, null if none
+   * @return the snapshot id, 0 for none
+   */
+  private long internMeta(String meta) throws IOException {
+    if (meta == null) {
+      return 0;
+    }
+    long id = metas.idOf(meta);
+    if (id == 0) {
+      if (metas.isFull()) {
+        compactMetas();
+      }
+      id = metas.newId();
+      byte[] data = meta.getBytes(UTF_8);
+      write(metaChannel, metaFrame(id, data), metaChannel.size());
+      // records referring to the snapshot must not outlive it
+      metaChannel.force(false);
+      metas.put(id, data);
+      metas.remember(meta, id);
+    }
+    return id;
+  }
+
+  private ByteBuffer metaFrame(long id, byte[] data) {
+    ByteBuffer frame = ByteBuffer.allocate(META_HEADER_BYTES + data.length);
+    frame.putInt(data.length).putInt(0).putLong(id).put(data);
+    crc.reset();
+    crc.update(frame.array(), 8, 8 + data.length);
+    frame.putInt(4, (int) crc.getValue());
+    frame.flip();
+    return frame;
+  }
+
+  private void loadMetas() throws IOException {
+    File file = new File(dir, META_FILE_NAME);
+    metaChannel = new RandomAccessFile(file, "rw").getChannel();
+    ByteBuffer buffer = ByteBuffer.allocate((int) metaChannel.size());
+    while (buffer.hasRemaining() && metaChannel.read(buffer, buffer.position()) > 0) {
+      // read the whole file, snapshots are few and small
+    }
+    int position = 0;
+    while (position + META_HEADER_BYTES <= buffer.position()) {
+      int length = buffer.getInt(position);
+      if (length < 0 || length > buffer.position() - position - META_HEADER_BYTES) {
+        break;
+      }
+      crc.reset();
+      crc.update(buffer.array(), position + 8, 8 + length);
+      if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+        break;
+      }
+      long id = buffer.getLong(position + 8);
+      byte[] data = Arrays.copyOfRange(buffer.array(), position + META_HEADER_BYTES,
+          position + META_HEADER_BYTES + length);
+      metas.put(id, data);
+      position += META_HEADER_BYTES + length;
+    }
+    if (position < buffer.position()) {
+      Log.e(TAG, "Cutting off torn meta snapshot at " + position);
+      metaChannel.truncate(position);
+    }
+  }
+
+  /**
+   * Rewrites the meta file with only the snapshots still used by queued records.
+   */
+  private void compactMetas() throws IOException {
+    Set<Long> used = new HashSet<>();
+    for (Segment segment : segments) {
+      for (int i = segment.removed.nextClearBit(0); i < segment.count; i = segment.removed.nextClearBit(i + 1)) {
+        used.add(segment.metaId(i));
+      }
+    }
+    File file = new File(dir, META_FILE_NAME);
+    File tmp = new File(dir, META_FILE_NAME + ".tmp");
+    FileChannel channel = new RandomAccessFile(tmp, "rw").getChannel();
+    try {
+      channel.truncate(0);
+      metas.retain(used);
+      for (Map.Entry<Long, byte[]> entry : metas.snapshots().entrySet()) {
+        write(channel, metaFrame(entry.getKey(), entry.getValue()), channel.size());
+      }
+      channel.force(false);
+    } finally {
+      channel.close();
+    }
+    metaChannel.close();
+    boolean replaced = tmp.renameTo(file);
+    metaChannel = new RandomAccessFile(file, "rw").getChannel();
+    if (!replaced) {
+      // the old file still has all snapshots, only the dropped ones are not read again
+      throw new IOException("Unable to replace " + file);
+    }
+  }
+
+  private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+}
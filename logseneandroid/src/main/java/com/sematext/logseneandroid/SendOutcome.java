@@ -0,0 +1,66 @@
+package com.sematext.logseneandroid;
+
+/**
+ * Classification of the result of sending a bulk request.
+ */
+enum SendOutcome {
+  /**
+   * Accepted by the receiver, the records can be removed.
+   */
+  SUCCESS,
+
+  /**
+   * Failed for a reason which is expected to go away, e.g. network errors, timeouts, throttling
+   * (429) or an overloaded receiver (5xx). The records are kept and sent again later.
+   */
+  RETRYABLE,
+
+  /**
+   * Rejected in a way that sending the same request again cannot fix, e.g. an invalid app token.
+   * The records are kept, but retrying soon is pointless.
+   */
+  PERMANENT;
+
+  /**
+   * Classifies an http status code.
+   * @param code status code of the response
+   * @return the outcome
+   */
+  static SendOutcome ofStatus(int code) {
+    if (code >= 200 && code < 300) {
+      return SUCCESS;
+    }
+    switch (code) {
+      case 408: // request timeout
+      case 413: // request too large, sent again in smaller bulks
+      case 429: // too many requests
+        return RETRYABLE;
+      default:
+        return code >= 500 ? RETRYABLE : PERMANENT;
+    }
+  }
+
+  /**
+   * Classifies the result of a single document of a bulk request.
+   * @param status status of the bulk response item
+   * @param errorType type of the item error, null if none
+   * @return the outcome
+   */
+  static SendOutcome ofItem(int status, String errorType) {
+    if (errorType != null) {
+      switch (errorType) {
+        // the cluster is busy or recovering, the document itself is fine
+        case "es_rejected_execution_exception":
+        case "circuit_breaking_exception":
+        case "unavailable_shards_exception":
+        case "process_cluster_event_timeout_exception":
+          return RETRYABLE;
+        default:
+          break;
+      }
+    }
+    SendOutcome outcome = ofStatus(status);
+    // a document too large on its own is never accepted
+    return status == 413 ? PERMANENT : outcome;
+  }
+}
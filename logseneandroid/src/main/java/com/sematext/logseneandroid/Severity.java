@@ -0,0 +1,61 @@
+package com.sematext.logseneandroid;
+
+import java.util.Locale;
+
+/**
+ * Severity rank of a log level, used to decide which messages to keep when the queue is full.
+ */
+enum Severity {
+  DEBUG(0), INFO(1), WARN(2), ERROR(3);
+
+  /**
+   * Persisted rank, higher is more severe.
+   */
+  final int rank;
+
+  Severity(int rank) {
+    this.rank = rank;
+  }
+
+  /**
+   * Maps a free form <code>level</code> value (including java.util.logging names) to a severity.
+   * @param level the level, may be null
+   * @return the severity, <code>INFO</code> for unknown levels
+   */
+  static Severity of(String level) {
+    Severity severity = level == null ? null : parse(level);
+    return severity != null ? severity : INFO;
+  }
+
+  /**
+   * Maps a known level name (including java.util.logging names) to a severity, for settings where
+   * a typo must not be taken for <code>info</code>.
+   * @param level the level
+   * @return the severity, null for unknown levels
+   */
+  static Severity parse(String level) {
+    switch (level.trim().toLowerCase(Locale.ENGLISH)) {
+      case "trace":
+      case "verbose":
+      case "debug":
+      case "finest":
+      case "finer":
+      case "fine":
+      case "config":
+        return DEBUG;
+      case "info":
+        return INFO;
+      case "warn":
+      case "warning":
+        return WARN;
+      case "error":
+      case "severe":
+      case "fatal":
+      case "critical":
+      case "assert":
+        return ERROR;
+      default:
+        return null;
+    }
+  }
+}
@@ -1,31 +1,89 @@
 package com.sematext.logseneandroid;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Persistent FIFO queue implementation with Sqlite.
+ * Persistent FIFO queue implementation with Sqlite, the default {@link LogQueue} storage.
+ *
+ * The queue is bounded by number of records and optionally by their total encoded size, each with a
+ * high and a low watermark: once a limit is exceeded, a chunk of records is evicted until the queue
+ * drops to the low watermark. Records with the lowest severity are evicted first, oldest first
+ * within the same severity.
+ *
+ * Senders lease the records they are about to send, so that concurrent worker runs never send the
+ * same records, and acknowledge them by id range and lease. Leases of a sender that was killed
+ * expire and the records are sent again by a later run.
  */
-class SqliteObjectQueue {
+class SqliteObjectQueue implements LogQueue {
+  private final static String TAG = "SqliteObjectQueue";
+  private final static Charset UTF_8 = Charset.forName("UTF-8");
   private final static String TABLE_NAME = "objects";
+  private final static String QUARANTINE_TABLE_NAME = "quarantine";
+  private final static String META_TABLE_NAME = "meta";
+
+  /**
+   * Max number of corrupt records kept aside for inspection, older ones are dropped.
+   */
+  private final static int MAX_QUARANTINED = 100;
   private final static int DEFAULT_MAX_SIZE = 5000;
+
+  /**
+   * Part of the max size that is evicted at once when the queue overflows.
+   */
+  private final static int EVICTION_CHUNK_DIVISOR = 10;
+
+  /**
+   * Number of records read at once while looking for the eviction boundary.
+   */
+  private final static int EVICTION_PAGE_SIZE = 256;
+
+  /**
+   * Number of records moved to the tail of the queue with one statement.
+   */
+  private final static int REQUEUE_CHUNK_SIZE = 500;
+
   private final SQLiteDatabase db;
   private final int maxSize;
-  private final static ConcurrentHashMap<String, Long> sizeCache = new ConcurrentHashMap<>();
+  private final int lowWatermark;
+  private final long maxBytes;
+  private final long lowBytesWatermark;
+
+  // counters are shared by all instances, as they all use the same database
+  private final static AtomicLong cachedSize = new AtomicLong(-1);
+  private final static AtomicLong cachedBytes = new AtomicLong(-1);
+  private final static AtomicLong evictedCount = new AtomicLong();
+  private final static AtomicLong evictionCount = new AtomicLong();
+  private final static AtomicLong requeuedCount = new AtomicLong();
+  private final static AtomicLong quarantinedCount = new AtomicLong();
+  private static SQLiteStatement insertStatement;
+
+  /**
+   * Last interned meta snapshot, guarded by the insert statement. The snapshots themselves are in
+   * the meta table.
+   */
+  private static final MetaInterner internedMeta = new MetaInterner();
 
   public static class ObjectDbHelper extends SQLiteOpenHelper {
-    public static final int DATABASE_VERSION = 2;
+    public static final int DATABASE_VERSION = 7;
     public static final String DATABASE_NAME = "logs";
     private static ObjectDbHelper dbInstance;
 
@@ -41,16 +99,102 @@ class SqliteObjectQueue {
     }
 
     public void onCreate(SQLiteDatabase db) {
-      db.execSQL("CREATE TABLE " + TABLE_NAME + " (id INTEGER PRIMARY KEY, data TEXT);");
+      db.execSQL("CREATE TABLE " + TABLE_NAME + " (id INTEGER PRIMARY KEY, data TEXT, "
+          + "severity INTEGER NOT NULL DEFAULT " + Severity.INFO.rank + ", ts INTEGER NOT NULL DEFAULT 0, "
+          + "bytes INTEGER NOT NULL DEFAULT 0, meta_id INTEGER NOT NULL DEFAULT 0, "
+          + "lease_id INTEGER NOT NULL DEFAULT 0, lease_expiry INTEGER NOT NULL DEFAULT 0);");
+      createIndexes(db);
+      createQuarantine(db);
+      createMeta(db);
     }
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+      if (oldVersion < 2) {
+        recreate(db);
+        return;
+      }
+      // migrations keep queued messages, each step upgrades the schema by one version
+      if (oldVersion < 3) {
+        upgradeToVersion3(db);
+      }
+      if (oldVersion < 4) {
+        upgradeToVersion4(db);
+      }
+      if (oldVersion < 5) {
+        createQuarantine(db);
+      }
+      if (oldVersion < 6) {
+        // records queued so far have their meta inline and keep it
+        db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN meta_id INTEGER NOT NULL DEFAULT 0;");
+        createMeta(db);
+      }
+      if (oldVersion < 7) {
+        db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN lease_id INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN lease_expiry INTEGER NOT NULL DEFAULT 0;");
+      }
+    }
+
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+      recreate(db);
+    }
+
+    private void recreate(SQLiteDatabase db) {
       db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME + ";");
+      db.execSQL("DROP TABLE IF EXISTS " + QUARANTINE_TABLE_NAME + ";");
+      db.execSQL("DROP TABLE IF EXISTS " + META_TABLE_NAME + ";");
       onCreate(db);
     }
 
-    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-      onUpgrade(db, oldVersion, newVersion);
+    private static void createIndexes(SQLiteDatabase db) {
+      // eviction walks this index from the least severe, oldest record
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_severity ON " + TABLE_NAME + " (severity, id);");
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_ts ON " + TABLE_NAME + " (ts);");
+    }
+
+    private static void createQuarantine(SQLiteDatabase db) {
+      db.execSQL("CREATE TABLE IF NOT EXISTS " + QUARANTINE_TABLE_NAME
+          + " (id INTEGER PRIMARY KEY, data BLOB, ts INTEGER NOT NULL DEFAULT 0);");
+    }
+
+    private static void createMeta(SQLiteDatabase db) {
+      db.execSQL("CREATE TABLE IF NOT EXISTS " + META_TABLE_NAME
+          + " (id INTEGER PRIMARY KEY, data TEXT NOT NULL UNIQUE);");
+    }
+
+    private static void upgradeToVersion3(SQLiteDatabase db) {
+      db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN severity INTEGER NOT NULL DEFAULT "
+          + Severity.INFO.rank + ";");
+      db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN ts INTEGER NOT NULL DEFAULT 0;");
+
+      // derive severity of already queued messages from their level
+      SQLiteStatement update = db.compileStatement(
+          "UPDATE " + TABLE_NAME + " SET severity = ? WHERE id = ?");
+      Cursor c = db.rawQuery("SELECT id, data FROM " + TABLE_NAME, null);
+      try {
+        while (c.moveToNext()) {
+          Severity severity;
+          try {
+            severity = Severity.of(new JSONObject(c.getString(1)).optString("level", null));
+          } catch (JSONException e) {
+            severity = Severity.INFO;
+          }
+          if (severity != Severity.INFO) {
+            update.bindLong(1, severity.rank);
+            update.bindLong(2, c.getLong(0));
+            update.executeUpdateDelete();
+          }
+        }
+      } finally {
+        c.close();
+        update.close();
+      }
+      createIndexes(db);
+    }
+
+    private static void upgradeToVersion4(SQLiteDatabase db) {
+      db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN bytes INTEGER NOT NULL DEFAULT 0;");
+      // casting to blob makes length() count utf-8 bytes instead of characters
+      db.execSQL("UPDATE " + TABLE_NAME + " SET bytes = length(CAST(data AS BLOB));");
     }
   }
 
@@ -60,38 +204,60 @@ class SqliteObjectQueue {
    * @param context android context
    */
   public SqliteObjectQueue(Context context) {
-    Utils.requireNonNull(context);
-    ObjectDbHelper dbHelper = ObjectDbHelper.getInstance(context);
-    this.db = dbHelper.getWritableDatabase();
-    this.maxSize = DEFAULT_MAX_SIZE;
+    this(context, DEFAULT_MAX_SIZE);
   }
 
   /**
    * Constructor.
    *
    * @param context android context
-   * @param maxSize max size of the queue, older records will be overwritten
+   * @param maxSize max size of the queue, older records will be evicted in chunks once exceeded
    */
   public SqliteObjectQueue(Context context, int maxSize) {
+    this(context, maxSize, 0);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param context android context
+   * @param maxSize max size of the queue, older records will be evicted in chunks once exceeded
+   * @param maxBytes max total size of the encoded records in bytes, 0 for no limit
+   */
+  public SqliteObjectQueue(Context context, int maxSize, long maxBytes) {
     Utils.requireNonNull(context);
     if (maxSize <= 0) {
       throw new IllegalArgumentException("maxSize must be greater than 0");
     }
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must not be negative");
+    }
     ObjectDbHelper dbHelper = ObjectDbHelper.getInstance(context);
     this.db = dbHelper.getWritableDatabase();
     this.maxSize = maxSize;
+    this.lowWatermark = maxSize - Math.max(1, maxSize / EVICTION_CHUNK_DIVISOR);
+    this.maxBytes = maxBytes;
+    this.lowBytesWatermark = maxBytes - maxBytes / EVICTION_CHUNK_DIVISOR;
   }
 
   /**
    * Get size of the queue.
    * @return size of the queue.
    */
+  @Override
   public long size() {
-    if (sizeCache.get(ObjectDbHelper.DATABASE_NAME) == null) {
-      sizeCache.put(ObjectDbHelper.DATABASE_NAME, DatabaseUtils.queryNumEntries(db, TABLE_NAME));
-    }
+    loadCounters();
+    return cachedSize.get();
+  }
 
-    return sizeCache.get(ObjectDbHelper.DATABASE_NAME);
+  /**
+   * Get total size of the encoded records in the queue.
+   * @return size in bytes
+   */
+  @Override
+  public long bytes() {
+    loadCounters();
+    return cachedBytes.get();
   }
 
   /**
@@ -99,13 +265,125 @@ class SqliteObjectQueue {
    */
   public void add(JSONObject obj) {
     Utils.requireNonNull(obj);
-    db.execSQL("INSERT INTO " + TABLE_NAME + "(data) VALUES (?)", new Object[] { obj.toString() } );
-    if (sizeCache.get(ObjectDbHelper.DATABASE_NAME) != null) {
-      sizeCache.put(ObjectDbHelper.DATABASE_NAME, sizeCache.get(ObjectDbHelper.DATABASE_NAME) + 1);
+    addAll(Collections.singletonList(new QueueEntry(obj.toString(),
+        Severity.of(obj.optString("level", null)), System.currentTimeMillis())));
+  }
+
+  /**
+   * Pushes already serialized elements to queue.
+   *
+   * All rows are written in a single transaction with a reused compiled statement. If the batch
+   * pushes the queue over one of its limits, the least severe and oldest records are evicted down to
+   * the low watermark with a single range delete.
+   *
+   * @param data serialized messages
+   * @return number of evicted records
+   */
+  @Override
+  public long addAll(Collection<QueueEntry> data) {
+    Utils.requireNonNull(data);
+    if (data.isEmpty()) {
+      return 0;
+    }
+    long evicted = 0;
+    // make sure the counters are known before the transaction, so they can be adjusted incrementally
+    loadCounters();
+    SQLiteStatement insert = getInsertStatement(db);
+    synchronized (insert) {
+      db.beginTransaction();
+      try {
+        long addedBytes = 0;
+        for (QueueEntry entry : data) {
+          int bytes = Utils.utf8Length(entry.data);
+          insert.bindString(1, entry.data);
+          insert.bindLong(2, entry.severity.rank);
+          insert.bindLong(3, entry.timestamp);
+          insert.bindLong(4, bytes);
+          insert.bindLong(5, internMeta(entry.meta));
+          insert.executeInsert();
+          addedBytes += bytes;
+        }
+        long size = cachedSize.addAndGet(data.size());
+        long bytes = cachedBytes.addAndGet(addedBytes);
+
+        long rowsOver = size > maxSize ? size - lowWatermark : 0;
+        long bytesOver = maxBytes > 0 && bytes > maxBytes ? bytes - lowBytesWatermark : 0;
+        if (rowsOver > 0 || bytesOver > 0) {
+          evicted = delete(rowsOver, bytesOver, true);
+          evictedCount.addAndGet(evicted);
+          evictionCount.incrementAndGet();
+        }
+        db.setTransactionSuccessful();
+      } catch (RuntimeException e) {
+        resetCounters();
+        // the snapshot might have been inserted by the rolled back transaction
+        internedMeta.forget();
+        throw e;
+      } finally {
+        insert.clearBindings();
+        db.endTransaction();
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Returns the id of a stored meta snapshot, storing it first if needed. Must be called within a
+   * transaction, holding the lock of the insert statement.
+   * @param meta the serialized snapshot, null if none
+   * @return the snapshot id, 0 for none
+   */
+  private long internMeta(String meta) {
+    if (meta == null) {
+      return 0;
+    }
+    long id = internedMeta.idOf(meta);
+    if (id != 0) {
+      return id;
+    }
+    Cursor c = db.rawQuery("SELECT id FROM " + META_TABLE_NAME + " WHERE data = ?", new String[] { meta });
+    try {
+      if (c.moveToFirst()) {
+        id = c.getLong(0);
+      }
+    } finally {
+      c.close();
     }
-    if (size() > maxSize) {
-      remove(1);
+    if (id == 0) {
+      // drop snapshots no longer used by any record whenever a new one shows up
+      db.execSQL("DELETE FROM " + META_TABLE_NAME + " WHERE id NOT IN (SELECT meta_id FROM " + TABLE_NAME + ")");
+      ContentValues values = new ContentValues();
+      values.put("data", meta);
+      id = db.insertOrThrow(META_TABLE_NAME, null, values);
     }
+    internedMeta.remember(meta, id);
+    return id;
+  }
+
+  /**
+   * Returns a stored meta snapshot.
+   * @param metaId id of the snapshot
+   * @return the serialized snapshot encoded as UTF-8, or null if there is no such snapshot
+   */
+  @Override
+  public byte[] readMeta(long metaId) {
+    Cursor c = db.rawQuery("SELECT CAST(data AS BLOB) FROM " + META_TABLE_NAME + " WHERE id = ?",
+        new String[] { String.valueOf(metaId) });
+    try {
+      return c.moveToFirst() ? c.getBlob(0) : null;
+    } finally {
+      c.close();
+    }
+  }
+
+  /**
+   * Returns the queue counters. Eviction counters are shared by all instances in the process.
+   * @return <code>QueueStats</code> snapshot
+   */
+  @Override
+  public QueueStats getStats() {
+    return new QueueStats(size(), bytes(), evictedCount.get(), evictionCount.get(), requeuedCount.get(),
+        quarantinedCount.get());
   }
 
   /**
@@ -113,21 +391,38 @@ class SqliteObjectQueue {
    * @param max max number of elements to return.
    * @return list of elements
    */
+  @Override
   public List<JSONObject> peek(int max) {
     if (max <= 0) {
       throw new IllegalArgumentException("max must be greater than 0");
     }
 
     List<JSONObject> results = new ArrayList<>();
-    Cursor c = db.query(TABLE_NAME, new String[] { "data" }, null, null, null, null, "id asc", String.valueOf(max));
+    List<Long> corrupt = null;
+    Map<Long, String> metas = new HashMap<>();
+    Cursor c = db.query(TABLE_NAME, new String[] { "id", "data", "meta_id" }, null, null, null, null, "id asc",
+        String.valueOf(max));
     try {
       while (c.moveToNext()) {
-        String data = c.getString(c.getColumnIndex("data"));
+        String data = c.getString(1);
         try {
           JSONObject o = new JSONObject(data);
+          long metaId = c.getLong(2);
+          if (metaId != 0) {
+            String meta = metas.get(metaId);
+            if (meta == null) {
+              byte[] metaData = readMeta(metaId);
+              meta = metaData == null ? "{}" : new String(metaData, UTF_8);
+              metas.put(metaId, meta);
+            }
+            o.put("meta", new JSONObject(meta));
+          }
           results.add(o);
         } catch (JSONException e) {
-          throw new RuntimeException(e);
+          if (corrupt == null) {
+            corrupt = new ArrayList<>();
+          }
+          corrupt.add(c.getLong(0));
         }
       }
     } finally {
@@ -135,26 +430,486 @@ class SqliteObjectQueue {
         c.close();
       }
     }
+    if (corrupt != null) {
+      quarantine(toArray(corrupt));
+    }
     return results;
   }
 
+  /**
+   * Retrieves up to specified amount of elements from queue as stored, without removing or
+   * parsing them. Records which are not well formed are moved to the quarantine and skipped, so
+   * fewer than <code>max</code> elements might be returned even if the queue holds more.
+   * @param max max number of elements to return.
+   * @return the elements with their meta, encoded as UTF-8
+   */
+  public List<byte[]> peekRaw(int max) {
+    if (max <= 0) {
+      throw new IllegalArgumentException("max must be greater than 0");
+    }
+
+    List<byte[]> results = new ArrayList<>();
+    List<Long> corrupt = null;
+    Map<Long, byte[]> metas = new HashMap<>();
+    Cursor c = db.rawQuery("SELECT id, CAST(data AS BLOB), meta_id FROM " + TABLE_NAME + " ORDER BY id ASC LIMIT " + max,
+        null);
+    try {
+      while (c.moveToNext()) {
+        byte[] data = c.getBlob(1);
+        if (data != null && RecordValidator.isWellFormed(data)) {
+          long metaId = c.getLong(2);
+          if (metaId != 0) {
+            byte[] meta = metas.get(metaId);
+            if (meta == null) {
+              meta = readMeta(metaId);
+              metas.put(metaId, meta);
+            }
+            data = MetaSplicer.splice(data, meta);
+          }
+          results.add(data);
+        } else {
+          if (corrupt == null) {
+            corrupt = new ArrayList<>();
+          }
+          corrupt.add(c.getLong(0));
+        }
+      }
+    } finally {
+      c.close();
+    }
+    if (corrupt != null) {
+      quarantine(toArray(corrupt));
+    }
+    return results;
+  }
+
+  /**
+   * Moves records out of the queue into the quarantine.
+   * @param ids ids of the records
+   */
+  void quarantine(long[] ids) {
+    loadCounters();
+    db.beginTransaction();
+    try {
+      copyToQuarantine(ids);
+      String where = "id IN (" + join(ids, 0, ids.length) + ")";
+      Cursor c = db.rawQuery("SELECT IFNULL(SUM(bytes), 0) FROM " + TABLE_NAME + " WHERE " + where, null);
+      long bytes;
+      try {
+        c.moveToFirst();
+        bytes = c.getLong(0);
+      } finally {
+        c.close();
+      }
+      long deleted = db.delete(TABLE_NAME, where, null);
+      cachedSize.addAndGet(-deleted);
+      cachedBytes.addAndGet(-bytes);
+      db.setTransactionSuccessful();
+    } catch (RuntimeException e) {
+      resetCounters();
+      throw e;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Returns the range of up to specified amount of the oldest elements, without reading them.
+   * @param max max number of elements in the range.
+   * @return the range, or <code>null</code> if the queue is empty
+   */
+  public QueueRange peekRange(int max) {
+    return peekRange(0, max);
+  }
+
+  /**
+   * Returns the range of up to specified amount of the oldest elements following the given id,
+   * without reading them. Used to peek further ranges while earlier ones are still being sent.
+   * @param afterId only elements with a greater id are included, 0 to start at the oldest one
+   * @param max max number of elements in the range.
+   * @return the range, or <code>null</code> if there are no such elements
+   */
+  public QueueRange peekRange(long afterId, int max) {
+    return peekRange(afterId, max, Long.MAX_VALUE);
+  }
+
+  /**
+   * Returns the range of up to specified amount and total size of the oldest elements following
+   * the given id, without reading them. The first element is always included, even if it alone
+   * is bigger than <code>maxBytes</code>.
+   * @param afterId only elements with a greater id are included, 0 to start at the oldest one
+   * @param max max number of elements in the range.
+   * @param maxBytes max total size of the elements in the range.
+   * @return the range, or <code>null</code> if there are no such elements
+   */
+  public QueueRange peekRange(long afterId, int max, long maxBytes) {
+    if (max <= 0 || maxBytes <= 0) {
+      throw new IllegalArgumentException("max and maxBytes must be greater than 0");
+    }
+    Cursor c = db.rawQuery("SELECT id, bytes, ts FROM " + TABLE_NAME + " WHERE id > ? ORDER BY id ASC LIMIT " + max,
+        new String[] { String.valueOf(afterId) });
+    try {
+      long firstId = -1;
+      long lastId = -1;
+      int count = 0;
+      long bytes = 0;
+      long[] timestamps = null;
+      while (c.moveToNext()) {
+        long recordBytes = c.getLong(1);
+        if (count > 0 && bytes + recordBytes > maxBytes) {
+          break;
+        }
+        if (count == 0) {
+          firstId = c.getLong(0);
+          timestamps = new long[c.getCount()];
+        }
+        lastId = c.getLong(0);
+        bytes += recordBytes;
+        timestamps[count++] = c.getLong(2);
+      }
+      return count == 0 ? null : new QueueRange(firstId, lastId, count, bytes, timestamps);
+    } finally {
+      c.close();
+    }
+  }
+
+  @Override
+  public QueueRange lease(long leaseId, long afterId, long maxId, int max, long maxBytes, long now, long leaseMillis) {
+    Leases.checkArguments(leaseId, max, maxBytes, leaseMillis);
+    String available = Leases.leasableWhere(now, now + leaseMillis);
+    db.beginTransaction();
+    try {
+      Cursor c = db.rawQuery("SELECT id, bytes, ts FROM " + TABLE_NAME + " WHERE id > ? AND id <= ? AND "
+          + available + " ORDER BY id ASC LIMIT " + max,
+          new String[] { String.valueOf(afterId), String.valueOf(maxId) });
+      QueueRange range;
+      try {
+        Leases.Builder leased = new Leases.Builder(leaseId, max, maxBytes, c.getCount());
+        while (c.moveToNext() && leased.fits(c.getLong(1))) {
+          leased.add(c.getLong(0), c.getLong(1), c.getLong(2));
+        }
+        range = leased.build();
+        if (range == null) {
+          return null;
+        }
+      } finally {
+        c.close();
+      }
+      // the transaction is exclusive, so these are exactly the elements selected above
+      db.execSQL("UPDATE " + TABLE_NAME + " SET lease_id = ?, lease_expiry = ? WHERE id BETWEEN ? AND ? AND "
+          + available, new Object[] { leaseId, now + leaseMillis, range.firstId, range.lastId });
+      db.setTransactionSuccessful();
+      return range;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  @Override
+  public void release(QueueRange range) {
+    Utils.requireNonNull(range);
+    if (range.leaseId == 0) {
+      return;
+    }
+    db.execSQL("UPDATE " + TABLE_NAME + " SET lease_id = 0, lease_expiry = 0 WHERE " + rangeWhere(range),
+        rangeArgs(range));
+  }
+
+  /**
+   * Reads the raw stored elements of a range, oldest first, without parsing them.
+   * @param range the range to read
+   * @param reader receives each element
+   * @throws IOException if thrown by the reader
+   */
+  @Override
+  public void read(QueueRange range, RecordReader reader) throws IOException {
+    Utils.requireNonNull(range);
+    Utils.requireNonNull(reader);
+    // selecting a blob returns the exact utf-8 bytes, no string is created for the record
+    Cursor c = db.rawQuery("SELECT id, CAST(data AS BLOB), meta_id FROM " + TABLE_NAME
+        + " WHERE " + rangeWhere(range) + " ORDER BY id ASC", rangeArgs(range));
+    try {
+      while (c.moveToNext()) {
+        reader.read(c.getLong(0), c.getBlob(1), c.getLong(2));
+      }
+    } finally {
+      c.close();
+    }
+  }
+
+  /**
+   * Removes all elements of a range which are still in the queue.
+   * @param range the range to remove
+   */
+  public void remove(QueueRange range) {
+    remove(range, null, null);
+  }
+
+  /**
+   * Removes all elements of a range which are still in the queue, except for the given ones which
+   * are moved to the tail of the queue or into the quarantine instead.
+   * @param range the range to remove
+   * @param requeueIds ids of the elements to move to the tail, e.g. to send them again later, may
+   *                   be null
+   * @param quarantineIds ids of corrupt elements to keep aside, may be null
+   */
+  @Override
+  public void remove(QueueRange range, long[] requeueIds, long[] quarantineIds) {
+    Utils.requireNonNull(range);
+    loadCounters();
+    String where = rangeWhere(range);
+    String[] args = rangeArgs(range);
+    db.beginTransaction();
+    try {
+      long requeued = requeueIds == null ? 0 : requeue(requeueIds);
+      if (quarantineIds != null) {
+        copyToQuarantine(quarantineIds);
+      }
+      // some records of the range might have been evicted in the meantime, or leased by another
+      // sender after the lease expired
+      Cursor c = db.rawQuery("SELECT COUNT(*), IFNULL(SUM(bytes), 0) FROM " + TABLE_NAME
+          + " WHERE " + where, args);
+      long bytes;
+      try {
+        c.moveToFirst();
+        bytes = c.getLong(1);
+      } finally {
+        c.close();
+      }
+      long deleted = db.delete(TABLE_NAME, where, args);
+      cachedSize.addAndGet(-deleted);
+      cachedBytes.addAndGet(-bytes);
+      requeuedCount.addAndGet(requeued);
+      db.setTransactionSuccessful();
+    } catch (RuntimeException e) {
+      resetCounters();
+      throw e;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Copies records to the tail of the queue. Must be called within a transaction.
+   * @return number of copied records
+   */
+  private long requeue(long[] ids) {
+    long copied = 0;
+    for (int from = 0; from < ids.length; from += REQUEUE_CHUNK_SIZE) {
+      int to = Math.min(ids.length, from + REQUEUE_CHUNK_SIZE);
+      String where = " FROM " + TABLE_NAME + " WHERE id IN (" + join(ids, from, to) + ")";
+      Cursor c = db.rawQuery("SELECT COUNT(*), IFNULL(SUM(bytes), 0)" + where, null);
+      try {
+        c.moveToFirst();
+        copied += c.getLong(0);
+        cachedSize.addAndGet(c.getLong(0));
+        cachedBytes.addAndGet(c.getLong(1));
+      } finally {
+        c.close();
+      }
+      db.execSQL("INSERT INTO " + TABLE_NAME + " (data, severity, ts, bytes, meta_id)"
+          + " SELECT data, severity, ts, bytes, meta_id" + where + " ORDER BY id ASC");
+    }
+    return copied;
+  }
+
+  /**
+   * Copies records into the quarantine and drops the oldest quarantined ones above the limit. Must
+   * be called within a transaction.
+   */
+  private void copyToQuarantine(long[] ids) {
+    if (ids.length == 0) {
+      return;
+    }
+    for (int from = 0; from < ids.length; from += REQUEUE_CHUNK_SIZE) {
+      int to = Math.min(ids.length, from + REQUEUE_CHUNK_SIZE);
+      db.execSQL("INSERT INTO " + QUARANTINE_TABLE_NAME + " (data, ts) SELECT CAST(data AS BLOB), ts FROM "
+          + TABLE_NAME + " WHERE id IN (" + join(ids, from, to) + ") ORDER BY id ASC");
+    }
+    db.execSQL("DELETE FROM " + QUARANTINE_TABLE_NAME + " WHERE id <= (SELECT MAX(id) FROM "
+        + QUARANTINE_TABLE_NAME + ") - " + MAX_QUARANTINED);
+    quarantinedCount.addAndGet(ids.length);
+    Log.e(TAG, "Moved " + ids.length + " corrupt records to the quarantine");
+  }
+
+  /**
+   * Returns the condition selecting the elements of a range, only those of its lease if leased.
+   */
+  private static String rangeWhere(QueueRange range) {
+    return range.leaseId == 0 ? "id BETWEEN ? AND ?" : "id BETWEEN ? AND ? AND lease_id = ?";
+  }
+
+  private static String[] rangeArgs(QueueRange range) {
+    String first = String.valueOf(range.firstId);
+    String last = String.valueOf(range.lastId);
+    return range.leaseId == 0 ? new String[] { first, last }
+        : new String[] { first, last, String.valueOf(range.leaseId) };
+  }
+
+  private static String join(long[] ids, int from, int to) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = from; i < to; i++) {
+      sb.append(i == from ? "" : ",").append(ids[i]);
+    }
+    return sb.toString();
+  }
+
+  private static long[] toArray(List<Long> ids) {
+    long[] result = new long[ids.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = ids.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the id of the newest element, 0 if the queue is empty.
+   */
+  @Override
+  public long lastId() {
+    return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(id), 0) FROM " + TABLE_NAME, null);
+  }
+
   /**
    * Removes up to specified amount of elements from queue.
    * @param n amount of elements to remove.
    */
   public void remove(int n) {
-    // On android sqlite deletes with limit and order keywords are disabled so we have to workaround it.
-    // In addition to that we need to remember about the Locale here - see:
-    // https://github.com/sematext/sematext-logsene-android/issues/26.
-    String deleteQuery = String.format(Utils.DEFAULT_LOCALE,
-            "DELETE FROM %s WHERE `id` IN (SELECT `id` FROM %s ORDER BY `id` ASC limit %d);",
-            TABLE_NAME, TABLE_NAME, n);
-    db.execSQL(deleteQuery);
-    SQLiteStatement stmt = db.compileStatement("SELECT CHANGES()");
-    long result = stmt.simpleQueryForLong();
-    if (sizeCache.get(ObjectDbHelper.DATABASE_NAME) != null) {
-      sizeCache.put(ObjectDbHelper.DATABASE_NAME, sizeCache.get(ObjectDbHelper.DATABASE_NAME) - result);
-    }
-    stmt.close();
+    loadCounters();
+    db.beginTransaction();
+    try {
+      delete(n, 0, false);
+      db.setTransactionSuccessful();
+    } catch (RuntimeException e) {
+      resetCounters();
+      throw e;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Forgets the process wide database state, so that tests can start with a fresh database.
+   */
+  static synchronized void resetForTesting() {
+    synchronized (ObjectDbHelper.class) {
+      if (ObjectDbHelper.dbInstance != null) {
+        ObjectDbHelper.dbInstance.close();
+        ObjectDbHelper.dbInstance = null;
+      }
+    }
+    insertStatement = null;
+    internedMeta.forget();
+    resetCounters();
+    evictedCount.set(0);
+    evictionCount.set(0);
+    requeuedCount.set(0);
+    quarantinedCount.set(0);
+  }
+
+  /**
+   * Deletes records until at least <code>rows</code> records and <code>bytes</code> bytes are
+   * freed. Must be called within a transaction.
+   *
+   * Records are walked in eviction order (FIFO, or least severe first) on the primary key or the
+   * <code>(severity, id)</code> index, and everything up to the last walked record is removed with
+   * a single range delete. Freed bytes are summed during the walk, so the byte counter never needs
+   * a <code>SUM()</code> over the table.
+   *
+   * @return number of deleted records
+   */
+  private long delete(long rows, long bytes, boolean leastSevereFirst) {
+    // On android sqlite deletes with limit and order keywords are disabled, so we look up the
+    // boundary record and delete everything up to it.
+    long count = 0;
+    long freed = 0;
+    long severity = -1;
+    long lastId = -1;
+    boolean more = true;
+    while (more && (count < rows || freed < bytes)) {
+      Cursor c;
+      String limit = String.valueOf(Math.max(EVICTION_PAGE_SIZE, rows - count));
+      if (leastSevereFirst) {
+        c = db.rawQuery("SELECT severity, id, bytes FROM " + TABLE_NAME
+            + " WHERE severity > ? OR (severity = ? AND id > ?) ORDER BY severity ASC, id ASC LIMIT " + limit,
+            new String[] { String.valueOf(severity), String.valueOf(severity), String.valueOf(lastId) });
+      } else {
+        c = db.rawQuery("SELECT severity, id, bytes FROM " + TABLE_NAME
+            + " WHERE id > ? ORDER BY id ASC LIMIT " + limit, new String[] { String.valueOf(lastId) });
+      }
+      try {
+        more = false;
+        while ((count < rows || freed < bytes) && c.moveToNext()) {
+          more = true;
+          severity = c.getLong(0);
+          lastId = c.getLong(1);
+          freed += c.getLong(2);
+          count++;
+        }
+      } finally {
+        c.close();
+      }
+    }
+    if (count == 0) {
+      return 0;
+    }
+
+    SQLiteStatement delete;
+    if (leastSevereFirst) {
+      delete = db.compileStatement("DELETE FROM " + TABLE_NAME
+          + " WHERE severity < ? OR (severity = ? AND id <= ?)");
+      delete.bindLong(1, severity);
+      delete.bindLong(2, severity);
+      delete.bindLong(3, lastId);
+    } else {
+      delete = db.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE id <= ?");
+      delete.bindLong(1, lastId);
+    }
+    long deleted;
+    try {
+      deleted = delete.executeUpdateDelete();
+    } finally {
+      delete.close();
+    }
+    cachedSize.addAndGet(-deleted);
+    cachedBytes.addAndGet(-freed);
+    return deleted;
+  }
+
+  private void loadCounters() {
+    if (cachedSize.get() >= 0 && cachedBytes.get() >= 0) {
+      return;
+    }
+    synchronized (cachedSize) {
+      if (cachedSize.get() >= 0 && cachedBytes.get() >= 0) {
+        return;
+      }
+      // one time count when the queue is first used in the process, kept up to date afterwards
+      Cursor c = db.rawQuery("SELECT COUNT(*), IFNULL(SUM(bytes), 0) FROM " + TABLE_NAME, null);
+      try {
+        c.moveToFirst();
+        cachedSize.set(c.getLong(0));
+        cachedBytes.set(c.getLong(1));
+      } finally {
+        c.close();
+      }
+    }
+  }
+
+  private static void resetCounters() {
+    // counters no longer match the table, recount lazily
+    synchronized (cachedSize) {
+      cachedSize.set(-1);
+      cachedBytes.set(-1);
+    }
+  }
+
+  private static synchronized SQLiteStatement getInsertStatement(SQLiteDatabase db) {
+    // the database is a process wide singleton, so is the compiled statement
+    if (insertStatement == null) {
+      insertStatement = db.compileStatement(
+          "INSERT INTO " + TABLE_NAME + "(data, severity, ts, bytes, meta_id) VALUES (?, ?, ?, ?, ?)");
+    }
+    return insertStatement;
   }
 }
@@ -0,0 +1,163 @@
+package com.sematext.logseneandroid;
+
+/**
+ * Helpers for describing throwables compactly.
+ */
+final class StackTraces {
+  /**
+   * Frames of each throwable that take part in the fingerprint. Deeper frames rarely tell two
+   * problems apart, and recursion can make traces very long.
+   */
+  static final int MAX_FINGERPRINT_FRAMES = 64;
+
+  /**
+   * Causes that take part in the fingerprint, this also guards against cause cycles.
+   */
+  static final int MAX_FINGERPRINT_CAUSES = 8;
+
+  /**
+   * Default number of frames rendered per throwable.
+   */
+  static final int DEFAULT_MAX_FRAMES = 64;
+
+  /**
+   * Default number of causes rendered after the throwable itself.
+   */
+  static final int DEFAULT_MAX_CAUSES = 8;
+
+  /**
+   * Number of frames in the short summary of a repeated exception.
+   */
+  static final int TOP_FRAMES = 3;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private StackTraces() {
+  }
+
+  /**
+   * Returns a hash identifying where a throwable comes from, based on the exception classes and the
+   * class, method and line of their frames, but not their messages. The same code path gives the
+   * same fingerprint in every run of the same build.
+   *
+   * @param error the throwable, may be null
+   * @return the fingerprint, 0 for null
+   */
+  static long fingerprint(Throwable error) {
+    if (error == null) {
+      return 0;
+    }
+    long hash = FNV_OFFSET;
+    Throwable current = error;
+    for (int causes = 0; current != null && causes <= MAX_FINGERPRINT_CAUSES; causes++) {
+      hash = mix(hash, current.getClass().getName());
+      StackTraceElement[] frames = current.getStackTrace();
+      for (int i = 0, n = Math.min(frames.length, MAX_FINGERPRINT_FRAMES); i < n; i++) {
+        StackTraceElement frame = frames[i];
+        hash = mix(hash, frame.getClassName());
+        hash = mix(hash, frame.getMethodName());
+        hash = mix(hash, frame.getLineNumber());
+      }
+      Throwable cause = current.getCause();
+      current = cause == current ? null : cause;
+    }
+    return hash == 0 ? 1 : hash;
+  }
+
+  /**
+   * Returns the fingerprint as 16 hex digits, json numbers cannot hold 64 bits.
+   */
+  static String toHex(long fingerprint) {
+    char[] digits = new char[16];
+    for (int i = 15; i >= 0; i--, fingerprint >>>= 4) {
+      digits[i] = HEX[(int) (fingerprint & 0xf)];
+    }
+    return new String(digits);
+  }
+
+  /**
+   * Renders a throwable like <code>printStackTrace()</code> does, but with bounded size: at most
+   * <code>maxFrames</code> frames of each throwable and <code>maxCauses</code> causes. Frames a
+   * cause has in common with the throwable it caused are left out, as are suppressed exceptions.
+   *
+   * @param error the throwable
+   * @param maxFrames max number of frames per throwable
+   * @param maxCauses max number of causes
+   * @return the stack trace text
+   */
+  static String render(Throwable error, int maxFrames, int maxCauses) {
+    StringBuilder out = new StringBuilder(1024);
+    StackTraceElement[] enclosing = null;
+    Throwable current = error;
+    for (int causes = 0; current != null; causes++) {
+      if (causes > maxCauses) {
+        out.append("\t... more causes omitted\n");
+        break;
+      }
+      if (causes > 0) {
+        out.append("Caused by: ");
+      }
+      out.append(current).append('\n');
+      StackTraceElement[] frames = current.getStackTrace();
+      int inCommon = enclosing == null ? 0 : framesInCommon(frames, enclosing);
+      int shown = Math.min(frames.length - inCommon, maxFrames);
+      for (int i = 0; i < shown; i++) {
+        out.append("\tat ").append(frames[i]).append('\n');
+      }
+      if (shown < frames.length) {
+        out.append("\t... ").append(frames.length - shown).append(" more\n");
+      }
+      enclosing = frames;
+      Throwable cause = current.getCause();
+      current = cause == current ? null : cause;
+    }
+    return out.toString();
+  }
+
+  /**
+   * Returns the top frames of the throwable on one line, the summary of a repeated exception.
+   * @param error the throwable
+   * @param count number of frames to include
+   * @return the summary
+   */
+  static String topFrames(Throwable error, int count) {
+    StringBuilder out = new StringBuilder(256);
+    StackTraceElement[] frames = error.getStackTrace();
+    for (int i = 0, n = Math.min(count, frames.length); i < n; i++) {
+      if (i > 0) {
+        out.append(" < ");
+      }
+      out.append(frames[i]);
+    }
+    return out.toString();
+  }
+
+  private static int framesInCommon(StackTraceElement[] frames, StackTraceElement[] enclosing) {
+    int m = frames.length - 1;
+    int n = enclosing.length - 1;
+    while (m >= 0 && n >= 0 && frames[m].equals(enclosing[n])) {
+      m--;
+      n--;
+    }
+    return frames.length - 1 - m;
+  }
+
+  private static long mix(long hash, String value) {
+    if (value != null) {
+      for (int i = 0, n = value.length(); i < n; i++) {
+        hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+      }
+    }
+    // separator, so that ("ab", "c") and ("a", "bc") differ
+    return (hash ^ 0xff) * FNV_PRIME;
+  }
+
+  private static long mix(long hash, int value) {
+    for (int shift = 0; shift < 32; shift += 8) {
+      hash = (hash ^ ((value >>> shift) & 0xff)) * FNV_PRIME;
+    }
+    return hash;
+  }
+}
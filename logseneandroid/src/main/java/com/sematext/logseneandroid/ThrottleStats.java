@@ -0,0 +1,33 @@
+package com.sematext.logseneandroid;
+
+/**
+ * Snapshot of the messages suppressed by rate limiting and sampling.
+ */
+public final class ThrottleStats {
+  private final long rateLimited;
+  private final long sampledOut;
+
+  ThrottleStats(long rateLimited, long sampledOut) {
+    this.rateLimited = rateLimited;
+    this.sampledOut = sampledOut;
+  }
+
+  /**
+   * Number of messages dropped because their level or logger exceeded its rate limit.
+   */
+  public long getRateLimited() {
+    return rateLimited;
+  }
+
+  /**
+   * Number of debug and info messages left out by sampling.
+   */
+  public long getSampledOut() {
+    return sampledOut;
+  }
+
+  @Override
+  public String toString() {
+    return "ThrottleStats{rateLimited=" + rateLimited + ", sampledOut=" + sampledOut + "}";
+  }
+}
@@ -8,30 +8,94 @@ import androidx.core.app.ActivityCompat;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.Locale;
-import java.util.TimeZone;
 
 public enum Utils {
   INSTANCE, Utils;
 
-  private static final SimpleDateFormat ISO8601_FORMAT;
-
-  static {
-    TimeZone tz = TimeZone.getTimeZone("UTC");
-    ISO8601_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SZ");
-    ISO8601_FORMAT.setTimeZone(tz);
-  }
+  private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
 
   public static final Locale DEFAULT_LOCALE = new Locale("en", "US");
 
   public static String iso8601() {
-    return ISO8601_FORMAT.format(new Date());
+    return iso8601(System.currentTimeMillis());
   }
 
   public static String iso8601(long millis) {
-    return ISO8601_FORMAT.format(new Date(millis));
+    StringBuilder out = new StringBuilder(28);
+    appendIso8601(out, millis);
+    return out.toString();
+  }
+
+  /**
+   * Appends the time in the <code>yyyy-MM-dd'T'HH:mm:ss.SZ</code> format, in UTC.
+   *
+   * Produces the same text as <code>SimpleDateFormat</code> did for dates since 1582 (milliseconds
+   * are not padded, the zone is always <code>+0000</code>), but is safe to call from several threads
+   * and does not allocate.
+   *
+   * @param out where to append
+   * @param millis milliseconds since epoch
+   */
+  static void appendIso8601(StringBuilder out, long millis) {
+    long days = millis / MILLIS_PER_DAY;
+    long millisOfDay = millis % MILLIS_PER_DAY;
+    if (millisOfDay < 0) {
+      days--;
+      millisOfDay += MILLIS_PER_DAY;
+    }
+
+    // civil date from days since epoch, see http://howardhinnant.github.io/date_algorithms.html
+    long shifted = days + 719468;
+    long era = (shifted >= 0 ? shifted : shifted - 146096) / 146097;
+    long dayOfEra = shifted - era * 146097;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    long shiftedMonth = (5 * dayOfYear + 2) / 153;
+    long day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+    long month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+    int time = (int) millisOfDay;
+    appendPadded(out, year, 4);
+    appendPadded(out.append('-'), month, 2);
+    appendPadded(out.append('-'), day, 2);
+    appendPadded(out.append('T'), time / 3600000, 2);
+    appendPadded(out.append(':'), time / 60000 % 60, 2);
+    appendPadded(out.append(':'), time / 1000 % 60, 2);
+    out.append('.').append(time % 1000).append("+0000");
+  }
+
+  private static void appendPadded(StringBuilder out, long value, int width) {
+    for (long limit = 10; width > 1; width--, limit *= 10) {
+      if (value < limit) {
+        out.append('0');
+      }
+    }
+    out.append(value);
+  }
+
+  /**
+   * Returns the number of bytes needed to encode the text as UTF-8, without encoding it.
+   * @param s the text
+   * @return encoded length in bytes
+   */
+  public static int utf8Length(CharSequence s) {
+    int length = 0;
+    for (int i = 0, n = s.length(); i < n; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
   }
 
   public static String getStackTrace(Throwable throwable) {
@@ -1,7 +1,11 @@
 package com.sematext.logseneandroid.logsene;
 
+import okhttp3.MediaType;
 import okhttp3.RequestBody;
+import okio.BufferedSink;
 
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -11,6 +15,8 @@ import com.sematext.logseneandroid.Utils;
  * Represents a bulk request.
  */
 public class Bulk {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
   private final List<String> sources;
   private final List<String> types;
 
@@ -30,14 +36,64 @@ public class Bulk {
     this.types = types;
   }
 
+  /**
+   * Returns the action line which precedes each document in a bulk request.
+   *
+   * @param index the index to use for the document
+   * @param type the type to use for the document
+   * @return the action line, including the trailing newline, encoded as UTF-8
+   */
+  public static byte[] indexAction(String index, String type) {
+    Utils.requireNonNull(index);
+    Utils.requireNonNull(type);
+    return ("{ \"index\" : { \"_index\": \"" + index + "\", \"_type\" : \"" + type + "\" } }\n")
+        .getBytes(UTF_8);
+  }
+
   /**
    * Returns the request body for use with http client.
    *
+   * The body is streamed to the connection, the request is not built as one string first.
+   *
    * @param index the index to use for all documents
    * @return the request body
    */
-  public RequestBody toBody(String index) {
-    return RequestBody.create(LogseneClient.JSON, this.toString(index));
+  public RequestBody toBody(final String index) {
+    Utils.requireNonNull(index);
+    return new RequestBody() {
+      @Override
+      public MediaType contentType() {
+        return LogseneClient.JSON;
+      }
+
+      @Override
+      public void writeTo(BufferedSink sink) throws IOException {
+        String actionType = null;
+        byte[] action = null;
+        for (int i = 0; i < sources.size(); i++) {
+          // types are usually the same for all documents, so is the action line
+          if (!types.get(i).equals(actionType)) {
+            actionType = types.get(i);
+            action = indexAction(index, actionType);
+          }
+          sink.write(action);
+          writeTrimmed(sink, sources.get(i));
+          sink.writeByte('\n');
+        }
+      }
+    };
+  }
+
+  private static void writeTrimmed(BufferedSink sink, String source) throws IOException {
+    int begin = 0;
+    int end = source.length();
+    while (begin < end && source.charAt(begin) <= ' ') {
+      begin++;
+    }
+    while (end > begin && source.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    sink.writeUtf8(source, begin, end);
   }
 
   /**
@@ -50,8 +106,9 @@ public class Bulk {
     Utils.requireNonNull(index);
     StringBuilder sb = new StringBuilder();
     for (int i = 0; i < sources.size(); i++) {
-      sb.append(String.format("{ \"index\" : { \"_index\": \"%s\", \"_type\" : \"%s\" } }\n", index, types.get(i)));
-      sb.append(sources.get(i).trim() + "\n");
+      sb.append("{ \"index\" : { \"_index\": \"").append(index).append("\", \"_type\" : \"")
+          .append(types.get(i)).append("\" } }\n");
+      sb.append(sources.get(i).trim()).append('\n');
     }
     return sb.toString();
   }
@@ -0,0 +1,216 @@
+package com.sematext.logseneandroid.logsene;
+
+import android.util.JsonReader;
+import android.util.Log;
+import android.util.MalformedJsonException;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Bulk api response, parsed while streaming the body.
+ *
+ * Only the overall <code>errors</code> flag and, if it is set, the status and error type of each
+ * item are kept. Items are not read at all when every document was indexed. A successful response
+ * whose body cannot be parsed is flagged as malformed, since nothing confirms that the documents
+ * were indexed.
+ */
+public class BulkResponse {
+  private final static String TAG = "BulkResponse";
+
+  /**
+   * Max number of bytes of a failed response body kept for logging.
+   */
+  private final static int MAX_ERROR_BODY = 1024;
+
+  private final int code;
+  private final String retryAfter;
+  private boolean errors;
+  private boolean malformed;
+  private int itemCount;
+  private int[] statuses = new int[0];
+  private String[] errorTypes = new String[0];
+  private String errorBody;
+
+  private BulkResponse(Response response) {
+    this.code = response.code();
+    this.retryAfter = response.header("Retry-After");
+  }
+
+  /**
+   * Reads the response and closes it.
+   * @param response original http response
+   * @return parsed response
+   * @throws IOException if unable to read the response body
+   */
+  public static BulkResponse fromHttpResponse(Response response) throws IOException {
+    BulkResponse result = new BulkResponse(response);
+    try {
+      if (response.isSuccessful()) {
+        result.parse(response.body());
+      } else {
+        result.errorBody = response.peekBody(MAX_ERROR_BODY).string();
+      }
+    } finally {
+      response.close();
+    }
+    return result;
+  }
+
+  private void parse(ResponseBody body) throws IOException {
+    JsonReader reader = new JsonReader(body.charStream());
+    boolean hasErrorsFlag = false;
+    try {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if ("errors".equals(name)) {
+          hasErrorsFlag = true;
+          errors = reader.nextBoolean();
+          if (!errors) {
+            // nothing failed, no need to read the items
+            return;
+          }
+        } else if ("items".equals(name)) {
+          readItems(reader);
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    } catch (IllegalStateException e) {
+      setMalformed(e);
+      return;
+    } catch (MalformedJsonException e) {
+      setMalformed(e);
+      return;
+    } catch (EOFException e) {
+      setMalformed(e);
+      return;
+    }
+    if (!hasErrorsFlag) {
+      setMalformed(null);
+    }
+  }
+
+  private void setMalformed(Exception e) {
+    // not the expected structure or truncated, it is unknown which documents were indexed
+    Log.e(TAG, "Unable to parse bulk response", e);
+    malformed = true;
+    errors = false;
+    itemCount = 0;
+  }
+
+  private void readItems(JsonReader reader) throws IOException {
+    reader.beginArray();
+    while (reader.hasNext()) {
+      int status = 0;
+      String errorType = null;
+      // {"index": {"status": 429, "error": {"type": "..."}}}
+      reader.beginObject();
+      while (reader.hasNext()) {
+        reader.nextName();
+        reader.beginObject();
+        while (reader.hasNext()) {
+          String name = reader.nextName();
+          if ("status".equals(name)) {
+            status = reader.nextInt();
+          } else if ("error".equals(name)) {
+            errorType = readErrorType(reader);
+          } else {
+            reader.skipValue();
+          }
+        }
+        reader.endObject();
+      }
+      reader.endObject();
+      addItem(status, errorType);
+    }
+    reader.endArray();
+  }
+
+  private static String readErrorType(JsonReader reader) throws IOException {
+    String type = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if ("type".equals(reader.nextName())) {
+        type = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return type;
+  }
+
+  private void addItem(int status, String errorType) {
+    if (itemCount == statuses.length) {
+      statuses = Arrays.copyOf(statuses, itemCount * 2 + 16);
+      errorTypes = Arrays.copyOf(errorTypes, itemCount * 2 + 16);
+    }
+    statuses[itemCount] = status;
+    errorTypes[itemCount] = errorType;
+    itemCount++;
+  }
+
+  public int getCode() {
+    return code;
+  }
+
+  public boolean isSuccessful() {
+    return code >= 200 && code < 300;
+  }
+
+  /**
+   * Returns the Retry-After header, or null if the receiver did not send one.
+   */
+  public String getRetryAfter() {
+    return retryAfter;
+  }
+
+  /**
+   * Returns true if some of the documents could not be indexed.
+   */
+  public boolean hasErrors() {
+    return errors;
+  }
+
+  /**
+   * Returns true if the response is successful but its body could not be parsed, so it is
+   * unknown whether the documents were indexed.
+   */
+  public boolean isMalformed() {
+    return malformed;
+  }
+
+  /**
+   * Returns the number of parsed items, 0 if there were no errors.
+   */
+  public int getItemCount() {
+    return itemCount;
+  }
+
+  /**
+   * Returns the status of the n-th document of the request.
+   */
+  public int getItemStatus(int index) {
+    return statuses[index];
+  }
+
+  /**
+   * Returns the error type of the n-th document of the request, or null if it was indexed.
+   */
+  public String getItemErrorType(int index) {
+    return errorTypes[index];
+  }
+
+  /**
+   * Returns the beginning of the body of a failed response, null for a successful one.
+   */
+  public String getErrorBody() {
+    return errorBody;
+  }
+}
@@ -0,0 +1,62 @@
+package com.sematext.logseneandroid.logsene;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.DeflaterSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * Request body which compresses another body while it is written to the connection.
+ */
+class CompressedBody extends RequestBody {
+  private final RequestBody body;
+  private final Compression compression;
+  private final int level;
+
+  /**
+   * Constructor.
+   *
+   * @param body the uncompressed body
+   * @param compression <code>GZIP</code> or <code>DEFLATE</code>
+   * @param level compression level, 0-9 or -1 for the default level
+   */
+  CompressedBody(RequestBody body, Compression compression, int level) {
+    if (compression == Compression.NONE) {
+      throw new IllegalArgumentException("compression must not be NONE");
+    }
+    this.body = body;
+    this.compression = compression;
+    this.level = level;
+  }
+
+  @Override
+  public MediaType contentType() {
+    return body.contentType();
+  }
+
+  @Override
+  public long contentLength() {
+    // not known until the body is compressed
+    return -1;
+  }
+
+  @Override
+  public void writeTo(BufferedSink sink) throws IOException {
+    BufferedSink compressed;
+    if (compression == Compression.GZIP) {
+      GzipSink gzipSink = new GzipSink(sink);
+      gzipSink.deflater().setLevel(level);
+      compressed = Okio.buffer(gzipSink);
+    } else {
+      // http "deflate" is the zlib format, so the deflater must write the zlib header
+      compressed = Okio.buffer(new DeflaterSink(sink, new Deflater(level)));
+    }
+    body.writeTo(compressed);
+    compressed.close();
+  }
+}
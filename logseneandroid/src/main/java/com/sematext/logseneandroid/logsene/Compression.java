@@ -0,0 +1,45 @@
+package com.sematext.logseneandroid.logsene;
+
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Content encoding used for bulk request bodies.
+ */
+public enum Compression {
+  NONE(null), GZIP("gzip"), DEFLATE("deflate");
+
+  private static final String TAG = "Compression";
+
+  private final String contentEncoding;
+
+  Compression(String contentEncoding) {
+    this.contentEncoding = contentEncoding;
+  }
+
+  /**
+   * Returns the value of the <code>Content-Encoding</code> header.
+   * @return the header value, or <code>null</code> if the body is not compressed
+   */
+  public String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  /**
+   * Parses the compression name, as used in the application manifest.
+   * @param name <code>none</code>, <code>gzip</code> or <code>deflate</code>, case insensitive
+   * @return the compression, <code>NONE</code> if the name is null, empty or unknown
+   */
+  public static Compression fromName(String name) {
+    if (name == null || name.trim().isEmpty()) {
+      return NONE;
+    }
+    try {
+      return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+    } catch (IllegalArgumentException e) {
+      Log.e(TAG, "Unknown compression " + name + ", sending uncompressed requests");
+      return NONE;
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package com.sematext.logseneandroid.logsene;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Protocol;
+
+/**
+ * Counts new and reused connections of the calls made by {@link LogseneClient}.
+ */
+class ConnectionCounter implements EventListener.Factory {
+  private final AtomicLong calls = new AtomicLong();
+  private final AtomicLong opened = new AtomicLong();
+  private final AtomicLong reused = new AtomicLong();
+  private final AtomicLong http2 = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  @Override
+  public EventListener create(Call call) {
+    return new CallListener();
+  }
+
+  ConnectionStats getStats() {
+    return new ConnectionStats(calls.get(), opened.get(), reused.get(), http2.get(), failures.get());
+  }
+
+  private class CallListener extends EventListener {
+    // a call which acquires a connection without connecting first got it from the pool
+    private boolean connected;
+
+    @Override
+    public void callStart(Call call) {
+      calls.incrementAndGet();
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol) {
+      connected = true;
+      opened.incrementAndGet();
+      if (protocol == Protocol.HTTP_2) {
+        http2.incrementAndGet();
+      }
+    }
+
+    @Override
+    public void connectFailed(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol,
+                              IOException ioe) {
+      failures.incrementAndGet();
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+      if (!connected) {
+        reused.incrementAndGet();
+      }
+      // a retried or redirected call can acquire another connection
+      connected = false;
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package com.sematext.logseneandroid.logsene;
+
+/**
+ * Snapshot of connection usage of the shared http client.
+ */
+public final class ConnectionStats {
+  private final long calls;
+  private final long connectionsOpened;
+  private final long connectionsReused;
+  private final long http2Connections;
+  private final long connectFailures;
+
+  ConnectionStats(long calls, long connectionsOpened, long connectionsReused, long http2Connections,
+                  long connectFailures) {
+    this.calls = calls;
+    this.connectionsOpened = connectionsOpened;
+    this.connectionsReused = connectionsReused;
+    this.http2Connections = http2Connections;
+    this.connectFailures = connectFailures;
+  }
+
+  /**
+   * Number of requests started.
+   */
+  public long getCalls() {
+    return calls;
+  }
+
+  /**
+   * Number of new connections, each of them paid for a TCP (and TLS) handshake.
+   */
+  public long getConnectionsOpened() {
+    return connectionsOpened;
+  }
+
+  /**
+   * Number of requests sent over an already open, pooled connection.
+   */
+  public long getConnectionsReused() {
+    return connectionsReused;
+  }
+
+  /**
+   * Number of new connections which negotiated HTTP/2.
+   */
+  public long getHttp2Connections() {
+    return http2Connections;
+  }
+
+  /**
+   * Number of failed connection attempts.
+   */
+  public long getConnectFailures() {
+    return connectFailures;
+  }
+
+  @Override
+  public String toString() {
+    return "ConnectionStats{calls=" + calls + ", connectionsOpened=" + connectionsOpened
+        + ", connectionsReused=" + connectionsReused + ", http2Connections=" + http2Connections
+        + ", connectFailures=" + connectFailures + "}";
+  }
+}
@@ -1,12 +1,17 @@
 package com.sematext.logseneandroid.logsene;
 
 
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import okhttp3.RequestBody;
 import okhttp3.Response;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 import com.sematext.logseneandroid.Utils;
 
@@ -16,11 +21,54 @@ import com.sematext.logseneandroid.Utils;
  * Note: In most cases, you would want to use {@link com.sematext.android.Logsene} instead.
  */
 public class LogseneClient {
-  private final OkHttpClient client = new OkHttpClient();
+  /**
+   * Default number of idle connections kept in the shared pool.
+   */
+  public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 2;
+
+  /**
+   * Default time an idle connection is kept open, in milliseconds.
+   */
+  public static final long DEFAULT_KEEP_ALIVE = 5 * 60 * 1000;
+
+  /**
+   * Default connect timeout, in milliseconds.
+   */
+  public static final long DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+
+  /**
+   * Default read and write timeout, in milliseconds.
+   */
+  public static final long DEFAULT_IO_TIMEOUT = 30 * 1000;
+
+  /**
+   * Response fields needed to find failed documents, keeps responses to large bulks small.
+   */
+  private static final String BULK_FILTER_PATH = "errors,items.*.status,items.*.error.type";
+
+  private static final ConnectionCounter connectionCounter = new ConnectionCounter();
+  private static volatile OkHttpClient sharedClient;
+  private static OkHttpClient appClient;
+  private static int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+  private static long keepAlive = DEFAULT_KEEP_ALIVE;
+  private static long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+  private static long readTimeout = DEFAULT_IO_TIMEOUT;
+  private static long writeTimeout = DEFAULT_IO_TIMEOUT;
+
+  private final OkHttpClient client;
   private final String receiverUrl;
   private final String appToken;
   public static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
 
+  /**
+   * Default size below which bodies are sent uncompressed.
+   */
+  public static final long DEFAULT_COMPRESSION_MIN_SIZE = 1024;
+
+  private volatile Compression compression = Compression.NONE;
+  private volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+  private volatile long compressionMinSize = DEFAULT_COMPRESSION_MIN_SIZE;
+
   /**
    * Constructor.
    *
@@ -28,6 +76,17 @@ public class LogseneClient {
    * @param appToken the logsene app token
    */
   public LogseneClient(String receiverUrl, String appToken) {
+    this(receiverUrl, appToken, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param receiverUrl the receiver (api) url
+   * @param appToken the logsene app token
+   * @param client http client to use, or null to use the process-wide shared client
+   */
+  public LogseneClient(String receiverUrl, String appToken, OkHttpClient client) {
     Utils.requireNonNull(receiverUrl);
     Utils.requireNonNull(appToken);
     receiverUrl = receiverUrl.trim();
@@ -36,6 +95,126 @@ public class LogseneClient {
     }
     this.receiverUrl = receiverUrl;
     this.appToken = appToken;
+    this.client = client;
+  }
+
+  /**
+   * Sets the http client whose connection pool and dispatcher are shared with the app's other
+   * traffic. Its own timeouts are used, connection settings only apply to the default client.
+   *
+   * @param client the app's http client, or null to go back to the default client
+   */
+  public static synchronized void setHttpClient(OkHttpClient client) {
+    if (client == appClient) {
+      return;
+    }
+    OkHttpClient previous = appClient;
+    appClient = client;
+    replaceSharedClient(previous);
+  }
+
+  /**
+   * Configures the connection pool and timeouts of the default shared client. The client is only
+   * rebuilt when the settings actually change, so calling this on every send is cheap.
+   *
+   * @param maxIdleConnections maximum number of idle connections kept open
+   * @param keepAlive time an idle connection is kept open, in milliseconds
+   * @param connectTimeout connect timeout in milliseconds, 0 means no timeout
+   * @param readTimeout read timeout in milliseconds, 0 means no timeout
+   * @param writeTimeout write timeout in milliseconds, 0 means no timeout
+   */
+  public static synchronized void setConnectionSettings(int maxIdleConnections, long keepAlive,
+                                                        long connectTimeout, long readTimeout,
+                                                        long writeTimeout) {
+    if (maxIdleConnections < 0 || keepAlive <= 0) {
+      throw new IllegalArgumentException("maxIdleConnections must not be negative and keepAlive must be positive");
+    }
+    if (connectTimeout < 0 || readTimeout < 0 || writeTimeout < 0) {
+      throw new IllegalArgumentException("timeouts must not be negative");
+    }
+    if (maxIdleConnections == LogseneClient.maxIdleConnections && keepAlive == LogseneClient.keepAlive
+        && connectTimeout == LogseneClient.connectTimeout && readTimeout == LogseneClient.readTimeout
+        && writeTimeout == LogseneClient.writeTimeout) {
+      return;
+    }
+    LogseneClient.maxIdleConnections = maxIdleConnections;
+    LogseneClient.keepAlive = keepAlive;
+    LogseneClient.connectTimeout = connectTimeout;
+    LogseneClient.readTimeout = readTimeout;
+    LogseneClient.writeTimeout = writeTimeout;
+    if (appClient == null) {
+      replaceSharedClient(null);
+    }
+  }
+
+  /**
+   * Returns how many connections were opened and how many requests reused a pooled connection.
+   */
+  public static ConnectionStats getConnectionStats() {
+    return connectionCounter.getStats();
+  }
+
+  /**
+   * Returns the process-wide client, shared by all instances and worker runs so that connections
+   * survive between sends.
+   */
+  static OkHttpClient sharedClient() {
+    OkHttpClient client = sharedClient;
+    if (client == null) {
+      synchronized (LogseneClient.class) {
+        client = sharedClient;
+        if (client == null) {
+          client = sharedClient = buildSharedClient();
+        }
+      }
+    }
+    return client;
+  }
+
+  private static OkHttpClient buildSharedClient() {
+    OkHttpClient.Builder builder;
+    if (appClient != null) {
+      // derived client, shares connection pool and dispatcher with the app client
+      builder = appClient.newBuilder();
+    } else {
+      builder = new OkHttpClient.Builder()
+          .connectionPool(new ConnectionPool(maxIdleConnections, keepAlive, TimeUnit.MILLISECONDS))
+          .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+          .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+          .writeTimeout(writeTimeout, TimeUnit.MILLISECONDS);
+    }
+    return builder.eventListenerFactory(connectionCounter).build();
+  }
+
+  private static void replaceSharedClient(OkHttpClient previousAppClient) {
+    OkHttpClient old = sharedClient;
+    sharedClient = null;
+    // close idle connections of our own pool, but never those of the app, in-flight calls finish
+    // on the old client
+    if (old != null && previousAppClient == null) {
+      old.connectionPool().evictAll();
+    }
+  }
+
+  /**
+   * Enables compression of request bodies. Compression is disabled by default.
+   *
+   * @param compression content encoding to use
+   * @param level compression level, from 0 (none) to 9 (best), or -1 for the default level
+   * @param minSize bodies smaller than this (in bytes) are sent uncompressed, compressing them
+   *                costs more CPU than it saves on the wire
+   */
+  public void setCompression(Compression compression, int level, long minSize) {
+    Utils.requireNonNull(compression);
+    if (level != Deflater.DEFAULT_COMPRESSION && (level < 0 || level > 9)) {
+      throw new IllegalArgumentException("level must be between 0 and 9, or -1");
+    }
+    if (minSize < 0) {
+      throw new IllegalArgumentException("minSize must not be negative");
+    }
+    this.compression = compression;
+    this.compressionLevel = level;
+    this.compressionMinSize = minSize;
   }
 
   /**
@@ -48,11 +227,61 @@ public class LogseneClient {
    */
   public ApiResponse execute(Bulk bulk) throws IOException {
     Utils.requireNonNull(bulk);
-    Request request = new Request.Builder()
-        .url(receiverUrl + "/_bulk")
-        .post(bulk.toBody(appToken))
-        .build();
-    Response response = client.newCall(request).execute();
+    return execute(bulk.toBody(appToken));
+  }
+
+  /**
+   * Executes a bulk request with an already prepared body.
+   *
+   * @param body newline delimited bulk request body
+   * @return the response
+   * @throws IOException if unable to send request
+   */
+  public ApiResponse execute(RequestBody body) throws IOException {
+    Utils.requireNonNull(body);
+    return execute(body, body.contentLength());
+  }
+
+  /**
+   * Executes a bulk request with an already prepared body of approximately known size.
+   *
+   * @param body newline delimited bulk request body
+   * @param sizeHint approximate uncompressed size of the body in bytes, -1 if unknown
+   * @return the response
+   * @throws IOException if unable to send request
+   */
+  public ApiResponse execute(RequestBody body, long sizeHint) throws IOException {
+    Utils.requireNonNull(body);
+    Response response = newCall(body, sizeHint, "/_bulk").execute();
     return ApiResponse.fromHttpResponse(response);
   }
+
+  /**
+   * Executes a bulk request and parses the per document results while streaming the response.
+   * The receiver is asked to only return the fields needed to tell which documents failed.
+   *
+   * @param body newline delimited bulk request body
+   * @param sizeHint approximate uncompressed size of the body in bytes, -1 if unknown
+   * @return the parsed response
+   * @throws IOException if unable to send request or read the response
+   */
+  public BulkResponse executeBulk(RequestBody body, long sizeHint) throws IOException {
+    Utils.requireNonNull(body);
+    Response response = newCall(body, sizeHint, "/_bulk?filter_path=" + BULK_FILTER_PATH).execute();
+    return BulkResponse.fromHttpResponse(response);
+  }
+
+  private Call newCall(RequestBody body, long sizeHint, String path) {
+    Request.Builder builder = new Request.Builder()
+        .url(receiverUrl + path);
+    Compression compression = this.compression;
+    if (compression != Compression.NONE && (sizeHint < 0 || sizeHint >= compressionMinSize)) {
+      builder.header("Content-Encoding", compression.getContentEncoding());
+      builder.post(new CompressedBody(body, compression, compressionLevel));
+    } else {
+      builder.post(body);
+    }
+    OkHttpClient client = this.client != null ? this.client : sharedClient();
+    return client.newCall(builder.build());
+  }
 }
@@ -0,0 +1,43 @@
+package com.sematext.logseneandroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BackoffTest {
+    @Test
+    public void fullJitterStaysWithinCap() {
+        for (int attempt = 1; attempt < 40; attempt++) {
+            long cap = Math.min(Backoff.MAX_DELAY_MILLIS, Backoff.BASE_DELAY_MILLIS << Math.min(attempt - 1, 16));
+            long delay = Backoff.delayMillis(attempt, -1);
+            assertTrue(delay >= 0 && delay <= cap);
+        }
+    }
+
+    @Test
+    public void honorsRetryAfter() {
+        long delay = Backoff.delayMillis(1, 5000);
+        assertTrue(delay >= 5000 && delay < 5000 + Backoff.BASE_DELAY_MILLIS);
+    }
+
+    @Test
+    public void parsesRetryAfter() {
+        assertEquals(120000, Backoff.parseRetryAfter("120", 0));
+        // Wed, 21 Oct 2015 07:28:00 GMT
+        long date = 1445412480000L;
+        assertEquals(30000, Backoff.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT", date - 30000));
+        assertEquals(0, Backoff.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT", date + 1000));
+        assertEquals(-1, Backoff.parseRetryAfter("soon", 0));
+        assertEquals(-1, Backoff.parseRetryAfter(null, 0));
+    }
+
+    @Test
+    public void classifiesStatusCodes() {
+        assertEquals(SendOutcome.SUCCESS, SendOutcome.ofStatus(200));
+        assertEquals(SendOutcome.RETRYABLE, SendOutcome.ofStatus(429));
+        assertEquals(SendOutcome.RETRYABLE, SendOutcome.ofStatus(503));
+        assertEquals(SendOutcome.RETRYABLE, SendOutcome.ofStatus(413));
+        assertEquals(SendOutcome.PERMANENT, SendOutcome.ofStatus(400));
+        assertEquals(SendOutcome.PERMANENT, SendOutcome.ofStatus(403));
+    }
+}
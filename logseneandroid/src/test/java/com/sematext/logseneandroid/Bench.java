@@ -0,0 +1,83 @@
+package com.sematext.logseneandroid;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures time and bytes allocated per operation of a benchmarked code path, on the calling
+ * thread only.
+ *
+ * The benchmarks only run when asked to, e.g. ./gradlew test -Dlogsene.benchmarks=true, and append
+ * their results to build/reports/benchmarks.txt.
+ */
+public final class Bench {
+    interface Op {
+        /**
+         * Runs the operation once.
+         * @param i number of the run, e.g. to vary the input
+         * @return something derived from the result, so that the work is not optimized away
+         */
+        long run(int i) throws Exception;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final File REPORT = new File("build/reports/benchmarks.txt");
+
+    private static long sink;
+    private static boolean reported;
+
+    private Bench() {
+    }
+
+    /**
+     * Skips the calling test unless the benchmarks were asked for.
+     */
+    public static void assumeEnabled() {
+        assumeTrue("set logsene.benchmarks to run the benchmarks", Boolean.getBoolean("logsene.benchmarks"));
+    }
+
+    /**
+     * Appends a line to the report, the report of a previous run is replaced.
+     */
+    public static synchronized void report(String line) throws IOException {
+        REPORT.getParentFile().mkdirs();
+        Writer writer = new FileWriter(REPORT, reported);
+        try {
+            writer.write(line + "\n");
+        } finally {
+            writer.close();
+        }
+        reported = true;
+    }
+
+    /**
+     * Runs the operation <code>warmup</code> times, then measures <code>ops</code> runs and reports
+     * ns/op and bytes/op.
+     * @return nanoseconds per operation
+     */
+    static double measure(String name, int warmup, int ops, Op op) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        long result = 0;
+        for (int i = 0; i < warmup; i++) {
+            result += op.run(i);
+        }
+        long allocatedStart = THREADS.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            result += op.run(i);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedStart;
+        sink += result;
+        double nanosPerOp = (double) elapsed / ops;
+        report(String.format(Locale.US, "%-44s %12.0f ns/op %10d bytes/op", name, nanosPerOp, allocated / ops));
+        return nanosPerOp;
+    }
+}
@@ -0,0 +1,37 @@
+package com.sematext.logseneandroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BulkSizerTest {
+    @Test
+    public void growsOnlyWhenFullAndFast() {
+        BulkSizer sizer = new BulkSizer();
+        sizer.onSuccess(new QueueRange(1, 10, 10, 1000), 100);
+        assertEquals(BulkSizer.INITIAL_DOCS, sizer.targetDocs());
+
+        sizer.onSuccess(new QueueRange(1, 50, 50, 5000), BulkSizer.FAST_LATENCY_MILLIS + 1);
+        assertEquals(BulkSizer.INITIAL_DOCS, sizer.targetDocs());
+
+        sizer.onSuccess(new QueueRange(1, 50, 50, 5000), 100);
+        assertTrue(sizer.targetDocs() > BulkSizer.INITIAL_DOCS);
+        assertTrue(sizer.targetBytes() > BulkSizer.INITIAL_BYTES);
+        assertEquals(1, sizer.getStats(0, 0).getIncreases());
+    }
+
+    @Test
+    public void halvesBelowWhatWasSent() {
+        BulkSizer sizer = new BulkSizer();
+        sizer.onTooSlowOrLarge(new QueueRange(1, 20, 20, 64 * 1024));
+        assertEquals(10, sizer.targetDocs());
+        assertEquals(32 * 1024, sizer.targetBytes());
+
+        for (int i = 0; i < 20; i++) {
+            sizer.onTooSlowOrLarge(new QueueRange(1, 1, 1, 100));
+        }
+        assertEquals(BulkSizer.MIN_DOCS, sizer.targetDocs());
+        assertEquals(BulkSizer.MIN_BYTES, sizer.targetBytes());
+        assertEquals(-1, sizer.getStats(0, 0).getLastLatencyMillis());
+    }
+}
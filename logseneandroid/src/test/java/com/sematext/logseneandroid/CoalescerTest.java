@@ -0,0 +1,130 @@
+package com.sematext.logseneandroid;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CoalescerTest {
+    private static final long WINDOW = 10000;
+    private static final long T0 = 1622542530000L;
+
+    @Test
+    public void repeatsAreCollapsedIntoOneSummary() {
+        Coalescer coalescer = new Coalescer(WINDOW, 16);
+        List<QueueEntry> out = new ArrayList<>();
+        List<QueueEntry> batch = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(entry(Severity.WARN, "disk full", 0, T0 + i));
+        }
+        coalescer.process(batch, T0 + 100, out);
+        assertEquals(1, out.size());
+        assertEquals(doc("disk full", T0), out.get(0).data);
+        assertEquals(99, coalescer.getCoalesced());
+        assertEquals(WINDOW - 100, coalescer.millisUntilNextSummary(T0 + 100));
+
+        out.clear();
+        coalescer.expire(T0 + WINDOW - 1, out);
+        assertTrue(out.isEmpty());
+        coalescer.expire(T0 + WINDOW, out);
+        assertEquals(1, out.size());
+        QueueEntry summary = out.get(0);
+        assertEquals(T0 + 99, summary.timestamp);
+        assertEquals(Severity.WARN, summary.severity);
+        assertNull(summary.template);
+        assertEquals("{\"message\":\"disk full\",\"t\":" + (T0 + 99) + ",\"coalesced\":{\"count\":99,"
+                + "\"firstSeen\":\"" + Utils.iso8601(T0 + 1) + "\",\"lastSeen\":\"" + Utils.iso8601(T0 + 99)
+                + "\"}}", summary.data);
+        assertEquals(-1, coalescer.millisUntilNextSummary(T0 + WINDOW));
+    }
+
+    @Test
+    public void levelTemplateAndFingerprintAreKept() {
+        Coalescer coalescer = new Coalescer(WINDOW, 16);
+        List<QueueEntry> out = new ArrayList<>();
+        List<QueueEntry> batch = new ArrayList<>();
+        batch.add(entry(Severity.WARN, "a", 0, T0));
+        batch.add(entry(Severity.ERROR, "a", 0, T0));
+        batch.add(entry(Severity.WARN, "b", 0, T0));
+        batch.add(entry(Severity.WARN, "a", 42, T0));
+        batch.add(entry(Severity.WARN, null, 0, T0));
+        batch.add(entry(Severity.WARN, null, 0, T0));
+        batch.add(entry(Severity.WARN, "a", 0, T0));
+        coalescer.process(batch, T0, out);
+        assertEquals(6, out.size());
+        assertEquals(1, coalescer.getCoalesced());
+    }
+
+    @Test
+    public void newWindowStartsAfterTheOldOneEnded() {
+        Coalescer coalescer = new Coalescer(WINDOW, 16);
+        List<QueueEntry> out = new ArrayList<>();
+        coalescer.process(Collections.singletonList(entry(Severity.INFO, "x", 0, T0)), T0, out);
+        coalescer.process(Collections.singletonList(entry(Severity.INFO, "x", 0, T0 + 1)), T0 + 1, out);
+        // the message comes again after the window, before the writer thread noticed that it ended
+        coalescer.process(Collections.singletonList(entry(Severity.INFO, "x", 0, T0 + WINDOW + 5)), T0 + 2, out);
+        assertEquals(3, out.size());
+        assertEquals(doc("x", T0), out.get(0).data);
+        assertTrue(out.get(1).data.contains("\"count\":1"));
+        assertEquals(doc("x", T0 + WINDOW + 5), out.get(2).data);
+    }
+
+    @Test
+    public void leastRecentlyUsedGroupIsSummarizedWhenEvicted() {
+        Coalescer coalescer = new Coalescer(WINDOW, 2);
+        List<QueueEntry> out = new ArrayList<>();
+        List<QueueEntry> batch = new ArrayList<>();
+        batch.add(entry(Severity.INFO, "a", 0, T0));
+        batch.add(entry(Severity.INFO, "a", 0, T0 + 1));
+        batch.add(entry(Severity.INFO, "b", 0, T0 + 2));
+        batch.add(entry(Severity.INFO, "c", 0, T0 + 3));
+        coalescer.process(batch, T0, out);
+        assertEquals(4, out.size());
+        assertEquals(doc("b", T0 + 2), out.get(1).data);
+        assertTrue(out.get(2).data.startsWith("{\"message\":\"a\""));
+        assertTrue(out.get(2).data.contains("\"coalesced\":{\"count\":1,"));
+        assertEquals(doc("c", T0 + 3), out.get(3).data);
+    }
+
+    @Test
+    public void flushSummarizesOpenWindows() {
+        Coalescer coalescer = new Coalescer(WINDOW, 16);
+        List<QueueEntry> out = new ArrayList<>();
+        List<QueueEntry> batch = new ArrayList<>();
+        batch.add(entry(Severity.INFO, "a", 0, T0));
+        batch.add(entry(Severity.INFO, "a", 0, T0 + 1));
+        batch.add(entry(Severity.INFO, "a", 0, T0 + 2));
+        batch.add(entry(Severity.INFO, "b", 0, T0));
+        coalescer.process(batch, T0, out);
+        out.clear();
+        coalescer.flush(out);
+        assertEquals(1, out.size());
+        assertTrue(out.get(0).data.contains("\"count\":2"));
+        assertEquals(-1, coalescer.millisUntilNextSummary(T0));
+    }
+
+    @Test
+    public void fingerprintIdentifiesThrowSite() {
+        List<Throwable> errors = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            errors.add(new IllegalStateException("attempt " + i));
+        }
+        Throwable elsewhere = new IllegalStateException("attempt 0");
+        assertEquals(StackTraces.fingerprint(errors.get(0)), StackTraces.fingerprint(errors.get(1)));
+        assertNotEquals(StackTraces.fingerprint(errors.get(0)), StackTraces.fingerprint(elsewhere));
+        assertNotEquals(StackTraces.fingerprint(errors.get(0)),
+                StackTraces.fingerprint(new RuntimeException(errors.get(0))));
+        assertEquals(0, StackTraces.fingerprint(null));
+    }
+
+    private static QueueEntry entry(Severity severity, String template, long fingerprint, long timestamp) {
+        return new QueueEntry(doc(template, timestamp), severity, timestamp, null, template, fingerprint);
+    }
+
+    private static String doc(String message, long timestamp) {
+        return "{\"message\":\"" + message + "\",\"t\":" + timestamp + "}";
+    }
+}
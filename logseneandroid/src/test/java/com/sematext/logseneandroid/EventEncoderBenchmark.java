@@ -0,0 +1,107 @@
+package com.sematext.logseneandroid;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares bytes allocated and time per encoded message between the previous
+ * <code>JSONObject</code> path and {@link EventEncoder}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class EventEncoderBenchmark {
+    private static final int WARMUP = 20000;
+    private static final int ROUNDS = 200000;
+    private static final String MESSAGE = "Request 42 to /api/items finished in 87 ms";
+
+    private interface Encoder {
+        String encode(long timestamp) throws Exception;
+    }
+
+    @Before
+    public void setUp() {
+        Bench.assumeEnabled();
+    }
+
+    @Test
+    public void allocationsAndTimePerMessage() throws Exception {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SZ");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        run("JSONObject", new Encoder() {
+            @Override
+            public String encode(long timestamp) throws Exception {
+                JSONObject obj = new JSONObject();
+                obj.put("level", "info");
+                obj.put("message", MESSAGE);
+                obj.put("lat", Double.valueOf(52.52));
+                obj.put("lon", Double.valueOf(13.40));
+                obj.put("@timestamp", format.format(new Date(timestamp)));
+                JSONObject geo = new JSONObject();
+                geo.put("location", String.format(Locale.ENGLISH, "%.2f,%.2f",
+                        obj.getDouble("lat"), obj.getDouble("lon")));
+                obj.remove("lat");
+                obj.remove("lon");
+                obj.put("geo", geo);
+                return obj.toString();
+            }
+        });
+        run("EventEncoder with location", new Encoder() {
+            @Override
+            public String encode(long timestamp) {
+                return EventEncoder.encodeMessage("info", MESSAGE, null, 52.52, 13.40, timestamp);
+            }
+        });
+        run("EventEncoder", new Encoder() {
+            @Override
+            public String encode(long timestamp) {
+                return EventEncoder.encodeMessage("info", MESSAGE, null, null, null, timestamp);
+            }
+        });
+        run("LogEvent with 3 fields", new Encoder() {
+            @Override
+            public String encode(long timestamp) {
+                LogEvent event = LogEvent.obtain(null, Severity.INFO, "info")
+                        .field("route", "/api/items")
+                        .field("latencyMs", 87)
+                        .field("cached", false);
+                try {
+                    return EventEncoder.encodeEvent(event, MESSAGE, null, timestamp);
+                } finally {
+                    event.recycle();
+                }
+            }
+        });
+    }
+
+    private static void run(String name, Encoder encoder) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long length = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            length += encoder.encode(i).length();
+        }
+        long allocatedStart = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            length += encoder.encode(1622542530000L + i).length();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedStart;
+        assertTrue(length > 0);
+        Bench.report(String.format(Locale.US, "%-26s: %6d bytes allocated/op, %6.0f ns/op",
+                name, allocated / ROUNDS, (double) elapsed / ROUNDS));
+    }
+}
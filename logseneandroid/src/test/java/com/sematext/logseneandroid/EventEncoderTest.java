@@ -0,0 +1,137 @@
+package com.sematext.logseneandroid;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class EventEncoderTest {
+    private static final long TIMESTAMP = 1622542530123L;
+    private static final String[] TEXTS = {
+            "",
+            "plain text",
+            "quote \" backslash \\ slash / done",
+            "tab\tnewline\ncr\rbackspace\bformfeed\f",
+            "control \u0000 \u0001 \u001f and del \u007f",
+            "unicode \u00e9\u4e2d \ud83d\ude00 separators \u2028\u2029",
+            "ends with escape\n",
+    };
+
+    @Test
+    public void messagesMatchJsonObject() throws Exception {
+        for (String text : TEXTS) {
+            assertEquals(jsonMessage("info", text, null, null, null),
+                    EventEncoder.encodeMessage("info", text, null, null, null, TIMESTAMP));
+            assertEquals(jsonMessage(text, "msg", text, 52.5, 13.4),
+                    EventEncoder.encodeMessage(text, "msg", text, 52.5, 13.4, TIMESTAMP));
+        }
+        assertEquals(jsonMessage(null, "msg", "", -33.856, 151.215),
+                EventEncoder.encodeMessage(null, "msg", "", -33.856, 151.215, TIMESTAMP));
+        // geo location needs both coordinates
+        assertEquals(jsonMessage("warn", "msg", null, 1.0, null),
+                EventEncoder.encodeMessage("warn", "msg", null, 1.0, null, TIMESTAMP));
+    }
+
+    @Test
+    public void errorsMatchJsonObject() throws Exception {
+        Throwable error = new IllegalStateException("broken / \"state\"");
+        String stacktrace = Utils.getStackTrace(error);
+        JSONObject obj = new JSONObject();
+        obj.put("level", "error");
+        obj.put("exception", error.getClass().toString());
+        obj.put("message", (Object) null);
+        obj.put("stacktrace", stacktrace);
+        obj.put("fingerprint", "00000000000000ff");
+        obj.put("@timestamp", Utils.iso8601(TIMESTAMP));
+        assertEquals(obj.toString(), EventEncoder.encodeError("error", error.getClass().toString(), null,
+                stacktrace, null, "00000000000000ff", null, null, null, TIMESTAMP));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonFiniteLocationIsRejected() {
+        EventEncoder.encodeMessage("info", "msg", null, Double.NaN, 1.0, TIMESTAMP);
+    }
+
+    @Test
+    public void timestampsMatchSimpleDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SZ");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        long[] fixed = { 0, 1, 999, 1000, 951782400000L, 4107542400000L, 1609459199999L, TIMESTAMP };
+        for (long millis : fixed) {
+            assertEquals(format.format(new Date(millis)), Utils.iso8601(millis));
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            // 1970 to 2100
+            long millis = (long) (random.nextDouble() * 4102444800000L);
+            assertEquals(format.format(new Date(millis)), Utils.iso8601(millis));
+        }
+    }
+
+    @Test
+    public void timestampsAreThreadSafe() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final long base = TIMESTAMP + t * 86400000L * 400;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SZ");
+                        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                        for (int i = 0; i < 20000; i++) {
+                            long millis = base + i * 3600007L;
+                            if (!format.format(new Date(millis)).equals(Utils.iso8601(millis))) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Builds the document the way log() did before the encoder.
+     */
+    private static String jsonMessage(String level, String message, String location, Double lat, Double lon)
+            throws Exception {
+        JSONObject obj = new JSONObject();
+        obj.put("level", level);
+        obj.put("message", message);
+        if (location != null) {
+            obj.put("location", location);
+        }
+        obj.put("@timestamp", Utils.iso8601(TIMESTAMP));
+        if (lat != null && lon != null) {
+            JSONObject geo = new JSONObject();
+            geo.put("location", String.format(Locale.ENGLISH, "%.2f,%.2f", lat, lon));
+            obj.put("geo", geo);
+        }
+        return obj.toString();
+    }
+}
@@ -0,0 +1,189 @@
+package com.sematext.logseneandroid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+/**
+ * Stand-in for the <code>/_bulk</code> endpoint which misbehaves like a real receiver under load:
+ * added latency, connection resets before or after indexing, 429 and 503 responses, partial
+ * failures and slow response bodies.
+ *
+ * Documents are identified by their <code>seq</code> field. The receiver remembers how often each
+ * one was indexed and which ones it rejected for good, so that a test can tell delivered,
+ * duplicated and lost documents apart.
+ */
+class FaultyReceiver extends Dispatcher {
+    private static final Pattern SEQ = Pattern.compile("\"seq\":(\\d+)");
+
+    enum Fault {
+        NONE, LATENCY, RESET_BEFORE_INDEXING, RESET_AFTER_INDEXING, TOO_MANY_REQUESTS, UNAVAILABLE,
+        PARTIAL_ERRORS, SLOW_BODY, STALLED_BODY
+    }
+
+    private final Random random;
+    private final float faultRate;
+    private final Map<Long, Integer> indexed = new HashMap<>();
+    private final Set<Long> rejected = new HashSet<>();
+    private final Map<Fault, AtomicLong> faults = new HashMap<>();
+    private long requests;
+
+    /**
+     * Constructor.
+     * @param seed seed of the fault selection, so that a failing run can be repeated
+     * @param faultRate fraction of requests that hit a fault, from 0 to 1
+     */
+    FaultyReceiver(long seed, float faultRate) {
+        this.random = new Random(seed);
+        this.faultRate = faultRate;
+        for (Fault fault : Fault.values()) {
+            faults.put(fault, new AtomicLong());
+        }
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+        List<Long> seqs = new ArrayList<>();
+        Matcher matcher = SEQ.matcher(request.getBody().readUtf8());
+        while (matcher.find()) {
+            seqs.add(Long.parseLong(matcher.group(1)));
+        }
+        Fault fault = nextFault();
+        faults.get(fault).incrementAndGet();
+        switch (fault) {
+            case LATENCY:
+                index(seqs);
+                return ok().setHeadersDelay(random.nextInt(200), TimeUnit.MILLISECONDS);
+            case RESET_BEFORE_INDEXING:
+                return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+            case RESET_AFTER_INDEXING:
+                // the client never learns that the documents got through and sends them again
+                index(seqs);
+                return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+            case TOO_MANY_REQUESTS:
+                return new MockResponse().setResponseCode(429).setHeader("Retry-After", "0");
+            case UNAVAILABLE:
+                return new MockResponse().setResponseCode(503);
+            case PARTIAL_ERRORS:
+                return partial(seqs);
+            case SLOW_BODY:
+                index(seqs);
+                return ok().throttleBody(1, 10, TimeUnit.MILLISECONDS);
+            case STALLED_BODY:
+                // slower than the client's read timeout
+                index(seqs);
+                return ok().throttleBody(1, 1, TimeUnit.SECONDS);
+            default:
+                index(seqs);
+                return ok();
+        }
+    }
+
+    /**
+     * Returns the number of distinct documents indexed at least once.
+     */
+    synchronized int getDelivered() {
+        return indexed.size();
+    }
+
+    /**
+     * Returns the number of times documents were indexed again.
+     */
+    synchronized long getDuplicates() {
+        long duplicates = 0;
+        for (int count : indexed.values()) {
+            duplicates += count - 1;
+        }
+        return duplicates;
+    }
+
+    /**
+     * Returns the number of distinct documents rejected for good and never indexed.
+     */
+    synchronized int getRejected() {
+        int count = 0;
+        for (long seq : rejected) {
+            if (!indexed.containsKey(seq)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of documents up to <code>maxSeq</code> which were neither indexed nor
+     * rejected.
+     */
+    synchronized long getLost(long maxSeq) {
+        long lost = 0;
+        for (long seq = 1; seq <= maxSeq; seq++) {
+            if (!indexed.containsKey(seq) && !rejected.contains(seq)) {
+                lost++;
+            }
+        }
+        return lost;
+    }
+
+    synchronized long getRequests() {
+        return requests;
+    }
+
+    long getFaults(Fault fault) {
+        return faults.get(fault).get();
+    }
+
+    private synchronized Fault nextFault() {
+        requests++;
+        if (random.nextFloat() >= faultRate) {
+            return Fault.NONE;
+        }
+        Fault[] values = Fault.values();
+        return values[1 + random.nextInt(values.length - 1)];
+    }
+
+    private synchronized void index(List<Long> seqs) {
+        for (long seq : seqs) {
+            Integer count = indexed.get(seq);
+            indexed.put(seq, count == null ? 1 : count + 1);
+        }
+    }
+
+    private synchronized MockResponse partial(List<Long> seqs) {
+        StringBuilder body = new StringBuilder("{\"errors\":true,\"items\":[");
+        for (int i = 0; i < seqs.size(); i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            long seq = seqs.get(i);
+            float outcome = random.nextFloat();
+            if (outcome < 0.2f) {
+                body.append("{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}}");
+            } else if (outcome < 0.25f) {
+                rejected.add(seq);
+                body.append("{\"index\":{\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\"}}}");
+            } else {
+                Integer count = indexed.get(seq);
+                indexed.put(seq, count == null ? 1 : count + 1);
+                body.append("{\"index\":{\"status\":201}}");
+            }
+        }
+        return new MockResponse().setBody(body.append("]}").toString());
+    }
+
+    private static MockResponse ok() {
+        return new MockResponse().setBody("{\"errors\":false}");
+    }
+}
@@ -0,0 +1,104 @@
+package com.sematext.logseneandroid;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+    @Test
+    public void bucketsCoverAllValuesInOrder() {
+        assertEquals(0, Histogram.bucketOf(0));
+        assertEquals(3, Histogram.bucketOf(3));
+        assertEquals(Histogram.BUCKETS - 1, Histogram.bucketOf(Long.MAX_VALUE));
+        for (int bucket = 1; bucket < Histogram.BUCKETS; bucket++) {
+            long lower = Histogram.lowerBound(bucket);
+            assertEquals(bucket, Histogram.bucketOf(lower));
+            assertEquals(bucket - 1, Histogram.bucketOf(lower - 1));
+            // buckets are at most 25% wider than their lower bound
+            if (bucket + 1 < Histogram.BUCKETS) {
+                long width = Histogram.lowerBound(bucket + 1) - lower;
+                assertTrue("bucket " + bucket, width * Histogram.SUB_BUCKETS <= Math.max(lower, Histogram.SUB_BUCKETS));
+            }
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-5);
+        HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(1001, snapshot.getCount());
+        assertEquals(500500, snapshot.getSum());
+        assertEquals(1000, snapshot.getMax());
+        assertEquals(0, snapshot.getValueAtPercentile(0));
+        assertWithin(500, snapshot.getValueAtPercentile(50));
+        assertWithin(990, snapshot.getValueAtPercentile(99));
+        assertEquals(1000, snapshot.getValueAtPercentile(100));
+        assertEquals(0, new Histogram().snapshot().getValueAtPercentile(99));
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws Exception {
+        final Histogram histogram = new Histogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        histogram.record(i % 1000 + offset);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(400000, snapshot.getCount());
+        assertEquals(1002, snapshot.getMax());
+        long total = 0;
+        for (int i = 0; i < snapshot.getBucketCount(); i++) {
+            total += snapshot.getBucketValueCount(i);
+        }
+        assertEquals(400000, total);
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 100000; i++) {
+            histogram.record(i);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 1000000; i++) {
+            histogram.record(i * 31L);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected + expected / Histogram.SUB_BUCKETS);
+    }
+}
@@ -0,0 +1,166 @@
+package com.sematext.logseneandroid;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.work.testing.WorkManagerTestInitHelper;
+
+import com.sematext.logseneandroid.logsene.Bulk;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.TimeUnit;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Reports ns/op and bytes allocated per op of the paths every message goes through: the logging
+ * call, timestamps and stack traces, and encoding bulk requests. Bytes are counted on the calling
+ * thread only, so the ingest thread persisting logged messages is not included.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class HotPathBenchmark {
+    private static final int WARMUP = 10000;
+    private static final int OPS = 50000;
+    private static final int[] BULK_SIZES = { 50, 500, 5000 };
+    private static final String MESSAGE = "Request 42 to /api/items finished in 87 ms";
+    private static final String DOC = "{\"level\":\"info\",\"message\":\"User opened the settings screen\","
+            + "\"@timestamp\":\"2021-06-01T10:15:30.123+0000\",\"meta\":{\"versionName\":\"3.3.0\","
+            + "\"versionCode\":1,\"osRelease\":\"11\",\"osType\":\"Android\","
+            + "\"uuid\":\"5d5f9a0e-3b7c-4c1e-9a55-8b0f5f3c2a11\"}}";
+
+    @Before
+    public void setUp() {
+        Bench.assumeEnabled();
+    }
+
+    @Test
+    public void logging() throws Exception {
+        final Logsene logsene = initLogsene();
+        IngestStats before = logsene.getIngestStats();
+        Bench.measure("Logsene.info()", WARMUP, OPS, new Bench.Op() {
+            @Override
+            public long run(int i) {
+                logsene.info(MESSAGE);
+                return i;
+            }
+        });
+        assertTrue(logsene.flushIngestBuffer(60, TimeUnit.SECONDS));
+        Bench.measure("Logsene.error(Throwable)", WARMUP / 10, OPS / 10, new Bench.Op() {
+            @Override
+            public long run(int i) {
+                logsene.error(new IllegalStateException(MESSAGE));
+                return i;
+            }
+        });
+        assertTrue(logsene.flushIngestBuffer(60, TimeUnit.SECONDS));
+        Bench.measure("Logsene.atInfo().field().log()", WARMUP, OPS, new Bench.Op() {
+            @Override
+            public long run(int i) {
+                logsene.atInfo().field("route", "/api/items").field("latencyMs", i).log(MESSAGE);
+                return i;
+            }
+        });
+        assertTrue(logsene.flushIngestBuffer(60, TimeUnit.SECONDS));
+        // custom events are enriched and serialized from a JSONObject
+        Bench.measure("Logsene.event() with enrich()", WARMUP, OPS, new Bench.Op() {
+            @Override
+            public long run(int i) throws Exception {
+                JSONObject event = new JSONObject();
+                event.put("event", "screen_opened");
+                event.put("screen", "settings");
+                event.put("lat", 52.52);
+                event.put("lon", 13.40);
+                logsene.event(event);
+                return i;
+            }
+        });
+        assertTrue(logsene.flushIngestBuffer(60, TimeUnit.SECONDS));
+        // the numbers are only comparable if the buffer did not overflow
+        Bench.report("ingest buffer drops: " + (logsene.getIngestStats().getDropped() - before.getDropped()));
+    }
+
+    @Test
+    public void timestampsAndStackTraces() throws Exception {
+        Bench.measure("Utils.iso8601(long)", WARMUP, OPS * 10, new Bench.Op() {
+            @Override
+            public long run(int i) {
+                return Utils.iso8601(1622542530000L + i).length();
+            }
+        });
+        final Throwable error = new RuntimeException("outer", new IllegalStateException(MESSAGE));
+        Bench.measure("Utils.getStackTrace()", WARMUP / 10, OPS / 10, new Bench.Op() {
+            @Override
+            public long run(int i) {
+                return Utils.getStackTrace(error).length();
+            }
+        });
+        Bench.measure("StackTraces.render()", WARMUP / 10, OPS / 10, new Bench.Op() {
+            @Override
+            public long run(int i) {
+                return StackTraces.render(error, StackTraces.DEFAULT_MAX_FRAMES,
+                        StackTraces.DEFAULT_MAX_CAUSES).length();
+            }
+        });
+        Bench.measure("StackTraces.fingerprint()", WARMUP / 10, OPS / 10, new Bench.Op() {
+            @Override
+            public long run(int i) {
+                return StackTraces.fingerprint(error);
+            }
+        });
+    }
+
+    @Test
+    public void bulkEncoding() throws Exception {
+        for (int size : BULK_SIZES) {
+            Bulk.Builder builder = new Bulk.Builder();
+            for (int i = 0; i < size; i++) {
+                builder.addSource(DOC, "example");
+            }
+            final Bulk bulk = builder.build();
+            int rounds = 50000 / size;
+            Bench.measure("Bulk.toString() " + size + " docs", rounds / 10, rounds, new Bench.Op() {
+                @Override
+                public long run(int i) {
+                    return bulk.toString("token").length();
+                }
+            });
+            final Buffer sink = new Buffer();
+            Bench.measure("Bulk.toBody().writeTo() " + size + " docs", rounds / 10, rounds, new Bench.Op() {
+                @Override
+                public long run(int i) throws Exception {
+                    sink.clear();
+                    bulk.toBody("token").writeTo(sink);
+                    return sink.size();
+                }
+            });
+        }
+    }
+
+    private static Logsene initLogsene() {
+        if (!Logsene.isInitialized()) {
+            Context context = ApplicationProvider.getApplicationContext();
+            WorkManagerTestInitHelper.initializeTestWorkManager(context);
+            SqliteObjectQueue.resetForTesting();
+            Bundle metaData = new Bundle();
+            metaData.putString("LogseneAppToken", "token");
+            metaData.putString("LogseneType", "example");
+            metaData.putInt("LogseneMaxOfflineMessages", 1000000);
+            metaData.putInt("LogseneIngestBufferSize", 65536);
+            shadowOf(context.getPackageManager()).getInternalMutablePackageInfo(context.getPackageName())
+                    .applicationInfo.metaData = metaData;
+            Logsene.init(context);
+        }
+        return Logsene.getInstance();
+    }
+}
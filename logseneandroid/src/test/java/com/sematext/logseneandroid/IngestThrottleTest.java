@@ -0,0 +1,105 @@
+package com.sematext.logseneandroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IngestThrottleTest {
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void unlimitedAdmitsEverything() {
+        IngestThrottle throttle = IngestThrottle.unlimited();
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(throttle.admit(Severity.DEBUG, "logger"));
+        }
+        assertEquals("{\"a\":1}", throttle.attachCounts("{\"a\":1}"));
+    }
+
+    @Test
+    public void levelLimitAllowsBurstThenRefills() {
+        IngestThrottle throttle = new IngestThrottle(limits(0, 0, 10, 0), 0, 1f, 1f);
+        long now = System.nanoTime();
+        int admitted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (throttle.admit(Severity.WARN, null, now)) {
+                admitted++;
+            }
+        }
+        assertEquals(10, admitted);
+        // other levels have their own limits
+        assertTrue(throttle.admit(Severity.ERROR, null, now));
+
+        assertFalse(throttle.admit(Severity.WARN, null, now + SECOND / 20));
+        assertTrue(throttle.admit(Severity.WARN, null, now + SECOND / 10));
+        assertEquals(91, throttle.getStats().getRateLimited());
+    }
+
+    @Test
+    public void loggersHaveTheirOwnBuckets() {
+        IngestThrottle throttle = new IngestThrottle(limits(0, 0, 0, 0), 2, 1f, 1f);
+        long now = System.nanoTime();
+        assertTrue(throttle.admit(Severity.INFO, "noisy", now));
+        assertTrue(throttle.admit(Severity.INFO, "noisy", now));
+        assertFalse(throttle.admit(Severity.INFO, "noisy", now));
+        assertTrue(throttle.admit(Severity.INFO, "quiet", now));
+        // messages without a logger are only limited by level
+        assertTrue(throttle.admit(Severity.INFO, null, now));
+    }
+
+    @Test
+    public void loggerHeldBackByItsBucketLeavesLevelBudgetToOthers() {
+        IngestThrottle throttle = new IngestThrottle(limits(0, 0, 10, 0), 2, 1f, 1f);
+        long now = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            throttle.admit(Severity.WARN, "noisy", now);
+        }
+        for (int i = 0; i < 2; i++) {
+            assertTrue(throttle.admit(Severity.WARN, "quiet", now));
+        }
+        assertEquals(98, throttle.getStats().getRateLimited());
+    }
+
+    @Test
+    public void onlyDebugAndInfoAreSampled() {
+        IngestThrottle throttle = new IngestThrottle(limits(0, 0, 0, 0), 0, 0f, 0.5f);
+        int info = 0;
+        for (int i = 0; i < 10000; i++) {
+            assertFalse(throttle.admit(Severity.DEBUG, null));
+            assertTrue(throttle.admit(Severity.WARN, null));
+            if (throttle.admit(Severity.INFO, null)) {
+                info++;
+            }
+        }
+        assertTrue("admitted " + info, info > 4500 && info < 5500);
+        assertEquals(20000 - info, throttle.getStats().getSampledOut());
+    }
+
+    @Test
+    public void countsAreAttachedToNextMessageOnce() {
+        IngestThrottle throttle = new IngestThrottle(limits(0, 0, 0, 1), 0, 0f, 1f);
+        long now = System.nanoTime();
+        assertTrue(throttle.admit(Severity.ERROR, null, now));
+        assertFalse(throttle.admit(Severity.ERROR, null, now));
+        assertFalse(throttle.admit(Severity.ERROR, null, now));
+        assertFalse(throttle.admit(Severity.DEBUG, null, now));
+
+        assertEquals("{\"level\":\"info\",\"suppressed\":{\"rateLimited\":2,\"sampledOut\":1}}",
+                throttle.attachCounts("{\"level\":\"info\"}"));
+        assertEquals("{\"level\":\"info\"}", throttle.attachCounts("{\"level\":\"info\"}"));
+
+        assertFalse(throttle.admit(Severity.DEBUG, null, now));
+        assertEquals("{\"suppressed\":{\"rateLimited\":0,\"sampledOut\":1}}", throttle.attachCounts("{}"));
+        assertEquals(2, throttle.getStats().getRateLimited());
+        assertEquals(2, throttle.getStats().getSampledOut());
+    }
+
+    private static int[] limits(int debug, int info, int warn, int error) {
+        int[] limits = new int[Severity.values().length];
+        limits[Severity.DEBUG.ordinal()] = debug;
+        limits[Severity.INFO.ordinal()] = info;
+        limits[Severity.WARN.ordinal()] = warn;
+        limits[Severity.ERROR.ordinal()] = error;
+        return limits;
+    }
+}
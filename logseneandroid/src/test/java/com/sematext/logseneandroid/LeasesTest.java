@@ -0,0 +1,38 @@
+package com.sematext.logseneandroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LeasesTest {
+    @Test
+    public void expiredOrFutureLeasesAreLeasable() {
+        assertTrue(Leases.isLeasable(0, 0, 1000, 1100));
+        assertFalse(Leases.isLeasable(7, 1050, 1000, 1100));
+        assertTrue(Leases.isLeasable(7, 1000, 1000, 1100));
+        // the clock went back
+        assertTrue(Leases.isLeasable(7, 1101, 1000, 1100));
+    }
+
+    @Test
+    public void builderKeepsWithinLimits() {
+        Leases.Builder builder = new Leases.Builder(7, 3, 100, 10);
+        assertNull(builder.build());
+        // the first record always fits
+        assertTrue(builder.fits(150));
+        builder.add(4, 150, 40);
+        assertFalse(builder.fits(1));
+
+        builder = new Leases.Builder(7, 3, 100, 10);
+        for (int id = 1; !builder.isFull(); id++) {
+            builder.add(id, 10, id * 10);
+        }
+        QueueRange range = builder.build();
+        assertEquals(1, range.firstId);
+        assertEquals(3, range.lastId);
+        assertEquals(3, range.count);
+        assertEquals(30, range.bytes);
+        assertEquals(30, range.timestamps[2]);
+        assertEquals(7, range.leaseId);
+    }
+}
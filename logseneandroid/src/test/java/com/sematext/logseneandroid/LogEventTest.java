@@ -0,0 +1,108 @@
+package com.sematext.logseneandroid;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class LogEventTest {
+    private static final long TIMESTAMP = 1622542530123L;
+
+    private LogEvent event;
+
+    @After
+    public void tearDown() {
+        if (event != null) {
+            event.recycle();
+        }
+    }
+
+    @Test
+    public void fieldsMatchJsonObject() throws Exception {
+        event = LogEvent.obtain(null, Severity.INFO, "info")
+                .field("route", "/api/items?q=\"x\"")
+                .field("latencyMs", 87L)
+                .field("count", 3)
+                .field("ratio", 0.25)
+                .field("whole", 2.0)
+                .field("negativeZero", -0.0)
+                .field("big", 1e20)
+                .field("cached", false);
+
+        JSONObject expected = new JSONObject();
+        expected.put("level", "info");
+        expected.put("message", "Request finished");
+        expected.put("route", "/api/items?q=\"x\"");
+        expected.put("latencyMs", 87L);
+        expected.put("count", 3);
+        expected.put("ratio", 0.25);
+        expected.put("whole", 2.0);
+        expected.put("negativeZero", -0.0);
+        expected.put("big", 1e20);
+        expected.put("cached", false);
+        expected.put("@timestamp", Utils.iso8601(TIMESTAMP));
+        assertEquals(expected.toString(), EventEncoder.encodeEvent(event, "Request finished", null, TIMESTAMP));
+    }
+
+    @Test
+    public void repeatedFieldReplacesValue() throws Exception {
+        event = LogEvent.obtain(null, Severity.WARN, "warn")
+                .field("a", 1)
+                .field("b", "first")
+                .field("c", true)
+                .field("b", "second")
+                .field("a", (String) null);
+
+        JSONObject expected = new JSONObject(EventEncoder.encodeEvent(event, null, null, TIMESTAMP));
+        assertEquals(3, expected.length());
+        assertEquals("second", expected.getString("b"));
+        assertTrue(expected.getBoolean("c"));
+        assertFalse(expected.has("a"));
+    }
+
+    @Test
+    public void reservedAndInvalidFieldsAreIgnored() throws Exception {
+        event = LogEvent.obtain(null, Severity.INFO, null)
+                .field("level", "fake")
+                .field("@timestamp", 1)
+                .field("meta", "fake")
+                .field("nan", Double.NaN)
+                .field("x", 1)
+                .timestamp(0)
+                .location(52.52, 13.40);
+
+        String expected = String.format(Locale.ENGLISH,
+                "{\"x\":1,\"@timestamp\":\"%s\",\"geo\":{\"location\":\"52.52,13.40\"}}", Utils.iso8601(0));
+        assertEquals(expected, EventEncoder.encodeEvent(event, null, null, event.timestamp));
+    }
+
+    @Test
+    public void eventsAreRecycledPerThread() {
+        LogEvent first = LogEvent.obtain(null, Severity.INFO, "info").field("a", 1);
+        // started while the first one is still being built
+        LogEvent nested = LogEvent.obtain(null, Severity.INFO, "info");
+        assertNotSame(first, nested);
+        nested.recycle();
+        first.recycle();
+
+        event = LogEvent.obtain(null, Severity.DEBUG, "debug");
+        assertSame(first, event);
+        assertEquals(0, event.fields.length());
+        assertFalse(event.hasTimestamp);
+    }
+
+    @Test
+    public void disabledEventIgnoresEverything() {
+        LogEvent.DISABLED.field("a", 1).field("b", "x").timestamp(1).location(1, 2).log("message");
+        assertEquals(0, LogEvent.DISABLED.fields.length());
+        assertFalse(LogEvent.DISABLED.hasTimestamp);
+    }
+}
@@ -0,0 +1,171 @@
+package com.sematext.logseneandroid;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Behavior every {@link LogQueue} implementation shares, run by the test class of each one.
+ */
+public abstract class LogQueueContractTest {
+    /**
+     * Opens an empty queue.
+     * @param maxSize max number of records, the queue may evict some above it
+     */
+    protected abstract LogQueue open(int maxSize);
+
+    @Test
+    public void rangesAreLeasedReadAndRemovedInOrder() throws Exception {
+        LogQueue queue = open(100);
+        String meta = "{\"versionName\":\"1.0\"}";
+        List<QueueEntry> batch = entries(0, 10);
+        batch.set(3, new QueueEntry(doc(3), Severity.INFO, 3, meta));
+        queue.addAll(batch);
+        assertEquals(10, queue.size());
+        assertEquals(10 * doc(0).length(), queue.bytes());
+
+        QueueRange first = queue.lease(1, 0, Long.MAX_VALUE, 4, Long.MAX_VALUE, 1000, 100);
+        QueueRange second = queue.lease(2, 0, Long.MAX_VALUE, 4, Long.MAX_VALUE, 1000, 100);
+        assertEquals(first.lastId + 1, second.firstId);
+        assertEquals(3, first.timestamps[3]);
+        assertEquals(Arrays.asList(doc(0), doc(1), doc(2), doc(3)), read(queue, first));
+
+        // the second range is acknowledged first, the first one is released and leased again
+        queue.remove(second, null, null);
+        assertEquals(6, queue.size());
+        queue.release(first);
+        QueueRange again = queue.lease(3, 0, Long.MAX_VALUE, 10, Long.MAX_VALUE, 1000, 100);
+        assertEquals(6, again.count);
+        assertEquals(Arrays.asList(doc(0), doc(1), doc(2), doc(3), doc(8), doc(9)), read(queue, again));
+        assertEquals(meta, new String(queue.readMeta(metaIdOf(queue, again, 3)), StandardCharsets.UTF_8));
+
+        queue.remove(again, new long[] { again.lastId }, null);
+        assertEquals(1, queue.size());
+        assertEquals(again.lastId + 1, queue.lastId());
+        assertEquals(1, queue.getStats().getRequeued());
+    }
+
+    @Test
+    public void leasesAreDisjointAndAcknowledgedPerLease() throws Exception {
+        LogQueue queue = open(100);
+        queue.addAll(entries(0, 6));
+        long now = 1000;
+
+        QueueRange first = queue.lease(1, 0, Long.MAX_VALUE, 2, Long.MAX_VALUE, now, 100);
+        QueueRange second = queue.lease(2, 0, Long.MAX_VALUE, 2, Long.MAX_VALUE, now, 100);
+        assertEquals(2, second.count);
+        assertEquals(first.lastId + 1, second.firstId);
+
+        // records released by the first lease are leased again, past the second lease
+        queue.release(first);
+        QueueRange third = queue.lease(3, 0, Long.MAX_VALUE, 10, Long.MAX_VALUE, now, 100);
+        assertEquals(4, third.count);
+        assertEquals(first.firstId, third.firstId);
+        assertEquals(Arrays.asList(doc(0), doc(1), doc(4), doc(5)), read(queue, third));
+
+        // acknowledging the third lease leaves the records of the second one in between
+        queue.remove(third, null, null);
+        assertEquals(2, queue.size());
+        assertNull(queue.lease(4, 0, Long.MAX_VALUE, 10, Long.MAX_VALUE, now, 100));
+        queue.remove(second, null, null);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void leaseStopsAtByteLimit() throws Exception {
+        LogQueue queue = open(100);
+        queue.addAll(entries(0, 5));
+
+        QueueRange range = queue.lease(1, 0, Long.MAX_VALUE, 10, 2 * doc(0).length() + 1, 1000, 100);
+        assertEquals(2, range.count);
+        assertEquals(2 * doc(0).length(), range.bytes);
+        // a single record bigger than the limit is leased anyway
+        range = queue.lease(2, range.lastId, Long.MAX_VALUE, 10, 1, 1000, 100);
+        assertEquals(1, range.count);
+        assertEquals(Arrays.asList(doc(2)), read(queue, range));
+    }
+
+    @Test
+    public void expiredLeaseIsReclaimed() throws Exception {
+        LogQueue queue = open(100);
+        queue.addAll(entries(0, 2));
+
+        QueueRange crashed = queue.lease(1, 0, Long.MAX_VALUE, 10, Long.MAX_VALUE, 1000, 100);
+        assertNull(queue.lease(2, 0, Long.MAX_VALUE, 10, Long.MAX_VALUE, 1099, 100));
+        QueueRange reclaimed = queue.lease(2, 0, Long.MAX_VALUE, 10, Long.MAX_VALUE, 1100, 100);
+        assertEquals(2, reclaimed.count);
+
+        // the late acknowledgement of the expired lease does not remove the reclaimed records
+        queue.remove(crashed, null, null);
+        assertEquals(2, queue.size());
+        queue.remove(reclaimed, null, null);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void leaseFromBeforeClockWentBackIsReclaimed() throws Exception {
+        LogQueue queue = open(100);
+        queue.addAll(entries(0, 2));
+
+        queue.lease(1, 0, Long.MAX_VALUE, 10, Long.MAX_VALUE, 100000, 100);
+        QueueRange reclaimed = queue.lease(2, 0, Long.MAX_VALUE, 10, Long.MAX_VALUE, 1000, 100);
+        assertEquals(2, reclaimed.count);
+    }
+
+    /**
+     * Reads all records, leasing them only while reading.
+     */
+    static List<String> read(LogQueue queue) throws Exception {
+        QueueRange range = queue.lease(QueueSender.newLeaseId(), 0, Long.MAX_VALUE, 1000, Long.MAX_VALUE,
+                System.currentTimeMillis(), LogQueue.DEFAULT_LEASE_MILLIS);
+        if (range == null) {
+            return new ArrayList<>();
+        }
+        List<String> read = read(queue, range);
+        queue.release(range);
+        return read;
+    }
+
+    static List<String> read(LogQueue queue, QueueRange range) throws Exception {
+        final List<String> read = new ArrayList<>();
+        queue.read(range, new LogQueue.RecordReader() {
+            @Override
+            public void read(long id, byte[] data, long metaId) {
+                read.add(new String(data, StandardCharsets.UTF_8));
+            }
+        });
+        return read;
+    }
+
+    static long metaIdOf(LogQueue queue, QueueRange range, int index) throws Exception {
+        final long[] metaIds = new long[range.count];
+        queue.read(range, new LogQueue.RecordReader() {
+            int i;
+
+            @Override
+            public void read(long id, byte[] data, long metaId) {
+                metaIds[i++] = metaId;
+            }
+        });
+        return metaIds[index];
+    }
+
+    static List<QueueEntry> entries(int from, int count) {
+        List<QueueEntry> entries = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            entries.add(new QueueEntry(doc(i), Severity.INFO, i));
+        }
+        return entries;
+    }
+
+    static String doc(int seq) {
+        // all documents have the same length, for seq below 1000
+        String padding = "xxx".substring(String.valueOf(seq).length());
+        return "{\"seq\":" + seq + ",\"message\":\"hello" + padding + "\"}";
+    }
+}
@@ -0,0 +1,89 @@
+package com.sematext.logseneandroid;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.work.Data;
+import androidx.work.ListenableWorker;
+import androidx.work.testing.TestWorkerBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class LogWorkerTest {
+    private Context context;
+    private MockWebServer server;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        SqliteObjectQueue.resetForTesting();
+        MemoryLogQueue.resetForTesting();
+        context = ApplicationProvider.getApplicationContext();
+        server = new MockWebServer();
+        server.start();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        server.shutdown();
+        SqliteObjectQueue.resetForTesting();
+        MemoryLogQueue.resetForTesting();
+    }
+
+    @Test
+    public void drainsInMemoryQueueBeforePersistentQueue() throws Exception {
+        MemoryLogQueue memoryQueue = MemoryLogQueue.open();
+        memoryQueue.addAll(Collections.singletonList(
+                new QueueEntry("{\"message\":\"Screen opened\"}", Severity.DEBUG, 1)));
+        SqliteObjectQueue queue = new SqliteObjectQueue(context, 1000);
+        queue.addAll(Collections.singletonList(new QueueEntry("{\"message\":\"Stored\"}", Severity.INFO, 2)));
+        server.enqueue(new MockResponse().setBody("{\"errors\":false}"));
+        server.enqueue(new MockResponse().setBody("{\"errors\":false}"));
+
+        assertEquals(ListenableWorker.Result.success(), worker().doWork());
+        assertEquals(0, memoryQueue.size());
+        assertEquals(0, queue.size());
+        assertEquals(2, server.getRequestCount());
+        assertTrue(server.takeRequest().getBody().readUtf8().contains("Screen opened"));
+        assertTrue(server.takeRequest().getBody().readUtf8().contains("Stored"));
+    }
+
+    @Test
+    public void drainsInMemoryQueueWhenPersistentQueueIsEmpty() throws Exception {
+        MemoryLogQueue memoryQueue = MemoryLogQueue.open();
+        memoryQueue.addAll(Collections.singletonList(
+                new QueueEntry("{\"message\":\"Screen opened\"}", Severity.DEBUG, 1)));
+        server.enqueue(new MockResponse().setBody("{\"errors\":false}"));
+
+        assertEquals(ListenableWorker.Result.success(), worker().doWork());
+        assertEquals(0, memoryQueue.size());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    private LogWorker worker() {
+        Data input = new Data.Builder()
+                .putString(Logsene.KEY_RECEIVERURL, server.url("/").toString())
+                .putString(Logsene.KEY_APPTOKEN, "token")
+                .putString(Logsene.KEY_TYPE, "example")
+                .build();
+        return TestWorkerBuilder.from(context, LogWorker.class, executor).setInputData(input).build();
+    }
+}
@@ -0,0 +1,139 @@
+package com.sematext.logseneandroid;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.work.testing.WorkManagerTestInitHelper;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class LogseneTest {
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        WorkManagerTestInitHelper.initializeTestWorkManager(context);
+        reset();
+    }
+
+    @After
+    public void tearDown() {
+        reset();
+    }
+
+    @Test
+    public void flushIngestBufferPersistsCoalescedRepeats() throws Exception {
+        Bundle metaData = new Bundle();
+        metaData.putInt("LogseneCoalesceWindow", 60000);
+        Logsene logsene = init(metaData);
+        for (int i = 0; i < 5; i++) {
+            logsene.info("Retrying request");
+        }
+
+        assertTrue(logsene.flushIngestBuffer(10, TimeUnit.SECONDS));
+        List<JSONObject> queued = new SqliteObjectQueue(context, 1000).peek(10);
+        assertEquals(2, queued.size());
+        assertFalse(queued.get(0).has(Coalescer.COALESCED_FIELD));
+        assertEquals(4, queued.get(1).getJSONObject(Coalescer.COALESCED_FIELD).getInt("count"));
+    }
+
+    @Test
+    public void inMemoryEventsSkipPersistentQueue() throws Exception {
+        Logsene logsene = init(new Bundle());
+        logsene.atInfo().inMemory().field("screen", "settings").log("Screen opened");
+        JSONObject sample = new JSONObject();
+        sample.put("frameMillis", 16);
+        logsene.event(sample, true);
+        logsene.info("Stored");
+
+        assertTrue(logsene.flushIngestBuffer(10, TimeUnit.SECONDS));
+        assertEquals(2, logsene.getInMemoryQueueStats().getSize());
+        assertEquals(1, logsene.getQueueStats().getSize());
+        assertEquals("Stored", new SqliteObjectQueue(context, 1000).peek(1).get(0).getString("message"));
+    }
+
+    @Test
+    public void inMemoryLevelKeepsLessSevereMessagesInMemory() throws Exception {
+        Bundle metaData = new Bundle();
+        metaData.putString("LogseneInMemoryLevel", "info");
+        Logsene logsene = init(metaData);
+        logAllLevels(logsene);
+
+        assertTrue(logsene.flushIngestBuffer(10, TimeUnit.SECONDS));
+        assertEquals(2, logsene.getInMemoryQueueStats().getSize());
+        assertEquals(2, logsene.getQueueStats().getSize());
+    }
+
+    @Test
+    public void unknownInMemoryLevelKeepsAllMessagesPersistent() throws Exception {
+        Bundle metaData = new Bundle();
+        metaData.putString("LogseneInMemoryLevel", "inof");
+        Logsene logsene = init(metaData);
+        logAllLevels(logsene);
+
+        assertTrue(logsene.flushIngestBuffer(10, TimeUnit.SECONDS));
+        assertEquals(0, logsene.getInMemoryQueueStats().getSize());
+        assertEquals(4, logsene.getQueueStats().getSize());
+    }
+
+    @Test
+    public void invalidConnectionSettingsFallBackToDefaults() throws Exception {
+        Bundle metaData = new Bundle();
+        metaData.putInt("LogseneKeepAlive", 0);
+        metaData.putInt("LogseneConnectTimeout", -1);
+        Logsene logsene = init(metaData);
+        logsene.info("Stored");
+
+        assertTrue(logsene.flushIngestBuffer(10, TimeUnit.SECONDS));
+        assertEquals(1, logsene.getQueueStats().getSize());
+    }
+
+    @Test
+    public void unknownMinLevelKeepsCurrentMinimum() throws Exception {
+        Logsene logsene = init(new Bundle());
+        logsene.setMinLevel("warn");
+        logsene.setMinLevel("wrn");
+        logAllLevels(logsene);
+
+        assertTrue(logsene.flushIngestBuffer(10, TimeUnit.SECONDS));
+        assertEquals(2, logsene.getQueueStats().getSize());
+    }
+
+    private static void logAllLevels(Logsene logsene) {
+        logsene.debug("Cache miss");
+        logsene.info("Screen opened");
+        logsene.warn("Slow response");
+        logsene.error("Request failed");
+    }
+
+    private Logsene init(Bundle metaData) {
+        metaData.putString("LogseneAppToken", "token");
+        metaData.putString("LogseneType", "example");
+        shadowOf(context.getPackageManager()).getInternalMutablePackageInfo(context.getPackageName())
+                .applicationInfo.metaData = metaData;
+        Logsene.init(context);
+        return Logsene.getInstance();
+    }
+
+    private static void reset() {
+        Logsene.resetForTesting();
+        SqliteObjectQueue.resetForTesting();
+        MemoryLogQueue.resetForTesting();
+    }
+}
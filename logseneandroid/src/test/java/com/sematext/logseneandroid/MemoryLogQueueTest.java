@@ -0,0 +1,89 @@
+package com.sematext.logseneandroid;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class MemoryLogQueueTest extends LogQueueContractTest {
+    private static final int COST = doc(0).length() + MemoryLogQueue.RECORD_OVERHEAD_BYTES;
+
+    @Override
+    protected MemoryLogQueue open(int maxSize) {
+        return new MemoryLogQueue(maxSize, maxSize * COST, MemoryLogQueue.Overflow.DROP_OLDEST);
+    }
+
+    @Test
+    public void dropOldestEvictsWithinMemoryCap() throws Exception {
+        MemoryLogQueue queue = new MemoryLogQueue(100, 5 * COST, MemoryLogQueue.Overflow.DROP_OLDEST);
+        assertEquals(3, queue.addAll(entries(0, 8)));
+        assertEquals(5, queue.size());
+        assertEquals(5 * COST, queue.memoryBytes());
+        assertEquals(Arrays.asList(doc(3), doc(4), doc(5), doc(6), doc(7)), read(queue));
+        assertEquals(3, queue.getStats().getEvicted());
+        assertEquals(1, queue.getStats().getEvictions());
+    }
+
+    @Test
+    public void dropNewestKeepsQueuedMessages() throws Exception {
+        MemoryLogQueue queue = new MemoryLogQueue(4, 100 * COST, MemoryLogQueue.Overflow.DROP_NEWEST);
+        assertEquals(4, queue.addAll(entries(0, 8)));
+        assertEquals(Arrays.asList(doc(0), doc(1), doc(2), doc(3)), read(queue));
+        assertEquals(4, queue.getStats().getEvicted());
+
+        // once the sender made room, new messages are accepted again
+        queue.remove(queue.lease(1, 0, Long.MAX_VALUE, 2, Long.MAX_VALUE, 1000, 100), null, null);
+        assertEquals(0, queue.addAll(entries(8, 2)));
+        assertEquals(Arrays.asList(doc(2), doc(3), doc(8), doc(9)), read(queue));
+    }
+
+    @Test
+    public void slotsBehindLeasedHeadCountAgainstLimits() throws Exception {
+        MemoryLogQueue queue = new MemoryLogQueue(4, 100 * COST, MemoryLogQueue.Overflow.DROP_NEWEST);
+        queue.addAll(entries(0, 4));
+        QueueRange stuck = queue.lease(1, 0, Long.MAX_VALUE, 1, Long.MAX_VALUE, 1000, 100);
+        queue.remove(queue.lease(2, 0, Long.MAX_VALUE, 10, Long.MAX_VALUE, 1000, 100), null, null);
+        assertEquals(1, queue.size());
+        assertEquals(COST + 3 * MemoryLogQueue.RECORD_OVERHEAD_BYTES, queue.memoryBytes());
+
+        // the acknowledged records are still in the ring behind the leased head
+        assertEquals(2, queue.addAll(entries(4, 2)));
+        assertEquals(1, queue.size());
+
+        queue.remove(stuck, null, null);
+        assertEquals(0, queue.memoryBytes());
+        assertEquals(0, queue.addAll(entries(4, 2)));
+        assertEquals(Arrays.asList(doc(4), doc(5)), read(queue));
+    }
+
+    @Test
+    public void dropOldestEvictsLeasedHeadToReuseSlots() throws Exception {
+        MemoryLogQueue queue = new MemoryLogQueue(4, 100 * COST, MemoryLogQueue.Overflow.DROP_OLDEST);
+        queue.addAll(entries(0, 4));
+        queue.lease(1, 0, Long.MAX_VALUE, 1, Long.MAX_VALUE, 1000, 100);
+        queue.remove(queue.lease(2, 0, Long.MAX_VALUE, 10, Long.MAX_VALUE, 1000, 100), null, null);
+
+        assertEquals(1, queue.addAll(entries(4, 1)));
+        assertEquals(Arrays.asList(doc(4)), read(queue));
+        assertEquals(COST, queue.memoryBytes());
+    }
+
+    @Test
+    public void messageBiggerThanQueueIsDropped() {
+        MemoryLogQueue queue = new MemoryLogQueue(100, COST - 1, MemoryLogQueue.Overflow.DROP_OLDEST);
+        assertEquals(1, queue.addAll(entries(0, 1)));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void unknownOverflowFallsBackToDropOldest() {
+        assertEquals(MemoryLogQueue.Overflow.DROP_NEWEST, MemoryLogQueue.Overflow.fromName("drop_newest"));
+        assertEquals(MemoryLogQueue.Overflow.DROP_OLDEST, MemoryLogQueue.Overflow.fromName("drop-newest"));
+    }
+}
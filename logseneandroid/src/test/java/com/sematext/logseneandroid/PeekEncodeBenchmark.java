@@ -0,0 +1,107 @@
+package com.sematext.logseneandroid;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares reading queued records and encoding them into a bulk body, once by parsing each record
+ * into a <code>JSONObject</code> and serializing it again, once by copying the stored bytes.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PeekEncodeBenchmark {
+    private static final int ROWS = 5000;
+    private static final int BULK_SIZE = 50;
+    private static final int ROUNDS = 5;
+    private static final String DOC = "{\"level\":\"info\",\"message\":\"User opened the settings screen\","
+            + "\"@timestamp\":\"2021-06-01T10:15:30.123+0000\",\"meta\":{\"versionName\":\"3.3.0\","
+            + "\"versionCode\":1,\"osRelease\":\"11\",\"osType\":\"Android\","
+            + "\"uuid\":\"5d5f9a0e-3b7c-4c1e-9a55-8b0f5f3c2a11\"}}";
+
+    private SqliteObjectQueue queue;
+
+    @Before
+    public void setUp() {
+        Bench.assumeEnabled();
+        SqliteObjectQueue.resetForTesting();
+        Context context = ApplicationProvider.getApplicationContext();
+        queue = new SqliteObjectQueue(context, ROWS * 2);
+        List<QueueEntry> entries = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            entries.add(new QueueEntry(DOC, Severity.INFO, i));
+        }
+        queue.addAll(entries);
+    }
+
+    @After
+    public void tearDown() {
+        SqliteObjectQueue.resetForTesting();
+    }
+
+    @Test
+    public void peekAndEncodeThroughput() throws Exception {
+        // warm up both paths
+        parseAndSerialize();
+        copyRaw();
+
+        long parsed = 0;
+        long raw = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            parseAndSerialize();
+            parsed += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            copyRaw();
+            raw += System.nanoTime() - start;
+        }
+        Bench.report(String.format(Locale.US, "peek + JSONObject.toString: %10.0f records/sec",
+                ROWS * ROUNDS * 1e9 / parsed));
+        Bench.report(String.format(Locale.US, "raw range read + validate:   %10.0f records/sec",
+                ROWS * ROUNDS * 1e9 / raw));
+        assertEquals(ROWS, queue.size());
+    }
+
+    private void parseAndSerialize() {
+        Buffer sink = new Buffer();
+        // peek has no offset, so the whole queue is peeked at once and encoded in bulks
+        List<JSONObject> records = queue.peek(ROWS);
+        for (int i = 0; i < records.size(); i++) {
+            if (i % BULK_SIZE == 0) {
+                sink.clear();
+            }
+            sink.writeUtf8("{ \"index\" : { \"_index\": \"token\", \"_type\" : \"example\" } }\n");
+            sink.writeUtf8(records.get(i).toString());
+            sink.writeByte('\n');
+        }
+        assertEquals(ROWS, records.size());
+    }
+
+    private void copyRaw() throws Exception {
+        Buffer sink = new Buffer();
+        long lastId = 0;
+        QueueRange range;
+        while ((range = queue.peekRange(lastId, BULK_SIZE)) != null) {
+            sink.clear();
+            new QueueBulkBody(queue, range, "token", "example").writeTo(sink);
+            lastId = range.lastId;
+        }
+    }
+}
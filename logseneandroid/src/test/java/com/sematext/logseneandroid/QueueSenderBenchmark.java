@@ -0,0 +1,90 @@
+package com.sematext.logseneandroid;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.sematext.logseneandroid.logsene.LogseneClient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the time to drain a backlog of messages against a local receiver which answers each
+ * bulk request after a fixed delay, like a high-latency mobile link.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class QueueSenderBenchmark {
+    private static final int MESSAGES = 2000;
+    private static final long LATENCY_MILLIS = 100;
+    private static final int[] IN_FLIGHT = { 1, 2, 4, 8 };
+    private static final String DOC = "{\"level\":\"info\",\"message\":\"User opened the settings screen\","
+            + "\"@timestamp\":\"2021-06-01T10:15:30.123+0000\"}";
+
+    private MockWebServer server;
+    private SqliteObjectQueue queue;
+    private LogseneClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        Bench.assumeEnabled();
+        SqliteObjectQueue.resetForTesting();
+        Context context = ApplicationProvider.getApplicationContext();
+        queue = new SqliteObjectQueue(context, MESSAGES * 2);
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setBody("{\"errors\":false}")
+                        .setHeadersDelay(LATENCY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        });
+        server.start();
+        client = new LogseneClient(server.url("/").toString(), "token");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server == null) {
+            return;
+        }
+        server.shutdown();
+        SqliteObjectQueue.resetForTesting();
+    }
+
+    @Test
+    public void drainTimeByRequestsInFlight() throws Exception {
+        for (int inFlight : IN_FLIGHT) {
+            List<QueueEntry> entries = new ArrayList<>(MESSAGES);
+            for (int i = 0; i < MESSAGES; i++) {
+                entries.add(new QueueEntry(DOC, Severity.INFO, i));
+            }
+            queue.addAll(entries);
+
+            long start = System.nanoTime();
+            assertEquals(SendOutcome.SUCCESS,
+                    new QueueSender(queue, client, "token", "example", inFlight, 1).drain());
+            long elapsed = System.nanoTime() - start;
+            assertEquals(0, queue.size());
+            Bench.report(String.format(Locale.US, "%d messages, %d in flight: %6d ms",
+                    MESSAGES, inFlight, TimeUnit.NANOSECONDS.toMillis(elapsed)));
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.sematext.logseneandroid;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.sematext.logseneandroid.logsene.LogseneClient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class QueueSenderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockWebServer server;
+    private SqliteObjectQueue queue;
+    private LogseneClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        SqliteObjectQueue.resetForTesting();
+        Context context = ApplicationProvider.getApplicationContext();
+        queue = new SqliteObjectQueue(context, 1000);
+        server = new MockWebServer();
+        server.start();
+        client = new LogseneClient(server.url("/").toString(), "token");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        SqliteObjectQueue.resetForTesting();
+    }
+
+    @Test
+    public void drainsWholeQueue() {
+        addMessages(260);
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setBody("{\"errors\":false}");
+            }
+        });
+
+        BulkSizer sizer = new BulkSizer();
+        assertEquals(SendOutcome.SUCCESS, sender(4, sizer).drain());
+        assertEquals(0, queue.size());
+        // bulks grow while requests are fast, so the count lies between what the first and the last target give
+        int requests = server.getRequestCount();
+        assertTrue(requests >= ceil(260, sizer.targetDocs()));
+        assertTrue(requests <= ceil(260, BulkSizer.INITIAL_DOCS));
+    }
+
+    @Test
+    public void drainsSegmentQueueSendingEachMessageOnce() throws Exception {
+        SegmentLogQueue segments = new SegmentLogQueue(folder.getRoot(), 1000, 0, 1024);
+        addMessages(segments, 260);
+        final List<String> sent = new ArrayList<>();
+        final Pattern n = Pattern.compile("\\{\"n\":(\\d+),");
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                Matcher matcher = n.matcher(request.getBody().readUtf8());
+                synchronized (sent) {
+                    while (matcher.find()) {
+                        sent.add(matcher.group(1));
+                    }
+                }
+                return new MockResponse().setBody("{\"errors\":false}");
+            }
+        });
+
+        QueueSender sender = new QueueSender(segments, client, "token", "example", 4, 3, new BulkSizer());
+        assertEquals(SendOutcome.SUCCESS, sender.drain());
+        assertEquals(0, segments.size());
+        assertEquals(260, sent.size());
+        assertEquals(260, new HashSet<>(sent).size());
+        segments.close();
+    }
+
+    @Test
+    public void failedRangeKeepsHigherRanges() throws Exception {
+        addMessages(200);
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                // fail the second range only, the ones after it are accepted
+                if (request.getBody().readUtf8().contains("\"n\":60,")) {
+                    return new MockResponse().setResponseCode(400);
+                }
+                return new MockResponse().setBody("{\"errors\":false}");
+            }
+        });
+
+        // the first four ranges of 50 are in flight before any response arrives
+        QueueSender sender = sender(4);
+        assertEquals(SendOutcome.PERMANENT, sender.drain());
+        assertEquals(1, sender.getSentBulks());
+        // only the range below the failed one is acknowledged
+        assertEquals(150, queue.size());
+        assertEquals(50, queue.peek(1).get(0).getInt("n"));
+    }
+
+    @Test
+    public void retriesAfterRequestedDelay() {
+        addMessages(10);
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "0"));
+        server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "0"));
+        server.enqueue(new MockResponse().setBody("{\"errors\":false}"));
+        long retries = Metrics.retries.get();
+        long status5xx = Metrics.statusClasses.get(5);
+        long bulks = Metrics.bulkDocs.snapshot().getCount();
+        long delivered = Metrics.deliveryMillis.snapshot().getCount();
+
+        assertEquals(SendOutcome.SUCCESS, sender(1).drain());
+        assertEquals(0, queue.size());
+        assertEquals(3, server.getRequestCount());
+        assertEquals(retries + 2, Metrics.retries.get());
+        assertEquals(status5xx + 1, Metrics.statusClasses.get(5));
+        assertEquals(bulks + 3, Metrics.bulkDocs.snapshot().getCount());
+        // the first message has timestamp 0, as if it was stored before timestamps were kept
+        assertEquals(delivered + 9, Metrics.deliveryMillis.snapshot().getCount());
+    }
+
+    @Test
+    public void requeuesTransientItemErrorsAndDropsPermanentOnes() throws Exception {
+        addMessages(3);
+        server.enqueue(new MockResponse().setBody("{\"errors\":true,\"items\":["
+                + "{\"index\":{\"status\":201}},"
+                + "{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}},"
+                + "{\"index\":{\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\"}}}]}"));
+
+        // the requeued document is left for the next drain
+        assertEquals(SendOutcome.SUCCESS, sender(1).drain());
+        assertEquals(1, server.getRequestCount());
+        assertTrue(server.takeRequest().getPath().contains("filter_path="));
+        assertEquals(1, queue.size());
+        assertEquals(1, queue.peek(1).get(0).getInt("n"));
+    }
+
+    @Test
+    public void truncatedResponseKeepsRecords() throws Exception {
+        addMessages(3);
+        server.enqueue(new MockResponse().setBody("{\"errors\":true,\"items\":[{\"index\":{\"status\":201}},"));
+
+        QueueSender sender = new QueueSender(queue, client, "token", "example", 1, 1, new BulkSizer());
+        assertEquals(SendOutcome.RETRYABLE, sender.drain());
+        assertEquals(1, server.getRequestCount());
+        assertEquals(0, sender.getSentBulks());
+        assertEquals(3, queue.size());
+        assertEquals(0, queue.peek(1).get(0).getInt("n"));
+    }
+
+    @Test
+    public void documentTooLargeForReceiverIsDropped() throws Exception {
+        queue.addAll(Arrays.asList(new QueueEntry("{\"n\":-1,\"message\":\"huge\"}", Severity.INFO, 0)));
+        addMessages(3);
+        final List<String> sent = new ArrayList<>();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String body = request.getBody().readUtf8();
+                if (body.contains("huge")) {
+                    return new MockResponse().setResponseCode(413);
+                }
+                synchronized (sent) {
+                    sent.add(body);
+                }
+                return new MockResponse().setBody("{\"errors\":false}");
+            }
+        });
+        BulkSizer sizer = new BulkSizer();
+        long rejected = QueueSender.getBulkStats().getRejectedDocs();
+
+        // each 413 halves the bulk, until the document is sent alone and dropped
+        assertEquals(SendOutcome.RETRYABLE, sender(1, sizer).drain());
+        assertEquals(SendOutcome.RETRYABLE, sender(1, sizer).drain());
+        assertEquals(SendOutcome.SUCCESS, sender(1, sizer).drain());
+        assertEquals(0, queue.size());
+        assertEquals(rejected + 1, QueueSender.getBulkStats().getRejectedDocs());
+        String bodies = sent.toString();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(bodies.contains("{\"n\":" + i + ","));
+        }
+    }
+
+    @Test
+    public void rangeOfCorruptRecordsIsQuarantinedWithoutRequest() {
+        queue.addAll(Arrays.asList(new QueueEntry("{\"n\":0,\"message\":\"trunc", Severity.INFO, 0),
+                new QueueEntry("{\"n\":1}}", Severity.INFO, 1)));
+        long quarantined = queue.getStats().getQuarantined();
+
+        assertEquals(SendOutcome.SUCCESS, sender(1).drain());
+        assertEquals(0, server.getRequestCount());
+        assertEquals(0, queue.size());
+        assertEquals(quarantined + 2, queue.getStats().getQuarantined());
+    }
+
+    @Test
+    public void concurrentDrainsSendEachMessageOnce() throws Exception {
+        addMessages(500);
+        final Map<String, Integer> sent = new HashMap<>();
+        final Pattern n = Pattern.compile("\\{\"n\":(\\d+),");
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                Matcher matcher = n.matcher(request.getBody().readUtf8());
+                synchronized (sent) {
+                    while (matcher.find()) {
+                        Integer count = sent.get(matcher.group(1));
+                        sent.put(matcher.group(1), count == null ? 1 : count + 1);
+                    }
+                }
+                // keep both drains busy at the same time
+                Thread.sleep(5);
+                return new MockResponse().setBody("{\"errors\":false}");
+            }
+        });
+
+        ExecutorService drains = Executors.newFixedThreadPool(2);
+        List<Future<SendOutcome>> outcomes = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            outcomes.add(drains.submit(new Callable<SendOutcome>() {
+                @Override
+                public SendOutcome call() {
+                    return sender(2).drain();
+                }
+            }));
+        }
+        for (Future<SendOutcome> outcome : outcomes) {
+            assertEquals(SendOutcome.SUCCESS, outcome.get());
+        }
+        drains.shutdown();
+
+        assertEquals(0, queue.size());
+        assertEquals(500, sent.size());
+        for (int count : sent.values()) {
+            assertEquals(1, count);
+        }
+    }
+
+    private QueueSender sender(int maxInFlight) {
+        return sender(maxInFlight, new BulkSizer());
+    }
+
+    private QueueSender sender(int maxInFlight, BulkSizer sizer) {
+        return new QueueSender(queue, client, "token", "example", maxInFlight, 3, sizer);
+    }
+
+    private static int ceil(int docs, int docsPerBulk) {
+        return (docs + docsPerBulk - 1) / docsPerBulk;
+    }
+
+    private void addMessages(int count) {
+        addMessages(queue, count);
+    }
+
+    private static void addMessages(LogQueue queue, int count) {
+        List<QueueEntry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            entries.add(new QueueEntry("{\"n\":" + i + ",\"message\":\"hello\"}", Severity.INFO, i));
+        }
+        queue.addAll(entries);
+    }
+}
@@ -0,0 +1,111 @@
+package com.sematext.logseneandroid;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares append and drain throughput of the queue storage engines. Draining leases, reads and
+ * removes bulk sized ranges, as the sender does.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class QueueStorageBenchmark {
+    private static final int ROWS = 20000;
+    private static final int[] BATCH_SIZES = { 1, 10, 100 };
+    private static final int BULK_SIZE = 500;
+    private static final String DOC = "{\"level\":\"info\",\"message\":\"User opened the settings screen\","
+            + "\"@timestamp\":\"2021-06-01T10:15:30.123+0000\"}";
+    private static final String META = "{\"versionName\":\"3.3.0\",\"versionCode\":1,\"osRelease\":\"11\","
+            + "\"osType\":\"Android\",\"uuid\":\"5d5f9a0e-3b7c-4c1e-9a55-8b0f5f3c2a11\"}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Bench.assumeEnabled();
+        SqliteObjectQueue.resetForTesting();
+    }
+
+    @After
+    public void tearDown() {
+        SqliteObjectQueue.resetForTesting();
+    }
+
+    @Test
+    public void appendAndDrainThroughput() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        SegmentLogQueue segments = new SegmentLogQueue(folder.newFolder(), ROWS * 2, 0,
+                SegmentLogQueue.DEFAULT_SEGMENT_BYTES);
+        run("sqlite", new SqliteObjectQueue(context, ROWS * 2));
+        run("segments", segments);
+        segments.close();
+    }
+
+    private static void run(String name, LogQueue queue) throws Exception {
+        // warm up statement compilation, the files and the jit
+        append(queue, 1000, 100);
+        drain(queue);
+
+        for (int batchSize : BATCH_SIZES) {
+            long start = System.nanoTime();
+            append(queue, ROWS, batchSize);
+            long appended = System.nanoTime() - start;
+            assertEquals(ROWS, queue.size());
+            long bytes = queue.bytes();
+
+            start = System.nanoTime();
+            drain(queue);
+            long drained = System.nanoTime() - start;
+            assertEquals(0, queue.size());
+
+            Bench.report(String.format(Locale.US, "%-8s batch=%3d: append %9.0f records/sec %6.1f MB/sec, "
+                            + "drain %9.0f records/sec %6.1f MB/sec", name, batchSize, ROWS * 1e9 / appended,
+                    bytes * 1e3 / appended, ROWS * 1e9 / drained, bytes * 1e3 / drained));
+        }
+    }
+
+    private static void append(LogQueue queue, int rows, int batchSize) {
+        List<QueueEntry> batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(new QueueEntry(DOC, Severity.INFO, System.currentTimeMillis(), META));
+        }
+        for (int i = 0; i < rows; i += batchSize) {
+            queue.addAll(batch);
+        }
+    }
+
+    private static void drain(LogQueue queue) throws Exception {
+        final long[] read = new long[1];
+        LogQueue.RecordReader reader = new LogQueue.RecordReader() {
+            @Override
+            public void read(long id, byte[] data, long metaId) {
+                read[0] += data.length;
+            }
+        };
+        long leaseId = QueueSender.newLeaseId();
+        QueueRange range;
+        while ((range = queue.lease(leaseId, 0, Long.MAX_VALUE, BULK_SIZE, Long.MAX_VALUE,
+                System.currentTimeMillis(), LogQueue.DEFAULT_LEASE_MILLIS)) != null) {
+            queue.read(range, reader);
+            queue.remove(range, null, null);
+        }
+        assertTrue(read[0] > 0);
+    }
+}
@@ -0,0 +1,32 @@
+package com.sematext.logseneandroid;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class RecordValidatorTest {
+    @Test
+    public void acceptsSerializedObjects() {
+        assertTrue(valid("{}"));
+        assertTrue(valid("{\"message\":\"a {quoted} \\\"string\\\" with [brackets]\",\"n\":[1,{\"x\":2}]}"));
+        assertTrue(valid("{\"message\":\"line\\nbreak\",\"utf8\":\"\u017elu\u0165ou\u010dk\u00fd\"} "));
+    }
+
+    @Test
+    public void rejectsBrokenRecords() {
+        assertFalse(valid(""));
+        assertFalse(valid("{\"message\":\"truncated"));
+        assertFalse(valid("{\"message\":\"hello\""));
+        assertFalse(valid("{\"message\":\"hello\"}}"));
+        assertFalse(valid("{\"message\":\"hello\"}{}"));
+        assertFalse(valid("[1,2]"));
+        assertFalse(valid("{\"message\":\"raw\nnewline\"}"));
+        assertFalse(valid("{\"message\":\"tab\tin string\"}"));
+    }
+
+    private static boolean valid(String record) {
+        return RecordValidator.isWellFormed(record.getBytes(StandardCharsets.UTF_8));
+    }
+}
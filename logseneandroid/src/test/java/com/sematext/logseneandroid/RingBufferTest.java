@@ -0,0 +1,63 @@
+package com.sematext.logseneandroid;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RingBufferTest {
+    @Test
+    public void offerFailsWhenFull() {
+        RingBuffer<String> ring = new RingBuffer<>(3);
+        assertEquals(4, ring.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer("e" + i, i));
+        }
+        assertFalse(ring.offer("overflow", 4));
+        assertEquals(0, ring.oldestStamp());
+        assertEquals("e0", ring.poll());
+        assertTrue(ring.offer("e4", 4));
+    }
+
+    @Test
+    public void drainPreservesOrderPerProducer() throws InterruptedException {
+        final RingBuffer<long[]> ring = new RingBuffer<>(64);
+        final int producers = 4;
+        final int perProducer = 20000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int id = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        long[] e = new long[] { id, i };
+                        while (!ring.offer(e, i)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        long[] next = new long[producers];
+        List<long[]> batch = new ArrayList<>();
+        int received = 0;
+        while (received < producers * perProducer) {
+            batch.clear();
+            received += ring.drainTo(batch, 100);
+            for (long[] e : batch) {
+                assertEquals(next[(int) e[0]], e[1]);
+                next[(int) e[0]]++;
+            }
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(ring.isEmpty());
+        assertEquals(producers * perProducer, ring.consumed());
+    }
+}
@@ -0,0 +1,106 @@
+package com.sematext.logseneandroid;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SegmentLogQueueTest extends LogQueueContractTest {
+    private static final int SEGMENT_BYTES = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void fullyRemovedSegmentsAreDeleted() throws Exception {
+        SegmentLogQueue queue = open(1000);
+        queue.addAll(entries(0, 100));
+        int segments = queue.segmentCount();
+        assertTrue(segments > 3);
+        assertEquals(segments, segmentFiles().length);
+
+        QueueRange range = queue.lease(1, 0, Long.MAX_VALUE, 90, Long.MAX_VALUE, 1000, 100);
+        queue.remove(range, null, null);
+        assertTrue(queue.segmentCount() < 3);
+        assertEquals(queue.segmentCount(), segmentFiles().length);
+        assertEquals(10, queue.size());
+    }
+
+    @Test
+    public void overflowEvictsOldestAndRequeueAppends() throws Exception {
+        SegmentLogQueue queue = open(10);
+        assertEquals(5, queue.addAll(entries(0, 14)));
+        assertEquals(9, queue.size());
+        assertEquals(5, queue.getStats().getEvicted());
+        assertEquals(5, queue.peek(1).get(0).getInt("seq"));
+
+        QueueRange range = queue.lease(1, 0, Long.MAX_VALUE, 3, Long.MAX_VALUE, 1000, 100);
+        queue.remove(range, new long[] { range.firstId + 1 }, null);
+        assertEquals(7, queue.size());
+        assertEquals(6, queue.peek(7).get(6).getInt("seq"));
+        assertEquals(1, queue.getStats().getRequeued());
+    }
+
+    @Test
+    public void recoversFromCheckpointAfterCrash() throws Exception {
+        SegmentLogQueue queue = open(1000);
+        queue.addAll(entries(0, 30));
+        queue.remove(queue.lease(1, 0, Long.MAX_VALUE, 10, Long.MAX_VALUE, 1000, 100), null, null);
+        long lastId = queue.lastId();
+
+        // the first instance is never closed, as if the process was killed
+        SegmentLogQueue recovered = open(1000);
+        assertEquals(20, recovered.size());
+        assertEquals(lastId, recovered.lastId());
+        assertEquals(10, recovered.peek(1).get(0).getInt("seq"));
+        recovered.addAll(entries(30, 1));
+        assertEquals(lastId + 1, recovered.lastId());
+    }
+
+    @Test
+    public void tornRecordIsCutOff() throws Exception {
+        SegmentLogQueue queue = open(1000);
+        queue.addAll(entries(0, 5));
+        // without a checkpoint every record is verified, the last one was not fully written
+        assertTrue(new File(folder.getRoot(), "checkpoint").delete());
+        int frame = SegmentLogQueue.HEADER_BYTES + doc(0).length();
+        RandomAccessFile file = new RandomAccessFile(new File(folder.getRoot(), "segment-1.log"), "rw");
+        try {
+            file.seek(4 * frame + SegmentLogQueue.HEADER_BYTES + 2);
+            file.write('x');
+        } finally {
+            file.close();
+        }
+
+        SegmentLogQueue recovered = open(1000);
+        assertEquals(4, recovered.size());
+        recovered.addAll(entries(5, 1));
+        assertEquals(5, recovered.lastId());
+        assertEquals(5, recovered.peek(5).get(4).getInt("seq"));
+        assertEquals(5, open(1000).size());
+    }
+
+    @Override
+    protected SegmentLogQueue open(int maxSize) {
+        return new SegmentLogQueue(folder.getRoot(), maxSize, 0, SEGMENT_BYTES);
+    }
+
+    private File[] segmentFiles() {
+        return folder.getRoot().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("segment-");
+            }
+        });
+    }
+}
@@ -0,0 +1,23 @@
+package com.sematext.logseneandroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SeverityTest {
+    @Test
+    public void unknownLevelIsInfo() {
+        assertEquals(Severity.WARN, Severity.of("WARNING"));
+        assertEquals(Severity.DEBUG, Severity.of("finest"));
+        assertEquals(Severity.INFO, Severity.of("inof"));
+        assertEquals(Severity.INFO, Severity.of(null));
+    }
+
+    @Test
+    public void parseRejectsUnknownLevel() {
+        assertEquals(Severity.INFO, Severity.parse(" Info "));
+        assertEquals(Severity.ERROR, Severity.parse("severe"));
+        assertNull(Severity.parse("inof"));
+        assertNull(Severity.parse(""));
+    }
+}
@@ -0,0 +1,206 @@
+package com.sematext.logseneandroid;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.work.Data;
+import androidx.work.ListenableWorker;
+import androidx.work.testing.TestWorkerBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs log producers and the worker against a receiver which injects faults, and checks that
+ * every message is delivered or rejected by the receiver, none is lost.
+ *
+ * Only runs when the <code>logsene.soak.seconds</code> system property sets how long messages are
+ * produced, e.g. <code>./gradlew test -Dlogsene.soak.seconds=600</code>. Faults are injected with a
+ * fixed seed, <code>logsene.soak.seed</code> picks another one.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SoakTest {
+    private static final int PRODUCERS = 2;
+    private static final int MESSAGES_PER_SECOND = 500;
+    private static final float FAULT_RATE = 0.3f;
+    private static final long DRAIN_TIMEOUT_MILLIS = 120 * 1000;
+    private static final long DEFAULT_SEED = 42;
+
+    private MockWebServer server;
+    private FaultyReceiver receiver;
+    private SqliteObjectQueue queue;
+    private ExecutorService workerExecutor;
+    private final AtomicLong seq = new AtomicLong();
+    private long seed;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue("set logsene.soak.seconds to run the soak test", Long.getLong("logsene.soak.seconds") != null);
+        SqliteObjectQueue.resetForTesting();
+        seed = Long.getLong("logsene.soak.seed", DEFAULT_SEED);
+        receiver = new FaultyReceiver(seed, FAULT_RATE);
+        server = new MockWebServer();
+        server.setDispatcher(receiver);
+        server.start();
+        queue = new SqliteObjectQueue(ApplicationProvider.<Context>getApplicationContext(), 1000000);
+        workerExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server == null) {
+            return;
+        }
+        workerExecutor.shutdownNow();
+        server.shutdown();
+        SqliteObjectQueue.resetForTesting();
+    }
+
+    @Test
+    public void nothingIsLostUnderFaults() throws Exception {
+        long seconds = Long.getLong("logsene.soak.seconds");
+        final AtomicBoolean producing = new AtomicBoolean(true);
+        final AtomicLong maxUsedMemory = new AtomicLong();
+        final AtomicLong maxQueueSize = new AtomicLong();
+        final CountDownLatch producersDone = new CountDownLatch(PRODUCERS);
+        ExecutorService threads = Executors.newFixedThreadPool(PRODUCERS + 1);
+        for (int i = 0; i < PRODUCERS; i++) {
+            threads.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        produce(producing);
+                    } finally {
+                        producersDone.countDown();
+                    }
+                }
+            });
+        }
+        threads.submit(new Runnable() {
+            @Override
+            public void run() {
+                Runtime runtime = Runtime.getRuntime();
+                while (!Thread.currentThread().isInterrupted()) {
+                    max(maxUsedMemory, runtime.totalMemory() - runtime.freeMemory());
+                    max(maxQueueSize, queue.size());
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+
+        // runs the worker back to back, as WorkManager would with a busy queue
+        long start = System.currentTimeMillis();
+        long produceUntil = start + TimeUnit.SECONDS.toMillis(seconds);
+        long deadline = produceUntil + DRAIN_TIMEOUT_MILLIS;
+        long producedAt = -1;
+        int runs = 0;
+        int retries = 0;
+        while (System.currentTimeMillis() < deadline) {
+            if (producing.get() && System.currentTimeMillis() >= produceUntil) {
+                producing.set(false);
+                producedAt = System.currentTimeMillis();
+            }
+            ListenableWorker.Result result = worker().doWork();
+            runs++;
+            if (result.equals(ListenableWorker.Result.retry())) {
+                retries++;
+            }
+            if (producersDone.getCount() == 0 && queue.size() == 0) {
+                break;
+            }
+            Thread.sleep(20);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        long drainMillis = producedAt < 0 ? -1 : System.currentTimeMillis() - producedAt;
+        threads.shutdownNow();
+        assertTrue(threads.awaitTermination(10, TimeUnit.SECONDS));
+
+        long total = seq.get();
+        long lost = receiver.getLost(total);
+        StringBuilder report = new StringBuilder(String.format(Locale.US, "seed %d: produced %d, delivered %d, "
+                        + "duplicated %d, rejected %d, lost %d, still queued %d; %d requests, %d worker runs "
+                        + "(%d retries), %.0f docs/sec overall, backlog drained in %d ms; high-water marks: %d "
+                        + "queued messages, %d KB heap used; faults:", seed, total, receiver.getDelivered(),
+                receiver.getDuplicates(), receiver.getRejected(), lost, queue.size(), receiver.getRequests(), runs,
+                retries, receiver.getDelivered() * 1000.0 / elapsed, drainMillis, maxQueueSize.get(),
+                maxUsedMemory.get() / 1024));
+        for (FaultyReceiver.Fault fault : FaultyReceiver.Fault.values()) {
+            report.append(' ').append(fault).append('=').append(receiver.getFaults(fault));
+        }
+
+        assertEquals(report.toString(), 0, queue.getStats().getEvicted());
+        assertEquals("queue was not drained, " + report, 0, queue.size());
+        assertEquals("messages lost, " + report, 0, lost);
+        assertEquals(report.toString(), total, receiver.getDelivered() + receiver.getRejected());
+    }
+
+    private void produce(AtomicBoolean producing) {
+        long interval = TimeUnit.SECONDS.toNanos(1) / MESSAGES_PER_SECOND;
+        long next = System.nanoTime();
+        List<QueueEntry> batch = new ArrayList<>();
+        while (producing.get()) {
+            // like the ingest thread, which persists whatever was logged in the meantime
+            long now = System.nanoTime();
+            while (next <= now) {
+                long n = seq.incrementAndGet();
+                batch.add(new QueueEntry("{\"seq\":" + n + ",\"level\":\"info\",\"message\":\"soak message " + n
+                        + "\"}", Severity.INFO, System.currentTimeMillis()));
+                next += interval;
+            }
+            if (!batch.isEmpty()) {
+                queue.addAll(batch);
+                batch.clear();
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private LogWorker worker() {
+        Data input = new Data.Builder()
+                .putString(Logsene.KEY_RECEIVERURL, server.url("/").toString())
+                .putString(Logsene.KEY_APPTOKEN, "token")
+                .putString(Logsene.KEY_TYPE, "example")
+                .putLong(Logsene.KEY_CONNECT_TIMEOUT, 1000)
+                .putLong(Logsene.KEY_READ_TIMEOUT, 1000)
+                .putLong(Logsene.KEY_WRITE_TIMEOUT, 1000)
+                .putInt(Logsene.KEY_MAX_ATTEMPTS, 2)
+                .build();
+        return TestWorkerBuilder.from(ApplicationProvider.<Context>getApplicationContext(), LogWorker.class,
+                workerExecutor).setInputData(input).build();
+    }
+
+    private static void max(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+}
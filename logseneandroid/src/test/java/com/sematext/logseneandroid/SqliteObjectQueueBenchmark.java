@@ -0,0 +1,121 @@
+package com.sematext.logseneandroid;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures insert throughput of the persistent queue for different batch sizes, and the cost of
+ * single operations at different queue depths.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SqliteObjectQueueBenchmark {
+    private static final int ROWS = 5000;
+    private static final int[] BATCH_SIZES = { 1, 10, 100, 1000 };
+    private static final int[] DEPTHS = { 0, 5000, 50000 };
+    private static final int OPS = 1000;
+    private static final int PEEK_SIZE = 50;
+    private static final String DOC = "{\"level\":\"info\",\"message\":\"User opened the settings screen\","
+            + "\"@timestamp\":\"2021-06-01T10:15:30.123+0000\",\"meta\":{\"versionName\":\"3.3.0\","
+            + "\"versionCode\":1,\"osRelease\":\"11\",\"osType\":\"Android\","
+            + "\"uuid\":\"5d5f9a0e-3b7c-4c1e-9a55-8b0f5f3c2a11\"}}";
+
+    private SqliteObjectQueue queue;
+
+    @Before
+    public void setUp() {
+        Bench.assumeEnabled();
+        SqliteObjectQueue.resetForTesting();
+        Context context = ApplicationProvider.getApplicationContext();
+        queue = new SqliteObjectQueue(context, DEPTHS[DEPTHS.length - 1] + ROWS * 2);
+    }
+
+    @After
+    public void tearDown() {
+        SqliteObjectQueue.resetForTesting();
+    }
+
+    @Test
+    public void insertThroughputByBatchSize() throws Exception {
+        // warm up statement compilation and the database file
+        insert(100, 100);
+        queue.remove((int) queue.size());
+
+        for (int batchSize : BATCH_SIZES) {
+            long start = System.nanoTime();
+            insert(ROWS, batchSize);
+            long elapsed = System.nanoTime() - start;
+            Bench.report(String.format(Locale.US, "addAll batch=%4d: %10.0f inserts/sec",
+                    batchSize, ROWS * 1e9 / elapsed));
+
+            assertEquals(ROWS, queue.size());
+            queue.remove(ROWS);
+            assertEquals(0, queue.size());
+        }
+    }
+
+    @Test
+    public void addPeekRemoveByDepth() throws Exception {
+        final List<QueueEntry> one = Collections.singletonList(new QueueEntry(DOC, Severity.INFO, 1));
+        final SqliteObjectQueue.RecordReader reader = new SqliteObjectQueue.RecordReader() {
+            @Override
+            public void read(long id, byte[] data, long metaId) {
+            }
+        };
+        for (int depth : DEPTHS) {
+            queue.remove((int) queue.size());
+            insert(depth, 1000);
+            assertEquals(depth, queue.size());
+
+            Bench.measure("addAll(1) at depth " + depth, OPS / 10, OPS, new Bench.Op() {
+                @Override
+                public long run(int i) {
+                    return queue.addAll(one);
+                }
+            });
+            Bench.measure("peekRange(" + PEEK_SIZE + ") + read at depth " + depth, OPS / 10, OPS, new Bench.Op() {
+                @Override
+                public long run(int i) throws Exception {
+                    QueueRange range = queue.peekRange(0, PEEK_SIZE, Long.MAX_VALUE);
+                    queue.read(range, reader);
+                    return range.count;
+                }
+            });
+            // takes back the records added above, so the depth stays the same
+            Bench.measure("peekRange(1) + remove at depth " + depth, OPS / 10, OPS, new Bench.Op() {
+                @Override
+                public long run(int i) {
+                    QueueRange range = queue.peekRange(0, 1, Long.MAX_VALUE);
+                    queue.remove(range);
+                    return range.count;
+                }
+            });
+            assertEquals(depth, queue.size());
+        }
+    }
+
+    private void insert(int rows, int batchSize) {
+        List<QueueEntry> batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(new QueueEntry(DOC, Severity.INFO, System.currentTimeMillis()));
+        }
+        for (int i = 0; i < rows; i += batchSize) {
+            queue.addAll(batch);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.sematext.logseneandroid;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SqliteObjectQueueTest extends LogQueueContractTest {
+    private Context context;
+
+    @Before
+    public void setUp() {
+        SqliteObjectQueue.resetForTesting();
+        context = ApplicationProvider.getApplicationContext();
+    }
+
+    @After
+    public void tearDown() {
+        SqliteObjectQueue.resetForTesting();
+    }
+
+    @Override
+    protected SqliteObjectQueue open(int maxSize) {
+        return new SqliteObjectQueue(context, maxSize);
+    }
+
+    @Test
+    public void overflowEvictsLeastSevereFirst() throws Exception {
+        SqliteObjectQueue queue = new SqliteObjectQueue(context, 10);
+        List<QueueEntry> batch = new ArrayList<>();
+        batch.add(entry("error", 0));
+        batch.add(entry("warn", 1));
+        for (int i = 2; i < 14; i++) {
+            batch.add(entry("debug", i));
+        }
+
+        // 14 records, evicted down to the low watermark of 9
+        assertEquals(5, queue.addAll(batch));
+        assertEquals(9, queue.size());
+
+        List<JSONObject> remaining = queue.peek(100);
+        assertEquals(9, remaining.size());
+        assertEquals("error", remaining.get(0).getString("level"));
+        assertEquals("warn", remaining.get(1).getString("level"));
+        // oldest debug messages were dropped
+        assertEquals(7, remaining.get(2).getInt("seq"));
+
+        QueueStats stats = queue.getStats();
+        assertEquals(5, stats.getEvicted());
+        assertEquals(1, stats.getEvictions());
+    }
+
+    @Test
+    public void removeDeletesOldest() throws Exception {
+        SqliteObjectQueue queue = new SqliteObjectQueue(context, 100);
+        List<QueueEntry> batch = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            batch.add(entry("info", i));
+        }
+        queue.addAll(batch);
+        queue.remove(3);
+
+        List<JSONObject> remaining = queue.peek(10);
+        assertEquals(2, remaining.size());
+        assertEquals(3, remaining.get(0).getInt("seq"));
+    }
+
+    @Test
+    public void byteBudgetEvictsDownToLowWatermark() {
+        SqliteObjectQueue queue = new SqliteObjectQueue(context, 1000, 1000);
+        StringBuilder doc = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            doc.append('x');
+        }
+        List<QueueEntry> batch = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            batch.add(new QueueEntry(doc.toString(), Severity.INFO, i));
+        }
+
+        // 2000 bytes, evicted down to the low watermark of 900 bytes
+        assertEquals(11, queue.addAll(batch));
+        assertEquals(9, queue.size());
+        assertEquals(900, queue.bytes());
+
+        queue.remove(4);
+        assertEquals(500, queue.getStats().getBytes());
+    }
+
+    @Test
+    public void rangeIsReadRawAndRemovedById() throws Exception {
+        SqliteObjectQueue queue = new SqliteObjectQueue(context, 100);
+        List<QueueEntry> batch = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            batch.add(entry("info", i));
+        }
+        queue.addAll(batch);
+
+        QueueRange range = queue.peekRange(3);
+        assertEquals(3, range.count);
+        final List<String> read = new ArrayList<>();
+        queue.read(range, new SqliteObjectQueue.RecordReader() {
+            @Override
+            public void read(long id, byte[] data, long metaId) {
+                read.add(new String(data, StandardCharsets.UTF_8));
+            }
+        });
+        assertEquals(3, read.size());
+        assertEquals(batch.get(0).data, read.get(0));
+        assertEquals(range.bytes, read.get(0).length() + read.get(1).length() + read.get(2).length());
+
+        // records added after peeking are not affected by removing the range
+        queue.addAll(batch.subList(0, 1));
+        queue.remove(range);
+        assertEquals(3, queue.size());
+        assertEquals(3, queue.peek(1).get(0).getInt("seq"));
+    }
+
+    @Test
+    public void removeRequeuesGivenRecordsAtTail() throws Exception {
+        SqliteObjectQueue queue = new SqliteObjectQueue(context, 100);
+        List<QueueEntry> batch = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            batch.add(entry("info", i));
+        }
+        queue.addAll(batch);
+        long bytes = queue.bytes();
+
+        QueueRange range = queue.peekRange(3);
+        queue.remove(range, new long[] { range.firstId + 1 }, null);
+        assertEquals(3, queue.size());
+        assertEquals(bytes - batch.get(0).data.length() - batch.get(2).data.length(), queue.bytes());
+        List<JSONObject> left = queue.peek(3);
+        assertEquals(3, left.get(0).getInt("seq"));
+        assertEquals(4, left.get(1).getInt("seq"));
+        assertEquals(1, left.get(2).getInt("seq"));
+        assertEquals(1, queue.getStats().getRequeued());
+    }
+
+    @Test
+    public void corruptRecordsAreQuarantined() throws Exception {
+        SqliteObjectQueue queue = new SqliteObjectQueue(context, 100);
+        queue.addAll(Arrays.asList(entry("info", 0),
+                new QueueEntry("{\"seq\":1,\"message\":\"trunc", Severity.INFO, 0), entry("info", 2)));
+
+        List<JSONObject> peeked = queue.peek(3);
+        assertEquals(2, peeked.size());
+        assertEquals(2, peeked.get(1).getInt("seq"));
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.getStats().getQuarantined());
+
+        queue.addAll(Collections.singletonList(new QueueEntry("{\"seq\":3}}", Severity.INFO, 0)));
+        assertEquals(2, queue.peekRaw(10).size());
+        assertEquals(2, queue.size());
+        assertEquals(2, queue.getStats().getQuarantined());
+    }
+
+    @Test
+    public void metaSnapshotIsStoredOnceAndSplicedOnRead() throws Exception {
+        SqliteObjectQueue queue = new SqliteObjectQueue(context, 100);
+        String meta = "{\"osType\":\"Android\",\"uuid\":\"abc\"}";
+        queue.addAll(Arrays.asList(
+                new QueueEntry("{\"seq\":0}", Severity.INFO, 0, meta),
+                new QueueEntry("{\"seq\":1,\"meta\":{\"own\":true}}", Severity.INFO, 0),
+                new QueueEntry("{\"seq\":2}", Severity.INFO, 0, new String(meta))));
+        // only the document itself counts against the byte budget
+        assertEquals(3 * "{\"seq\":0}".length() + "\"meta\":{\"own\":true},".length(), queue.bytes());
+
+        List<byte[]> raw = queue.peekRaw(3);
+        assertEquals("{\"seq\":0,\"meta\":" + meta + "}", new String(raw.get(0), StandardCharsets.UTF_8));
+        assertEquals("{\"seq\":1,\"meta\":{\"own\":true}}", new String(raw.get(1), StandardCharsets.UTF_8));
+        assertEquals(new String(raw.get(0), StandardCharsets.UTF_8).replace("0", "2"),
+                new String(raw.get(2), StandardCharsets.UTF_8));
+
+        List<JSONObject> parsed = queue.peek(3);
+        assertEquals("abc", parsed.get(2).getJSONObject("meta").getString("uuid"));
+
+        final List<Long> metaIds = new ArrayList<>();
+        queue.read(queue.peekRange(3), new SqliteObjectQueue.RecordReader() {
+            @Override
+            public void read(long id, byte[] data, long metaId) {
+                metaIds.add(metaId);
+            }
+        });
+        assertEquals(metaIds.get(0), metaIds.get(2));
+        assertEquals(0L, (long) metaIds.get(1));
+    }
+
+    private static QueueEntry entry(String level, int seq) throws Exception {
+        JSONObject obj = new JSONObject();
+        obj.put("level", level);
+        obj.put("seq", seq);
+        return new QueueEntry(obj.toString(), Severity.of(level), System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,85 @@
+package com.sematext.logseneandroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StackTracesTest {
+    @Test
+    public void renderMatchesPrintStackTraceWithinLimits() {
+        Throwable error = new RuntimeException("outer", new IllegalStateException("inner"));
+        assertEquals(Utils.getStackTrace(error), StackTraces.render(error, 1000, 10));
+    }
+
+    @Test
+    public void renderBoundsFramesAndCauses() {
+        Throwable error = recurse(200);
+        String rendered = StackTraces.render(error, 10, 8);
+        assertEquals(10, count(rendered, "\tat "));
+        assertTrue(rendered.contains("\t... " + (error.getStackTrace().length - 10) + " more\n"));
+
+        Throwable chain = new Exception("0");
+        for (int i = 1; i <= 20; i++) {
+            chain = new Exception(String.valueOf(i), chain);
+        }
+        rendered = StackTraces.render(chain, 1, 2);
+        assertEquals(2, count(rendered, "Caused by: "));
+        assertTrue(rendered.endsWith("\t... more causes omitted\n"));
+    }
+
+    @Test
+    public void topFramesAreJoinedOnOneLine() {
+        Throwable error = new Exception();
+        error.setStackTrace(new StackTraceElement[] {
+                new StackTraceElement("a.B", "c", "B.java", 1),
+                new StackTraceElement("d.E", "f", "E.java", 2),
+                new StackTraceElement("g.H", "i", "H.java", 3),
+                new StackTraceElement("j.K", "l", "K.java", 4),
+        });
+        assertEquals("a.B.c(B.java:1) < d.E.f(E.java:2) < g.H.i(H.java:3)", StackTraces.topFrames(error, 3));
+        assertEquals("", StackTraces.topFrames(new Exception(), 0));
+    }
+
+    @Test
+    public void fingerprintIsPaddedHex() {
+        assertEquals("0000000000000001", StackTraces.toHex(1));
+        assertEquals("ffffffffffffffff", StackTraces.toHex(-1));
+        assertEquals("0123456789abcdef", StackTraces.toHex(0x0123456789abcdefL));
+    }
+
+    @Test
+    public void fullTraceOncePerWindow() {
+        FingerprintWindow window = new FingerprintWindow(1000);
+        assertTrue(window.claimFullTrace(7, 0));
+        assertFalse(window.claimFullTrace(7, 999));
+        assertTrue(window.claimFullTrace(8, 999));
+        assertTrue(window.claimFullTrace(7, 1000));
+        assertFalse(window.claimFullTrace(7, 1500));
+
+        FingerprintWindow always = new FingerprintWindow(0);
+        assertTrue(always.claimFullTrace(7, 0));
+        assertTrue(always.claimFullTrace(7, 0));
+    }
+
+    @Test
+    public void releasedFullTraceIsClaimedAgain() {
+        FingerprintWindow window = new FingerprintWindow(1000);
+        assertTrue(window.claimFullTrace(7, 0));
+        // the message with the full trace was dropped
+        window.release(7);
+        assertTrue(window.claimFullTrace(7, 10));
+        assertFalse(window.claimFullTrace(7, 20));
+    }
+
+    private static Throwable recurse(int depth) {
+        return depth == 0 ? new Exception("deep") : recurse(depth - 1);
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
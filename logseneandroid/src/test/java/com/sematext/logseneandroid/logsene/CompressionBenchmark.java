@@ -0,0 +1,88 @@
+package com.sematext.logseneandroid.logsene;
+
+import com.sematext.logseneandroid.Bench;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reports bytes on the wire and CPU time per bulk request for each compression mode, measured
+ * against a local mock receiver.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class CompressionBenchmark {
+    private static final int[] BULK_SIZES = { 50, 500, 5000 };
+    private static final int ROUNDS = 5;
+
+    private MockWebServer server;
+    private LogseneClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        Bench.assumeEnabled();
+        server = new MockWebServer();
+        server.start();
+        client = new LogseneClient(server.url("/").toString(), "token");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server == null) {
+            return;
+        }
+        server.shutdown();
+    }
+
+    @Test
+    public void bytesOnWireAndCpuTime() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        for (int size : BULK_SIZES) {
+            Bulk bulk = bulk(size);
+            for (Compression compression : Compression.values()) {
+                client.setCompression(compression, Deflater.DEFAULT_COMPRESSION, 0);
+                long wireBytes = 0;
+                long cpuNanos = 0;
+                for (int i = 0; i < ROUNDS; i++) {
+                    server.enqueue(new MockResponse().setBody("{\"errors\":false}"));
+                    long cpuStart = threads.getCurrentThreadCpuTime();
+                    assertTrue(client.execute(bulk).isSuccessful());
+                    cpuNanos += threads.getCurrentThreadCpuTime() - cpuStart;
+
+                    RecordedRequest request = server.takeRequest();
+                    assertEquals(compression.getContentEncoding(), request.getHeader("Content-Encoding"));
+                    wireBytes += request.getBodySize();
+                }
+                Bench.report(String.format(Locale.US, "%4d docs %-7s: %9d bytes, %7.2f ms cpu",
+                        size, compression, wireBytes / ROUNDS, cpuNanos / ROUNDS / 1e6));
+            }
+        }
+    }
+
+    private static Bulk bulk(int size) {
+        Bulk.Builder builder = new Bulk.Builder();
+        for (int i = 0; i < size; i++) {
+            builder.addSource(String.format(Locale.US, "{\"level\":\"info\",\"message\":\"Request %d to /api/items "
+                    + "finished in %d ms\",\"@timestamp\":\"2021-06-01T10:15:%02d.%d+0000\",\"meta\":{"
+                    + "\"versionName\":\"3.3.0\",\"versionCode\":1,\"osRelease\":\"11\",\"osType\":\"Android\","
+                    + "\"uuid\":\"5d5f9a0e-3b7c-4c1e-9a55-8b0f5f3c2a11\"}}", i, i % 300, i % 60, i % 1000),
+                    "example");
+        }
+        return builder.build();
+    }
+}
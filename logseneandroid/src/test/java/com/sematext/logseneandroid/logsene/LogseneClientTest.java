@@ -0,0 +1,88 @@
+package com.sematext.logseneandroid.logsene;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.Okio;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class LogseneClientTest {
+    private MockWebServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void clientsShareConnections() throws Exception {
+        ConnectionStats before = LogseneClient.getConnectionStats();
+        for (int i = 0; i < 3; i++) {
+            // a new client per send, like a worker run
+            LogseneClient client = new LogseneClient(server.url("/").toString(), "token");
+            server.enqueue(new MockResponse().setBody("{\"errors\":false}"));
+            assertTrue(client.execute(bulk()).isSuccessful());
+        }
+
+        ConnectionStats after = LogseneClient.getConnectionStats();
+        assertEquals(3, after.getCalls() - before.getCalls());
+        assertEquals(1, after.getConnectionsOpened() - before.getConnectionsOpened());
+        assertEquals(2, after.getConnectionsReused() - before.getConnectionsReused());
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void compressedBodiesDecompressToTheOriginal() throws Exception {
+        LogseneClient client = new LogseneClient(server.url("/").toString(), "token");
+        server.enqueue(new MockResponse().setBody("{\"errors\":false}"));
+        assertTrue(client.execute(bulk()).isSuccessful());
+        String original = server.takeRequest().getBody().readUtf8();
+
+        for (Compression compression : new Compression[] { Compression.GZIP, Compression.DEFLATE }) {
+            client.setCompression(compression, Deflater.DEFAULT_COMPRESSION, 0);
+            server.enqueue(new MockResponse().setBody("{\"errors\":false}"));
+            assertTrue(client.execute(bulk()).isSuccessful());
+
+            RecordedRequest request = server.takeRequest();
+            assertEquals(compression.getContentEncoding(), request.getHeader("Content-Encoding"));
+            InputStream compressed = request.getBody().inputStream();
+            InputStream decompressed = compression == Compression.GZIP
+                    ? new GZIPInputStream(compressed) : new InflaterInputStream(compressed);
+            Buffer body = new Buffer();
+            body.writeAll(Okio.source(decompressed));
+            assertEquals(original, body.readUtf8());
+        }
+    }
+
+    @Test
+    public void unknownCompressionFallsBackToNone() {
+        assertEquals(Compression.GZIP, Compression.fromName(" Gzip "));
+        assertEquals(Compression.NONE, Compression.fromName("gzipp"));
+    }
+
+    private static Bulk bulk() {
+        return new Bulk.Builder().addSource("{\"message\":\"hello\"}", "example").build();
+    }
+}